@@ -36,27 +36,83 @@
 #include <sys/types.h>
 #include <sys/time.h>
 #include <sys/socket.h>
-#include <sys/select.h>
+#include <poll.h>
+#include <time.h>
 #include <errno.h>
 #include <string.h>
 #include <sys/un.h>
+#include <fcntl.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <sys/sendfile.h>
+#include <limits.h>
+#include <sys/syscall.h>
+#include <sched.h>
+#include <stdint.h>
+#include <stddef.h>
+#include <spawn.h>
+#include <signal.h>
+#include <sys/wait.h>
+#include <linux/io_uring.h>
 
 #ifndef IOV_MAX
 #define IOV_MAX 1024
 #endif
 
+/* the maximum number of file descriptors in one SCM_RIGHTS message */
+#define SCM_MAX_FDS 253
+
 
 #ifdef __cplusplus
 extern "C" {
 #endif
 
+/*
+ * Classes, constructors and fields used on the I/O paths, looked up once when
+ * the library is loaded instead of on every call.
+ */
+jclass ioexceptioncls;
+jmethodID ioexceptioncons;
+jclass timeoutcls;
+jclass addresscls;
+jmethodID addresscons;
+jclass fdcls;
+jmethodID fdcons;
+jfieldID fdfid;
+
+jclass globalclass(JNIEnv *env, const char* name)
+{
+   jclass cls = (*env)->FindClass(env, name);
+   if (NULL == cls) return NULL;
+   jclass global = (*env)->NewGlobalRef(env, cls);
+   (*env)->DeleteLocalRef(env, cls);
+   return global;
+}
+
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved)
+{
+   JNIEnv *env;
+   if (JNI_OK != (*vm)->GetEnv(vm, (void**) &env, JNI_VERSION_1_6)) return JNI_ERR;
+   ioexceptioncls = globalclass(env, "cx/ath/matthew/unix/UnixIOException");
+   if (NULL == ioexceptioncls) return JNI_ERR;
+   ioexceptioncons = (*env)->GetMethodID(env, ioexceptioncls, "<init>", "(ILjava/lang/String;)V");
+   timeoutcls = globalclass(env, "java/net/SocketTimeoutException");
+   addresscls = globalclass(env, "cx/ath/matthew/unix/UnixSocketAddress");
+   fdcls = globalclass(env, "java/io/FileDescriptor");
+   if (NULL == ioexceptioncons || NULL == timeoutcls || NULL == addresscls || NULL == fdcls) return JNI_ERR;
+   addresscons = (*env)->GetMethodID(env, addresscls, "<init>", "(Ljava/lang/String;Z)V");
+   fdcons = (*env)->GetMethodID(env, fdcls, "<init>", "()V");
+   fdfid = (*env)->GetFieldID(env, fdcls, "fd", "I");
+   if (NULL == addresscons || NULL == fdcons || NULL == fdfid) return JNI_ERR;
+   return JNI_VERSION_1_6;
+}
+
 void throw(JNIEnv* env, int err, const char* msg)
 {
    jstring jmsg = (*env)->NewStringUTF(env, msg);
-   jclass exc = (*env)->FindClass(env, "cx/ath/matthew/unix/UnixIOException");
-   jmethodID cons = (*env)->GetMethodID(env, exc, "<init>", "(ILjava/lang/String;)V");
-   jobject exo = (*env)->NewObject(env, exc, cons, err, jmsg);
-   (*env)->DeleteLocalRef(env, exc);
+   jobject exo = (*env)->NewObject(env, ioexceptioncls, ioexceptioncons, err, jmsg);
    (*env)->DeleteLocalRef(env, jmsg);
    (*env)->Throw(env, exo);
    (*env)->DeleteLocalRef(env, exo);
@@ -71,45 +127,271 @@ void handleerrno(JNIEnv *env)
    throw(env, err, msg);
 }
    
+void throwtimeout(JNIEnv* env)
+{
+   (*env)->ThrowNew(env, timeoutcls, "Read timed out");
+}
+
+/*
+ * Wait up to timeout milliseconds for the socket to become readable.
+ * Uses poll(), so it works for any file descriptor number.
+ * Returns 0 if the socket is readable, or -1 if an exception has been raised.
+ */
+int waitreadable(JNIEnv *env, int sock, int timeout)
+{
+   struct pollfd pfd;
+   struct timespec now, end;
+   pfd.fd = sock;
+   pfd.events = POLLIN;
+   clock_gettime(CLOCK_MONOTONIC, &end);
+   end.tv_sec += timeout / 1000;
+   end.tv_nsec += (timeout % 1000) * 1000000L;
+   if (end.tv_nsec >= 1000000000L) { end.tv_sec++; end.tv_nsec -= 1000000000L; }
+   for (;;) {
+      int rv = poll(&pfd, 1, timeout);
+      if (rv > 0) return 0;
+      if (0 == rv) { throwtimeout(env); return -1; }
+      if (EINTR != errno) { handleerrno(env); return -1; }
+      clock_gettime(CLOCK_MONOTONIC, &now);
+      timeout = (end.tv_sec - now.tv_sec) * 1000 + (end.tv_nsec - now.tv_nsec) / 1000000;
+      if (timeout < 0) timeout = 0;
+   }
+}
+
+/*
+ * These must match the socket type constants in cx.ath.matthew.unix.UnixSocket.
+ */
+#define TYPE_STREAM 1
+#define TYPE_DGRAM 2
+#define TYPE_SEQPACKET 5
+
+int socktype(jint type)
+{
+   switch (type) {
+      case TYPE_DGRAM: return SOCK_DGRAM;
+      case TYPE_SEQPACKET: return SOCK_SEQPACKET;
+      default: return SOCK_STREAM;
+   }
+}
+
+/*
+ * Fill in the socket address for a path or an abstract name.
+ * Returns the length of the address, or -1 if an exception has been raised.
+ */
+int fillsockaddr(JNIEnv *env, jstring address, jboolean abstract, struct sockaddr_un *sad)
+{
+   int slen = (*env)->GetStringUTFLength(env, address)+1;
+   /* an abstract address starts after the leading 0 byte, the terminator must still fit */
+   if (slen > (int) sizeof(sad->sun_path) - (abstract ? 1 : 0)) { throw(env, ENAMETOOLONG, strerror(ENAMETOOLONG)); return -1; }
+   /* copied straight into the address, without a temporary copy of the string */
+   char* path = abstract ? sad->sun_path+1 : sad->sun_path;
+   (*env)->GetStringUTFRegion(env, address, 0, (*env)->GetStringLength(env, address), path);
+   path[slen-1] = 0;
+   if (abstract) sad->sun_path[0] = 0;
+   sad->sun_family = AF_UNIX;
+   return sizeof(sa_family_t)+slen;
+}
+
+/*
+ * Create a cx.ath.matthew.unix.UnixSocketAddress from a socket address.
+ * Unnamed addresses have an empty path.
+ */
+jobject newaddress(JNIEnv *env, struct sockaddr_un *sad, socklen_t len)
+{
+   char path[sizeof(sad->sun_path)+1];
+   jboolean abstract = JNI_FALSE;
+   int plen = len > sizeof(sa_family_t) ? len - sizeof(sa_family_t) : 0;
+   if (plen > sizeof(sad->sun_path)) plen = sizeof(sad->sun_path);
+   if (plen > 0 && 0 == sad->sun_path[0]) {
+      abstract = JNI_TRUE;
+      memcpy(path, sad->sun_path+1, plen-1);
+      path[plen-1] = 0;
+   } else {
+      memcpy(path, sad->sun_path, plen);
+      path[plen] = 0;
+   }
+   jstring jpath = (*env)->NewStringUTF(env, path);
+   jobject addr = (*env)->NewObject(env, addresscls, addresscons, jpath, abstract);
+   (*env)->DeleteLocalRef(env, jpath);
+   return addr;
+}
+
+void setpasscred(JNIEnv *env, int sock, jboolean enable)
+{
+#ifdef SO_PASSCRED
+   int opt = enable;
+   int rv = setsockopt(sock, SOL_SOCKET, SO_PASSCRED, &opt, sizeof(int));
+   if (-1 == rv) { handleerrno(env);}
+#endif
+}
+
+/*
+ * These must match the option constants in cx.ath.matthew.unix.UnixSocket.
+ */
+#define OPT_SNDBUF 1
+#define OPT_RCVBUF 2
+#define OPT_PEEK_OFF 3
+#define OPT_PASSCRED 4
+
+int sockopt(jint opt)
+{
+   switch (opt) {
+      case OPT_SNDBUF: return SO_SNDBUF;
+      case OPT_RCVBUF: return SO_RCVBUF;
+#ifdef SO_PEEK_OFF
+      case OPT_PEEK_OFF: return SO_PEEK_OFF;
+#endif
+#ifdef SO_PASSCRED
+      case OPT_PASSCRED: return SO_PASSCRED;
+#endif
+      default: return -1;
+   }
+}
+
+void setintopt(JNIEnv *env, int sock, jint opt, jint value)
+{
+   int so = sockopt(opt);
+   if (-1 == so) { throw(env, ENOPROTOOPT, strerror(ENOPROTOOPT)); return; }
+   int v = value;
+   if (-1 == setsockopt(sock, SOL_SOCKET, so, &v, sizeof(v))) { handleerrno(env); }
+}
+
+jint getintopt(JNIEnv *env, int sock, jint opt)
+{
+   int so = sockopt(opt);
+   if (-1 == so) { throw(env, ENOPROTOOPT, strerror(ENOPROTOOPT)); return -1; }
+   int v = 0;
+   socklen_t vlen = sizeof(v);
+   if (-1 == getsockopt(sock, SOL_SOCKET, so, &v, &vlen)) { handleerrno(env); return -1; }
+   return v;
+}
+
+/*
+ * Access to the private fd field of java.io.FileDescriptor, which is not
+ * subject to access checks from native code.
+ */
+int getfd(JNIEnv *env, jobject fdo)
+{
+   return (*env)->GetIntField(env, fdo, fdfid);
+}
+
+jobject newfd(JNIEnv *env, int fd)
+{
+   jobject fdo = (*env)->NewObject(env, fdcls, fdcons);
+   if (NULL != fdo) (*env)->SetIntField(env, fdo, fdfid, fd);
+   return fdo;
+}
+
+/*
+ * Heap arrays are never pinned. Data is copied between the Java array and a
+ * native scratch buffer with Get/SetByteArrayRegion, and only the bytes which
+ * have actually been transferred are copied.
+ * Small transfers use a stack buffer, larger ones a temporary heap buffer of at
+ * most SCRATCH_MAX bytes.
+ */
+#define SCRATCH_SIZE 8192
+#define SCRATCH_MAX (1024*1024)
+
+/*
+ * Returns whether sock keeps message boundaries (SOCK_SEQPACKET). A message
+ * has to be transferred with a single call, so it is never split into
+ * SCRATCH_MAX chunks.
+ */
+int ismessage(int sock)
+{
+   int type;
+   socklen_t optlen = sizeof(type);
+   return 0 == getsockopt(sock, SOL_SOCKET, SO_TYPE, &type, &optlen) && SOCK_STREAM != type;
+}
+
+int recvarray(JNIEnv *env, int sock, jbyteArray buf, jint offs, jint len, int flags)
+{
+   jbyte stackb[SCRATCH_SIZE];
+   jbyte* cbuf = stackb;
+   /* a shorter buffer would truncate a message */
+   if (len > SCRATCH_MAX && !ismessage(sock)) len = SCRATCH_MAX;
+   if (len > SCRATCH_SIZE) {
+      cbuf = malloc(len);
+      if (NULL == cbuf) { throw(env, ENOMEM, strerror(ENOMEM)); return -1; }
+   }
+   int rv = recv(sock, cbuf, len, flags);
+   if (rv > 0)
+      (*env)->SetByteArrayRegion(env, buf, offs, rv, cbuf);
+   if (cbuf != stackb) free(cbuf);
+   if (-1 == rv) { handleerrno(env); return -1; }
+   return rv;
+}
+
+int sendarray(JNIEnv *env, int sock, jbyteArray buf, jint offs, jint len, int flags)
+{
+   jbyte stackb[SCRATCH_SIZE];
+   jbyte* cbuf = stackb;
+   int clen = len > SCRATCH_MAX && !ismessage(sock) ? SCRATCH_MAX : len;
+   if (clen > SCRATCH_SIZE) {
+      cbuf = malloc(clen);
+      if (NULL == cbuf) { throw(env, ENOMEM, strerror(ENOMEM)); return -1; }
+   }
+   int sent = 0;
+   while (sent < len) {
+      int chunk = len - sent < clen ? len - sent : clen;
+      (*env)->GetByteArrayRegion(env, buf, offs + sent, chunk, cbuf);
+      if ((*env)->ExceptionCheck(env)) {
+         if (cbuf != stackb) free(cbuf);
+         return -1;
+      }
+      int done = 0;
+      while (done < chunk) {
+         int rv = send(sock, cbuf + done, chunk - done, flags);
+         if (-1 == rv) {
+            if (cbuf != stackb) free(cbuf);
+            if (EAGAIN == errno && sent + done > 0) return sent + done;
+            handleerrno(env);
+            return -1;
+         }
+         done += rv;
+      }
+      sent += chunk;
+   }
+   if (cbuf != stackb) free(cbuf);
+   return sent;
+}
+
+void* directaddress(JNIEnv *env, jobject buf)
+{
+   void* addr = (*env)->GetDirectBufferAddress(env, buf);
+   if (NULL == addr) throw(env, EINVAL, "Buffer is not a direct buffer");
+   return addr;
+}
+
 /*
  * Class:     cx_ath_matthew_unix_UnixServerSocket
  * Method:    native_bind
- * Signature: (Ljava/lang/String;)I
+ * Signature: (Ljava/lang/String;ZII)I
  */
 JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixServerSocket_native_1bind
-  (JNIEnv *env, jobject o, jstring address, jboolean abstract)
+  (JNIEnv *env, jobject o, jstring address, jboolean abstract, jint type, jint backlog)
 {
-   int sock = socket(PF_UNIX, SOCK_STREAM, 0);
+   struct sockaddr_un sad;
+   int salen = fillsockaddr(env, address, abstract, &sad);
+   if (-1 == salen) return -1;
+   int sock = socket(PF_UNIX, socktype(type) | SOCK_CLOEXEC, 0);
    if (-1 == sock) { handleerrno(env); return -1; }
-   const char* caddr = (*env)->GetStringUTFChars(env, address, 0);
-   int slen = (*env)->GetStringUTFLength(env, address)+1;
-   struct sockaddr_un *sad = malloc(sizeof(sa_family_t)+slen);
-   if (abstract)  {
-      char* shifted = sad->sun_path+1;
-      strncpy(shifted, caddr, slen-1);
-      sad->sun_path[0] = 0;
-   } else
-      strncpy(sad->sun_path, caddr, slen);
-   (*env)->ReleaseStringUTFChars(env, address, caddr);
-   sad->sun_family = AF_UNIX;
-   int rv = bind(sock, (const  struct  sockaddr*) sad, sizeof(sa_family_t)+slen);
-   free(sad);
-   if (-1 == rv) { handleerrno(env); return -1; }
-   rv = listen(sock, 10);
-   if (-1 == rv) { handleerrno(env); return -1; }
+   int rv = bind(sock, (const  struct  sockaddr*) &sad, salen);
+   if (-1 != rv) rv = listen(sock, backlog);
+   if (-1 == rv) { handleerrno(env); close(sock); return -1; }
    return sock;
 }
 
 /*
  * Class:     cx_ath_matthew_unix_UnixServerSocket
  * Method:    native_close
- * Signature: (I)V
+ * Signature: (IZ)V
  */
 JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixServerSocket_native_1close
-  (JNIEnv * env, jobject o, jint sock)
+  (JNIEnv * env, jobject o, jint sock, jboolean doshutdown)
 {
    if (0 == sock) return;
-   int rv = shutdown(sock, SHUT_RDWR);
+   int rv = doshutdown ? shutdown(sock, SHUT_RDWR) : 0;
    if (-1 == rv) { handleerrno(env); }
    else {
       rv = close(sock);
@@ -117,6 +399,19 @@ JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixServerSocket_native_1close
    }
 }
 
+/*
+ * Class:     cx_ath_matthew_unix_UnixServerSocket
+ * Method:    native_dup
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixServerSocket_native_1dup
+  (JNIEnv * env, jclass c, jint fd)
+{
+   int rv = fcntl(fd, F_DUPFD_CLOEXEC, 0);
+   if (-1 == rv) handleerrno(env);
+   return rv;
+}
+
 /*
  * Class:     cx_ath_matthew_unix_UnixServerSocket
  * Method:    native_accept
@@ -125,11 +420,25 @@ JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixServerSocket_native_1close
 JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixServerSocket_native_1accept
   (JNIEnv * env, jobject o, jint sock)
 {
-   int newsock = accept(sock, NULL, NULL);
+   int newsock = accept4(sock, NULL, NULL, SOCK_CLOEXEC);
    if (-1 == newsock) handleerrno(env);
    return newsock;
 }
 
+/*
+ * Class:     cx_ath_matthew_unix_UnixServerSocket
+ * Method:    native_set_blocking
+ * Signature: (IZ)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixServerSocket_native_1set_1blocking
+  (JNIEnv *env, jobject o, jint sock, jboolean blocking)
+{
+   int fl = fcntl(sock, F_GETFL);
+   if (-1 == fl) { handleerrno(env); return; }
+   fl = blocking ? (fl & ~O_NONBLOCK) : (fl | O_NONBLOCK);
+   if (-1 == fcntl(sock, F_SETFL, fl)) { handleerrno(env); }
+}
+
 /*
  * Class:     cx_ath_matthew_unix_UnixSocket
  * Method:    native_set_pass_cred
@@ -138,37 +447,24 @@ JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixServerSocket_native_1accept
 JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1set_1pass_1cred
   (JNIEnv *env, jobject o, jint sock, jboolean enable)
 {
-#ifdef SO_PASSCRED
-   int opt = enable;
-   int rv = setsockopt(sock, SOL_SOCKET, SO_PASSCRED, &opt, sizeof(int));
-   if (-1 == rv) { handleerrno(env);}
-#endif
+   setpasscred(env, sock, enable);
 }
 
 /*
  * Class:     cx_ath_matthew_unix_UnixSocket
  * Method:    native_connect
- * Signature: (Ljava/lang/String;)I
+ * Signature: (Ljava/lang/String;ZI)I
  */
 JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1connect
-  (JNIEnv *env, jobject o, jstring address, jboolean abstract)
+  (JNIEnv *env, jobject o, jstring address, jboolean abstract, jint type)
 {
-   int sock = socket(PF_UNIX, SOCK_STREAM, 0);
+   struct sockaddr_un sad;
+   int salen = fillsockaddr(env, address, abstract, &sad);
+   if (-1 == salen) return -1;
+   int sock = socket(PF_UNIX, socktype(type) | SOCK_CLOEXEC, 0);
    if (-1 == sock) { handleerrno(env); return -1; }
-   const char* caddr = (*env)->GetStringUTFChars(env, address, 0);
-   int slen = (*env)->GetStringUTFLength(env, address)+1;
-   struct sockaddr_un *sad = malloc(sizeof(sa_family_t)+slen);
-   if (abstract)  {
-      char* shifted = sad->sun_path+1;
-      strncpy(shifted, caddr, slen-1);
-      sad->sun_path[0] = 0;
-   } else
-      strncpy(sad->sun_path, caddr, slen);
-   (*env)->ReleaseStringUTFChars(env, address, caddr);
-   sad->sun_family = AF_UNIX;
-   int rv = connect(sock, (const struct sockaddr*) sad, sizeof(sa_family_t)+slen);
-   free(sad);
-   if (-1 == rv) { handleerrno(env); return -1; }
+   int rv = connect(sock, (const struct sockaddr*) &sad, salen);
+   if (-1 == rv) { handleerrno(env); close(sock); return -1; }
    return sock;
 }
 
@@ -189,6 +485,18 @@ JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1close
    }
 }
 
+/*
+ * Class:     cx_ath_matthew_unix_UnixSocket
+ * Method:    native_shutdown
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1shutdown
+  (JNIEnv *env, jobject o, jint sock)
+{
+   /* the peer may already have gone */
+   if (-1 == shutdown(sock, SHUT_RDWR) && ENOTCONN != errno) handleerrno(env);
+}
+
 /*
  * Class:     cx_ath_matthew_unix_USInputStream
  * Method:    native_recv
@@ -197,42 +505,24 @@ JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1close
 JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USInputStream_native_1recv
   (JNIEnv *env, jobject o, jint sock, jbyteArray buf, jint offs, jint len, jint flags, jint timeout)
 {
-   fd_set rfds;
-   struct timeval tv;
-   jbyte* cbuf = (*env)->GetByteArrayElements(env, buf, NULL);
-   void* recvb = cbuf + offs;
-   int rv;
-
-   if (timeout > 0) {
-      FD_ZERO(&rfds);
-      FD_SET(sock, &rfds);
-      tv.tv_sec = 0;
-      tv.tv_usec = timeout;
-      rv = select(sock+1, &rfds, NULL, NULL, &tv);
-      rv = recv(sock, recvb, len, flags);
-      if (-1 == rv) { handleerrno(env); rv = -1; }
-      (*env)->ReleaseByteArrayElements(env, buf, cbuf, 0);
-      return rv;
-   } else  {
-      rv = recv(sock, recvb, len, flags);
-      (*env)->ReleaseByteArrayElements(env, buf, cbuf, 0);
-      if (-1 == rv) { handleerrno(env); return -1; }
-      return rv;
-   }
+   if (timeout > 0 && !(flags & MSG_DONTWAIT))
+      if (-1 == waitreadable(env, sock, timeout)) return -1;
+   return recvarray(env, sock, buf, offs, len, flags);
 }
 
 /*
- * Class:     cx_ath_matthew_unix_USOutputStream
- * Method:    native_send
- * Signature: (I[BII)I
+ * Class:     cx_ath_matthew_unix_USInputStream
+ * Method:    native_recv_direct
+ * Signature: (ILjava/nio/ByteBuffer;IIII)I
  */
-JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USOutputStream_native_1send__I_3BII
-  (JNIEnv *env, jobject o, jint sock, jbyteArray buf, jint offs, jint len)
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USInputStream_native_1recv_1direct
+  (JNIEnv *env, jobject o, jint sock, jobject buf, jint pos, jint len, jint flags, jint timeout)
 {
-   jbyte* cbuf = (*env)->GetByteArrayElements(env, buf, NULL);
-   void* sendb = cbuf + offs;
-   int rv = send(sock, sendb, len, 0);
-   (*env)->ReleaseByteArrayElements(env, buf, cbuf, 0);
+   jbyte* cbuf = directaddress(env, buf);
+   if (NULL == cbuf) return -1;
+   if (timeout > 0 && !(flags & MSG_DONTWAIT))
+      if (-1 == waitreadable(env, sock, timeout)) return -1;
+   int rv = recv(sock, cbuf + pos, len, flags);
    if (-1 == rv) { handleerrno(env); return -1; }
    return rv;
 }
@@ -240,127 +530,64 @@ JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USOutputStream_native_1send__I_3
 /*
  * Class:     cx_ath_matthew_unix_USOutputStream
  * Method:    native_send
- * Signature: (I[[B)I
+ * Signature: (I[BII)I
  */
-JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USOutputStream_native_1send__I_3_3B
-  (JNIEnv *env, jobject o, jint sock, jobjectArray bufs)
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USOutputStream_native_1send__I_3BII
+  (JNIEnv *env, jobject o, jint sock, jbyteArray buf, jint offs, jint len)
 {
-   size_t sblen = 1;
-   socklen_t sblen_size = sizeof(sblen);
-   getsockopt(sock, SOL_SOCKET, SO_SNDBUF, &sblen, &sblen_size);
-
-   struct msghdr msg;
-   struct iovec *iov;
-   msg.msg_name = NULL;
-   msg.msg_namelen = 0;
-   msg.msg_control = NULL;
-   msg.msg_controllen = 0;
-   msg.msg_flags = 0;
-   size_t els = (*env)->GetArrayLength(env, bufs);
-   iov = (struct iovec*) malloc((els<IOV_MAX?els:IOV_MAX) * sizeof(struct iovec));
-   msg.msg_iov = iov;
-   jbyteArray *b = (jbyteArray*) malloc(els * sizeof(jbyteArray));
-   int rv = 0;
-   
-   for (int i = 0, j = 0, s = 0; i <= els; i++, j++) {
-      if (i == els) {
-         msg.msg_iovlen = j;
-         rv = sendmsg(sock, &msg, 0);
-         for (int k = i-1, l = j-1; l >= 0; k--, l--)
-            (*env)->ReleaseByteArrayElements(env, b[k], iov[l].iov_base, 0);
-         if (-1 == rv) { handleerrno(env); return -1; }
-         break;
-      }
-      b[i] = (*env)->GetObjectArrayElement(env, bufs, i);
-      if (NULL == b[i]) {
-         msg.msg_iovlen = j;
-         rv = sendmsg(sock, &msg, 0);
-         for (int k = i-1, l = j-1; l >= 0; k--, l--)
-            (*env)->ReleaseByteArrayElements(env, b[k], iov[l].iov_base, 0);
-         if (-1 == rv) { handleerrno(env); return -1; }
-         break;
-      }
-      size_t l = (*env)->GetArrayLength(env, b[i]);
-      if (s+l > sblen || j == IOV_MAX) {
-         msg.msg_iovlen = j;
-         rv = sendmsg(sock, &msg, 0);
-         s = 0;
-         for (int k = i-1, l = j-1; l >= 0; k--, l--)
-            (*env)->ReleaseByteArrayElements(env, b[k], iov[l].iov_base, 0);
-         j = 0;
-         if (-1 == rv) { handleerrno(env); return -1; }
-      }
-      iov[j].iov_base = (*env)->GetByteArrayElements(env, b[i], NULL);
-      iov[j].iov_len = l;
-      s += l;
-   }
-   
-   free(iov);
-   free(b);
-   return rv;
+   return sendarray(env, sock, buf, offs, len, 0);
 }
 
-/*
- * Class:     cx_ath_matthew_unix_UnixSocket
- * Method:    native_getPID
- * Signature: (I)I
- */
-JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1getPID
-  (JNIEnv * env, jobject o, jint sock)
-{
-#ifdef SO_PEERCRED
-   struct ucred cr;
-   socklen_t cl=sizeof(cr);
-
-   if (getsockopt(sock, SOL_SOCKET, SO_PEERCRED, &cr, &cl)==0) 
-      return cr.pid;
-   else
-      return -1;
-#else
-   return -1;
+#ifndef SO_PEERGROUPS
+#define SO_PEERGROUPS 59
 #endif
-}
-
-/*
- * Class:     cx_ath_matthew_unix_UnixSocket
- * Method:    native_getUID
- * Signature: (I)I
- */
-JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1getUID
-  (JNIEnv * env, jobject o, jint sock)
-{
-#ifdef SO_PEERCRED
-   struct ucred cr;
-   socklen_t cl=sizeof(cr);
-
-   if (getsockopt(sock, SOL_SOCKET, SO_PEERCRED, &cr, &cl)==0) 
-      return cr.uid;
-   else
-      return -1;
-#else
-   return -1;
+#ifndef SO_PEERPIDFD
+#define SO_PEERPIDFD 77
 #endif
-}
 
 /*
  * Class:     cx_ath_matthew_unix_UnixSocket
- * Method:    native_getGID
- * Signature: (I)I
+ * Method:    native_peer_credentials
+ * Signature: (I[I[Ljava/io/FileDescriptor;)[I
+ * Stores pid, uid and gid in ids and the pidfd, if supported, in pidfd[0].
+ * Returns the supplementary groups, or null if not supported.
  */
-JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1getGID
-  (JNIEnv * env, jobject o, jint sock)
+JNIEXPORT jintArray JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1peer_1credentials
+  (JNIEnv *env, jobject o, jint sock, jintArray ids, jobjectArray pidfd)
 {
-#ifdef SO_PEERCRED
    struct ucred cr;
-   socklen_t cl=sizeof(cr);
+   socklen_t cl = sizeof(cr);
+   if (-1 == getsockopt(sock, SOL_SOCKET, SO_PEERCRED, &cr, &cl)) { handleerrno(env); return NULL; }
+   jint cids[3] = { cr.pid, cr.uid, cr.gid };
+   (*env)->SetIntArrayRegion(env, ids, 0, 3, cids);
 
-   if (getsockopt(sock, SOL_SOCKET, SO_PEERCRED, &cr, &cl)==0) 
-      return cr.gid;
-   else
-      return -1;
-#else
-   return -1;
-#endif
+   gid_t stackgroups[64];
+   gid_t *groups = stackgroups;
+   socklen_t gl = sizeof(stackgroups);
+   jintArray jgroups = NULL;
+   int rv = getsockopt(sock, SOL_SOCKET, SO_PEERGROUPS, groups, &gl);
+   if (-1 == rv && ERANGE == errno) {
+      /* gl is now the required size */
+      groups = malloc(gl);
+      if (NULL == groups) { throw(env, ENOMEM, strerror(ENOMEM)); return NULL; }
+      rv = getsockopt(sock, SOL_SOCKET, SO_PEERGROUPS, groups, &gl);
+   }
+   if (0 == rv) {
+      jsize n = gl / sizeof(gid_t);
+      jgroups = (*env)->NewIntArray(env, n);
+      if (NULL != jgroups && 0 < n) (*env)->SetIntArrayRegion(env, jgroups, 0, n, (jint*) groups);
+   }
+   if (groups != stackgroups) free(groups);
+   if (NULL == jgroups && (*env)->ExceptionCheck(env)) return NULL;
+
+   int fd;
+   socklen_t fl = sizeof(fd);
+   if (0 == getsockopt(sock, SOL_SOCKET, SO_PEERPIDFD, &fd, &fl)) {
+      jobject fdo = newfd(env, fd);
+      if (NULL == fdo) { close(fd); return NULL; }
+      (*env)->SetObjectArrayElement(env, pidfd, 0, fdo);
+   }
+   return jgroups;
 }
 
 /*
@@ -459,6 +686,2022 @@ JNIEXPORT jbyte JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1recv_1creds
 }
 
 
+/*
+ * Class:     cx_ath_matthew_unix_UnixSocket
+ * Method:    native_recv_direct
+ * Signature: (ILjava/nio/ByteBuffer;IIII)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1recv_1direct
+  (JNIEnv *env, jobject o, jint sock, jobject buf, jint pos, jint len, jint flags, jint timeout)
+{
+   jbyte* cbuf = directaddress(env, buf);
+   if (NULL == cbuf) return -1;
+   if (timeout > 0 && !(flags & MSG_DONTWAIT))
+      if (-1 == waitreadable(env, sock, timeout)) return -1;
+   int rv = recv(sock, cbuf + pos, len, flags);
+   if (-1 == rv) { handleerrno(env); return -1; }
+   return rv;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSocket
+ * Method:    native_recv_array
+ * Signature: (I[BIIII)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1recv_1array
+  (JNIEnv *env, jobject o, jint sock, jbyteArray buf, jint offs, jint len, jint flags, jint timeout)
+{
+   if (timeout > 0 && !(flags & MSG_DONTWAIT))
+      if (-1 == waitreadable(env, sock, timeout)) return -1;
+   return recvarray(env, sock, buf, offs, len, flags);
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSocket
+ * Method:    native_send_direct
+ * Signature: (ILjava/nio/ByteBuffer;III)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1send_1direct
+  (JNIEnv *env, jobject o, jint sock, jobject buf, jint pos, jint len, jint flags)
+{
+   jbyte* cbuf = directaddress(env, buf);
+   if (NULL == cbuf) return -1;
+   int rv = send(sock, cbuf + pos, len, flags);
+   if (-1 == rv) { handleerrno(env); return -1; }
+   return rv;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSocket
+ * Method:    native_send_array
+ * Signature: (I[BIII)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1send_1array
+  (JNIEnv *env, jobject o, jint sock, jbyteArray buf, jint offs, jint len, jint flags)
+{
+   return sendarray(env, sock, buf, offs, len, flags);
+}
+
+/*
+ * These must match the constants in cx.ath.matthew.unix.UnixSelector.
+ */
+#define SEL_OP_READ 0x01
+#define SEL_OP_WRITE 0x02
+#define SEL_OP_ACCEPT 0x04
+#define SEL_OP_HANGUP 0x08
+#define SEL_EDGE_TRIGGERED 0x100
+#define SEL_ONESHOT 0x200
+#define SEL_CTL_ADD 1
+#define SEL_CTL_MOD 2
+#define SEL_CTL_DEL 3
+#define SEL_MAX_EVENTS 1024
+/* marks a server socket resp. the wakeup eventfd in the epoll data */
+#define SEL_DATA_ACCEPT (((uint64_t) 1) << 32)
+#define SEL_DATA_WAKEUP (((uint64_t) 1) << 33)
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSelector
+ * Method:    native_create
+ * Signature: ([I)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSelector_native_1create
+  (JNIEnv *env, jobject o, jintArray jfds)
+{
+   jint fds[2];
+   fds[0] = epoll_create1(EPOLL_CLOEXEC);
+   if (-1 == fds[0]) { handleerrno(env); return; }
+   fds[1] = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK);
+   if (-1 == fds[1]) { handleerrno(env); close(fds[0]); return; }
+   struct epoll_event ev;
+   ev.events = EPOLLIN;
+   ev.data.u64 = SEL_DATA_WAKEUP | (uint32_t) fds[1];
+   if (-1 == epoll_ctl(fds[0], EPOLL_CTL_ADD, fds[1], &ev)) {
+      handleerrno(env);
+      close(fds[0]);
+      close(fds[1]);
+      return;
+   }
+   (*env)->SetIntArrayRegion(env, jfds, 0, 2, fds);
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSelector
+ * Method:    native_ctl
+ * Signature: (IIIIZ)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSelector_native_1ctl
+  (JNIEnv *env, jobject o, jint epfd, jint op, jint sock, jint ops, jboolean accept)
+{
+   struct epoll_event ev;
+   ev.events = 0;
+   if (ops & (SEL_OP_READ | SEL_OP_ACCEPT)) ev.events |= EPOLLIN;
+   if (ops & SEL_OP_WRITE) ev.events |= EPOLLOUT;
+   if (ops & SEL_OP_HANGUP) ev.events |= EPOLLRDHUP;
+   if (ops & SEL_EDGE_TRIGGERED) ev.events |= EPOLLET;
+   if (ops & SEL_ONESHOT) ev.events |= EPOLLONESHOT;
+   ev.data.u64 = (accept ? SEL_DATA_ACCEPT : 0) | (uint32_t) sock;
+   int eop = SEL_CTL_ADD == op ? EPOLL_CTL_ADD : SEL_CTL_MOD == op ? EPOLL_CTL_MOD : EPOLL_CTL_DEL;
+   if (-1 == epoll_ctl(epfd, eop, sock, &ev)) { handleerrno(env); }
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSelector
+ * Method:    native_wait
+ * Signature: (II[II)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSelector_native_1wait
+  (JNIEnv *env, jobject o, jint epfd, jint evfd, jintArray jready, jint timeout)
+{
+   struct epoll_event evs[SEL_MAX_EVENTS];
+   jint ready[2 * SEL_MAX_EVENTS];
+   int max = (*env)->GetArrayLength(env, jready) / 2;
+   if (max > SEL_MAX_EVENTS) max = SEL_MAX_EVENTS;
+   if (max < 1) { throw(env, EINVAL, "Result array too small"); return -1; }
+   int n = epoll_wait(epfd, evs, max, timeout);
+   if (-1 == n) {
+      if (EINTR == errno) return 0;
+      handleerrno(env);
+      return -1;
+   }
+   int j = 0;
+   for (int i = 0; i < n; i++) {
+      uint64_t data = evs[i].data.u64;
+      uint32_t e = evs[i].events;
+      if (data & SEL_DATA_WAKEUP) {
+         uint64_t cnt;
+         if (-1 == read(evfd, &cnt, sizeof(cnt))) errno = 0;
+         continue;
+      }
+      jint ops = 0;
+      if (e & EPOLLIN) ops |= (data & SEL_DATA_ACCEPT) ? SEL_OP_ACCEPT : SEL_OP_READ;
+      if (e & EPOLLOUT) ops |= SEL_OP_WRITE;
+      if (e & (EPOLLHUP | EPOLLRDHUP | EPOLLERR)) ops |= SEL_OP_HANGUP;
+      ready[2 * j] = (jint) (data & 0xFFFFFFFF);
+      ready[2 * j + 1] = ops;
+      j++;
+   }
+   if (j > 0)
+      (*env)->SetIntArrayRegion(env, jready, 0, 2 * j, ready);
+   return j;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSelector
+ * Method:    native_wakeup
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSelector_native_1wakeup
+  (JNIEnv *env, jobject o, jint evfd)
+{
+   uint64_t one = 1;
+   if (-1 == write(evfd, &one, sizeof(one))) { handleerrno(env); }
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSelector
+ * Method:    native_close
+ * Signature: (II)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSelector_native_1close
+  (JNIEnv *env, jobject o, jint epfd, jint evfd)
+{
+   close(evfd);
+   if (-1 == close(epfd)) { handleerrno(env); }
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSocket
+ * Method:    native_sendv
+ * Signature: (I[Ljava/lang/Object;[I[IIII)J
+ *
+ * Each element of bufs is either a direct ByteBuffer, which is sent in place,
+ * or a byte[], which is copied to a scratch buffer. heap is the number of
+ * bytes in byte[] elements, used to size the scratch buffer.
+ * Short writes are resumed until everything has been sent, or the socket
+ * would block.
+ */
+JNIEXPORT jlong JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1sendv
+  (JNIEnv *env, jobject o, jint sock, jobjectArray bufs, jintArray joffs, jintArray jlens, jint count, jint heap, jint flags)
+{
+   struct iovec iov[IOV_MAX];
+   struct msghdr msg;
+   jint *offs = malloc(2 * count * sizeof(jint));
+   if (NULL == offs) { throw(env, ENOMEM, strerror(ENOMEM)); return -1; }
+   jint *lens = offs + count;
+   (*env)->GetIntArrayRegion(env, joffs, 0, count, offs);
+   (*env)->GetIntArrayRegion(env, jlens, 0, count, lens);
+   size_t scratchlen = heap < SCRATCH_MAX ? heap : SCRATCH_MAX;
+   char* scratch = NULL;
+   if (scratchlen > 0) {
+      scratch = malloc(scratchlen);
+      if (NULL == scratch) { free(offs); throw(env, ENOMEM, strerror(ENOMEM)); return -1; }
+   }
+   jlong total = 0;
+   int i = 0;
+   jint done = 0;
+
+   while (i < count) {
+      /* fill the iovecs starting at byte done of buffer i */
+      int n = 0;
+      size_t used = 0;
+      jlong batch = 0;
+      for (int k = i; k < count && n < IOV_MAX; k++) {
+         jint d = k == i ? done : 0;
+         jint l = lens[k] - d;
+         if (0 == l) continue;
+         jobject b = (*env)->GetObjectArrayElement(env, bufs, k);
+         char* addr = (*env)->GetDirectBufferAddress(env, b);
+         if (NULL != addr) {
+            iov[n].iov_base = addr + offs[k] + d;
+         } else {
+            if (used == scratchlen) { (*env)->DeleteLocalRef(env, b); break; }
+            if (l > scratchlen - used) l = scratchlen - used;
+            (*env)->GetByteArrayRegion(env, b, offs[k] + d, l, (jbyte*) scratch + used);
+            if ((*env)->ExceptionCheck(env)) { (*env)->DeleteLocalRef(env, b); total = -1; goto out; }
+            iov[n].iov_base = scratch + used;
+            used += l;
+         }
+         (*env)->DeleteLocalRef(env, b);
+         iov[n].iov_len = l;
+         batch += l;
+         n++;
+      }
+      if (0 == n) break;
+
+      memset(&msg, 0, sizeof(msg));
+      msg.msg_iov = iov;
+      msg.msg_iovlen = n;
+      jlong sent = 0;
+      while (sent < batch) {
+         ssize_t rv = sendmsg(sock, &msg, flags);
+         if (-1 == rv) {
+            if (EINTR == errno) continue;
+            if (EAGAIN != errno) { total = -1; handleerrno(env); }
+            goto out;
+         }
+         sent += rv;
+         total += rv;
+         while (rv > 0) {
+            size_t c = msg.msg_iov->iov_len < rv ? msg.msg_iov->iov_len : rv;
+            msg.msg_iov->iov_base = (char*) msg.msg_iov->iov_base + c;
+            msg.msg_iov->iov_len -= c;
+            rv -= c;
+            if (0 == msg.msg_iov->iov_len) { msg.msg_iov++; msg.msg_iovlen--; }
+         }
+      }
+
+      /* advance to the first byte which has not been part of this batch */
+      while (batch > 0) {
+         jint rem = lens[i] - done;
+         if (batch >= rem) { batch -= rem; i++; done = 0; }
+         else { done += batch; batch = 0; }
+      }
+   }
+
+out:
+   free(scratch);
+   free(offs);
+   return total;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSocket
+ * Method:    native_recvv
+ * Signature: (I[Ljava/lang/Object;[I[IIIII)I
+ *
+ * Receives into the given buffers with a single recvmsg. byte[] elements are
+ * filled from a scratch buffer with only the bytes actually received.
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1recvv
+  (JNIEnv *env, jobject o, jint sock, jobjectArray bufs, jintArray joffs, jintArray jlens, jint count, jint heap, jint flags, jint timeout)
+{
+   struct iovec iov[IOV_MAX];
+   int idx[IOV_MAX];
+   struct msghdr msg;
+   if (count > IOV_MAX) count = IOV_MAX;
+   jint offs[IOV_MAX];
+   jint lens[IOV_MAX];
+   (*env)->GetIntArrayRegion(env, joffs, 0, count, offs);
+   (*env)->GetIntArrayRegion(env, jlens, 0, count, lens);
+   size_t scratchlen = heap < SCRATCH_MAX ? heap : SCRATCH_MAX;
+   char* scratch = NULL;
+   if (scratchlen > 0) {
+      scratch = malloc(scratchlen);
+      if (NULL == scratch) { throw(env, ENOMEM, strerror(ENOMEM)); return -1; }
+   }
+
+   int n = 0;
+   size_t used = 0;
+   for (int k = 0; k < count; k++) {
+      jint l = lens[k];
+      if (0 == l) continue;
+      jobject b = (*env)->GetObjectArrayElement(env, bufs, k);
+      char* addr = (*env)->GetDirectBufferAddress(env, b);
+      (*env)->DeleteLocalRef(env, b);
+      if (NULL != addr) {
+         iov[n].iov_base = addr + offs[k];
+      } else {
+         if (used == scratchlen) break;
+         if (l > scratchlen - used) l = scratchlen - used;
+         iov[n].iov_base = scratch + used;
+         used += l;
+      }
+      iov[n].iov_len = l;
+      idx[n] = NULL == addr ? k : -1;
+      n++;
+   }
+
+   if (timeout > 0 && !(flags & MSG_DONTWAIT))
+      if (-1 == waitreadable(env, sock, timeout)) { free(scratch); return -1; }
+
+   memset(&msg, 0, sizeof(msg));
+   msg.msg_iov = iov;
+   msg.msg_iovlen = n;
+   ssize_t rv = recvmsg(sock, &msg, flags);
+   if (-1 == rv) { free(scratch); handleerrno(env); return -1; }
+
+   ssize_t left = rv;
+   for (int j = 0; j < n && left > 0; j++) {
+      jint c = iov[j].iov_len < left ? iov[j].iov_len : left;
+      if (-1 != idx[j]) {
+         jobject b = (*env)->GetObjectArrayElement(env, bufs, idx[j]);
+         (*env)->SetByteArrayRegion(env, b, offs[idx[j]], c, (jbyte*) iov[j].iov_base);
+         (*env)->DeleteLocalRef(env, b);
+      }
+      left -= c;
+   }
+   free(scratch);
+   return rv;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSocket
+ * Method:    native_send_fds
+ * Signature: (ILjava/lang/Object;II[Ljava/io/FileDescriptor;I)I
+ *
+ * buf is either a direct ByteBuffer or a byte[].
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1send_1fds
+  (JNIEnv *env, jobject o, jint sock, jobject buf, jint offs, jint len, jobjectArray jfds, jint flags)
+{
+   int nfds = (*env)->GetArrayLength(env, jfds);
+   if (nfds > SCM_MAX_FDS) { throw(env, EINVAL, "Too many file descriptors"); return -1; }
+   char control[CMSG_SPACE(SCM_MAX_FDS * sizeof(int))];
+   struct msghdr msg;
+   struct iovec iov;
+   memset(&msg, 0, sizeof(msg));
+
+   char* scratch = NULL;
+   char* addr = (*env)->GetDirectBufferAddress(env, buf);
+   if (NULL == addr) {
+      if (len > SCRATCH_MAX) len = SCRATCH_MAX;
+      scratch = malloc(len > 0 ? len : 1);
+      if (NULL == scratch) { throw(env, ENOMEM, strerror(ENOMEM)); return -1; }
+      (*env)->GetByteArrayRegion(env, buf, offs, len, (jbyte*) scratch);
+      if ((*env)->ExceptionCheck(env)) { free(scratch); return -1; }
+      iov.iov_base = scratch;
+   } else
+      iov.iov_base = addr + offs;
+   iov.iov_len = len;
+   msg.msg_iov = &iov;
+   msg.msg_iovlen = 1;
+
+   if (nfds > 0) {
+      msg.msg_control = control;
+      msg.msg_controllen = CMSG_SPACE(nfds * sizeof(int));
+      struct cmsghdr *cmsg = CMSG_FIRSTHDR(&msg);
+      cmsg->cmsg_level = SOL_SOCKET;
+      cmsg->cmsg_type = SCM_RIGHTS;
+      cmsg->cmsg_len = CMSG_LEN(nfds * sizeof(int));
+      int* data = (int*) CMSG_DATA(cmsg);
+      for (int i = 0; i < nfds; i++) {
+         jobject fdo = (*env)->GetObjectArrayElement(env, jfds, i);
+         data[i] = getfd(env, fdo);
+         (*env)->DeleteLocalRef(env, fdo);
+      }
+   }
+
+   int rv = sendmsg(sock, &msg, flags);
+   free(scratch);
+   if (-1 == rv) { handleerrno(env); return -1; }
+   return rv;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSocket
+ * Method:    native_recv_fds
+ * Signature: (ILjava/lang/Object;II[Ljava/io/FileDescriptor;II)I
+ *
+ * buf is either a direct ByteBuffer or a byte[]. Received file descriptors
+ * are stored in jfds, unused elements are set to null. Descriptors which do
+ * not fit into jfds are closed by the kernel.
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1recv_1fds
+  (JNIEnv *env, jobject o, jint sock, jobject buf, jint offs, jint len, jobjectArray jfds, jint flags, jint timeout)
+{
+   int maxfds = (*env)->GetArrayLength(env, jfds);
+   if (maxfds > SCM_MAX_FDS) maxfds = SCM_MAX_FDS;
+   char control[CMSG_SPACE(SCM_MAX_FDS * sizeof(int))];
+   struct msghdr msg;
+   struct iovec iov;
+   memset(&msg, 0, sizeof(msg));
+
+   char* scratch = NULL;
+   char* addr = (*env)->GetDirectBufferAddress(env, buf);
+   if (NULL == addr) {
+      if (len > SCRATCH_MAX) len = SCRATCH_MAX;
+      scratch = malloc(len > 0 ? len : 1);
+      if (NULL == scratch) { throw(env, ENOMEM, strerror(ENOMEM)); return -1; }
+      iov.iov_base = scratch;
+   } else
+      iov.iov_base = addr + offs;
+   iov.iov_len = len;
+   msg.msg_iov = &iov;
+   msg.msg_iovlen = 1;
+   if (maxfds > 0) {
+      msg.msg_control = control;
+      msg.msg_controllen = CMSG_SPACE(maxfds * sizeof(int));
+   }
+
+   if (timeout > 0 && !(flags & MSG_DONTWAIT))
+      if (-1 == waitreadable(env, sock, timeout)) { free(scratch); return -1; }
+
+   int rv = recvmsg(sock, &msg, flags | MSG_CMSG_CLOEXEC);
+   if (-1 == rv) { free(scratch); handleerrno(env); return -1; }
+   if (NULL != scratch && rv > 0)
+      (*env)->SetByteArrayRegion(env, buf, offs, rv, (jbyte*) scratch);
+   free(scratch);
+
+   int n = 0;
+   int failed = 0;
+   struct cmsghdr *cmsg;
+   for (cmsg = CMSG_FIRSTHDR(&msg); cmsg != NULL; cmsg = CMSG_NXTHDR(&msg, cmsg)) {
+      if (cmsg->cmsg_level != SOL_SOCKET || cmsg->cmsg_type != SCM_RIGHTS) continue;
+      int cnt = (cmsg->cmsg_len - CMSG_LEN(0)) / sizeof(int);
+      int* data = (int*) CMSG_DATA(cmsg);
+      for (int i = 0; i < cnt; i++) {
+         if (!failed && n < maxfds) {
+            jobject fdo = newfd(env, data[i]);
+            /* out of memory, close the descriptors which have not been wrapped */
+            if (NULL == fdo) { failed = 1; close(data[i]); continue; }
+            (*env)->SetObjectArrayElement(env, jfds, n++, fdo);
+            (*env)->DeleteLocalRef(env, fdo);
+         } else
+            close(data[i]);
+      }
+   }
+   if (failed) return -1;
+   for (int i = n; i < maxfds; i++)
+      (*env)->SetObjectArrayElement(env, jfds, i, NULL);
+   return rv;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSocket
+ * Method:    native_fd_number
+ * Signature: (Ljava/io/FileDescriptor;)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1fd_1number
+  (JNIEnv *env, jclass c, jobject fdo)
+{
+   return getfd(env, fdo);
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixDatagramSocket
+ * Method:    native_create
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixDatagramSocket_native_1create
+  (JNIEnv *env, jobject o)
+{
+   int sock = socket(PF_UNIX, SOCK_DGRAM | SOCK_CLOEXEC, 0);
+   if (-1 == sock) { handleerrno(env); return -1; }
+   return sock;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixDatagramSocket
+ * Method:    native_bind
+ * Signature: (ILjava/lang/String;Z)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixDatagramSocket_native_1bind
+  (JNIEnv *env, jobject o, jint sock, jstring address, jboolean abstract)
+{
+   struct sockaddr_un sad;
+   int salen = fillsockaddr(env, address, abstract, &sad);
+   if (-1 == salen) return;
+   if (-1 == bind(sock, (const struct sockaddr*) &sad, salen)) { handleerrno(env); }
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixDatagramSocket
+ * Method:    native_connect
+ * Signature: (ILjava/lang/String;Z)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixDatagramSocket_native_1connect
+  (JNIEnv *env, jobject o, jint sock, jstring address, jboolean abstract)
+{
+   struct sockaddr_un sad;
+   int salen = fillsockaddr(env, address, abstract, &sad);
+   if (-1 == salen) return;
+   if (-1 == connect(sock, (const struct sockaddr*) &sad, salen)) { handleerrno(env); }
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixDatagramSocket
+ * Method:    native_send
+ * Signature: (ILjava/lang/Object;IILjava/lang/String;ZI)I
+ *
+ * buf is either a direct ByteBuffer or a byte[]. If address is null the
+ * datagram is sent to the connected peer.
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixDatagramSocket_native_1send
+  (JNIEnv *env, jobject o, jint sock, jobject buf, jint offs, jint len, jstring address, jboolean abstract, jint flags)
+{
+   struct sockaddr_un sad;
+   int salen = 0;
+   if (NULL != address) {
+      salen = fillsockaddr(env, address, abstract, &sad);
+      if (-1 == salen) return -1;
+   }
+   char* scratch = NULL;
+   char* addr = (*env)->GetDirectBufferAddress(env, buf);
+   if (NULL == addr) {
+      scratch = malloc(len > 0 ? len : 1);
+      if (NULL == scratch) { throw(env, ENOMEM, strerror(ENOMEM)); return -1; }
+      (*env)->GetByteArrayRegion(env, buf, offs, len, (jbyte*) scratch);
+      if ((*env)->ExceptionCheck(env)) { free(scratch); return -1; }
+      addr = scratch;
+   } else
+      addr += offs;
+   int rv = sendto(sock, addr, len, flags, NULL == address ? NULL : (const struct sockaddr*) &sad, salen);
+   free(scratch);
+   if (-1 == rv) { handleerrno(env); return -1; }
+   return rv;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixDatagramSocket
+ * Method:    native_recv
+ * Signature: (ILjava/lang/Object;II[Ljava/lang/Object;II)I
+ *
+ * buf is either a direct ByteBuffer or a byte[]. If from is not null, the
+ * address of the sender is stored in its first element.
+ * Returns the number of bytes received, or -1 if the socket would block.
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixDatagramSocket_native_1recv
+  (JNIEnv *env, jobject o, jint sock, jobject buf, jint offs, jint len, jobjectArray from, jint flags, jint timeout)
+{
+   struct sockaddr_un sad;
+   socklen_t salen = sizeof(sad);
+   jbyte stackb[SCRATCH_SIZE];
+   char* scratch = NULL;
+   char* addr = (*env)->GetDirectBufferAddress(env, buf);
+   if (NULL == addr) {
+      if (len > SCRATCH_MAX) len = SCRATCH_MAX;
+      scratch = len > SCRATCH_SIZE ? malloc(len) : (char*) stackb;
+      if (NULL == scratch) { throw(env, ENOMEM, strerror(ENOMEM)); return -1; }
+      addr = scratch;
+   } else
+      addr += offs;
+
+   if (timeout > 0 && !(flags & MSG_DONTWAIT))
+      if (-1 == waitreadable(env, sock, timeout)) { if ((char*) stackb != scratch) free(scratch); return -1; }
+
+   int rv = recvfrom(sock, addr, len, flags, NULL == from ? NULL : (struct sockaddr*) &sad, NULL == from ? NULL : &salen);
+   if (rv > 0 && NULL != scratch)
+      (*env)->SetByteArrayRegion(env, buf, offs, rv, (jbyte*) scratch);
+   if ((char*) stackb != scratch) free(scratch);
+   if (-1 == rv) { handleerrno(env); return -1; }
+   if (NULL != from) {
+      jobject jaddr = newaddress(env, &sad, salen);
+      (*env)->SetObjectArrayElement(env, from, 0, jaddr);
+      (*env)->DeleteLocalRef(env, jaddr);
+   }
+   return rv;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixDatagramSocket
+ * Method:    native_close
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixDatagramSocket_native_1close
+  (JNIEnv *env, jobject o, jint sock)
+{
+   if (0 == sock) return;
+   if (-1 == close(sock)) { handleerrno(env); }
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixDatagramSocket
+ * Method:    native_set_pass_cred
+ * Signature: (IZ)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixDatagramSocket_native_1set_1pass_1cred
+  (JNIEnv *env, jobject o, jint sock, jboolean enable)
+{
+   setpasscred(env, sock, enable);
+}
+
+/*
+ * Fields of cx.ath.matthew.unix.UnixMessage, looked up once.
+ */
+jfieldID msgbase = NULL;
+jfieldID msgoffset;
+jfieldID msglength;
+jfieldID msgpid;
+jfieldID msguid;
+jfieldID msggid;
+jfieldID msgtruncated;
+
+int msgfields(JNIEnv *env)
+{
+   if (NULL != msgbase) return 0;
+   jclass cls = (*env)->FindClass(env, "cx/ath/matthew/unix/UnixMessage");
+   if (NULL == cls) return -1;
+   msgoffset = (*env)->GetFieldID(env, cls, "offset", "I");
+   msglength = (*env)->GetFieldID(env, cls, "length", "I");
+   msgpid = (*env)->GetFieldID(env, cls, "pid", "I");
+   msguid = (*env)->GetFieldID(env, cls, "uid", "I");
+   msggid = (*env)->GetFieldID(env, cls, "gid", "I");
+   msgtruncated = (*env)->GetFieldID(env, cls, "truncated", "Z");
+   msgbase = (*env)->GetFieldID(env, cls, "base", "Ljava/lang/Object;");
+   (*env)->DeleteLocalRef(env, cls);
+   return NULL == msgbase ? -1 : 0;
+}
+
+#define MMSG_MAX 256
+#define MMSG_CONTROL CMSG_SPACE(sizeof(struct ucred))
+
+/*
+ * Point the iovecs at the buffers of the messages. Direct buffers are used in
+ * place, heap buffers get a part of the scratch buffer, which for sending is
+ * filled with the message data. Returns -1 if an exception is pending.
+ */
+int msgiovecs(JNIEnv *env, jobjectArray msgs, jint off, jint count, struct mmsghdr *hdrs, struct iovec *iov, char* scratch, int send)
+{
+   size_t used = 0;
+   for (int i = 0; i < count; i++) {
+      jobject m = (*env)->GetObjectArrayElement(env, msgs, off + i);
+      jobject base = (*env)->GetObjectField(env, m, msgbase);
+      jint offs = (*env)->GetIntField(env, m, msgoffset);
+      jint len = (*env)->GetIntField(env, m, msglength);
+      char* addr = (*env)->GetDirectBufferAddress(env, base);
+      if (NULL == addr) {
+         if (send)
+            (*env)->GetByteArrayRegion(env, base, offs, len, (jbyte*) scratch + used);
+         iov[i].iov_base = scratch + used;
+         used += len;
+      } else
+         iov[i].iov_base = addr + offs;
+      iov[i].iov_len = len;
+      hdrs[i].msg_hdr.msg_iov = &iov[i];
+      hdrs[i].msg_hdr.msg_iovlen = 1;
+      (*env)->DeleteLocalRef(env, base);
+      (*env)->DeleteLocalRef(env, m);
+      if ((*env)->ExceptionCheck(env)) return -1;
+   }
+   return 0;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixDatagramSocket
+ * Method:    native_sendmmsg
+ * Signature: (I[Lcx/ath/matthew/unix/UnixMessage;IIILjava/lang/String;ZI)I
+ *
+ * Returns the number of messages sent, or -1 if the socket would block.
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixDatagramSocket_native_1sendmmsg
+  (JNIEnv *env, jobject o, jint sock, jobjectArray msgs, jint off, jint count, jint heap, jstring address, jboolean abstract, jint flags)
+{
+   struct mmsghdr hdrs[MMSG_MAX];
+   struct iovec iov[MMSG_MAX];
+   struct sockaddr_un sad;
+   int salen = 0;
+   if (-1 == msgfields(env)) return -1;
+   if (NULL != address) {
+      salen = fillsockaddr(env, address, abstract, &sad);
+      if (-1 == salen) return -1;
+   }
+   if (count > MMSG_MAX) count = MMSG_MAX;
+   char* scratch = NULL;
+   if (heap > 0) {
+      scratch = malloc(heap);
+      if (NULL == scratch) { throw(env, ENOMEM, strerror(ENOMEM)); return -1; }
+   }
+   memset(hdrs, 0, count * sizeof(struct mmsghdr));
+   if (-1 == msgiovecs(env, msgs, off, count, hdrs, iov, scratch, 1)) { free(scratch); return -1; }
+   if (NULL != address)
+      for (int i = 0; i < count; i++) {
+         hdrs[i].msg_hdr.msg_name = &sad;
+         hdrs[i].msg_hdr.msg_namelen = salen;
+      }
+
+   int n = sendmmsg(sock, hdrs, count, flags);
+   free(scratch);
+   if (-1 == n) { handleerrno(env); return -1; }
+   for (int i = 0; i < n; i++) {
+      jobject m = (*env)->GetObjectArrayElement(env, msgs, off + i);
+      (*env)->SetIntField(env, m, msglength, hdrs[i].msg_len);
+      (*env)->DeleteLocalRef(env, m);
+   }
+   return n;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixDatagramSocket
+ * Method:    native_recvmmsg
+ * Signature: (I[Lcx/ath/matthew/unix/UnixMessage;IIIII)I
+ *
+ * Returns the number of messages received, or -1 if the socket would block.
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixDatagramSocket_native_1recvmmsg
+  (JNIEnv *env, jobject o, jint sock, jobjectArray msgs, jint off, jint count, jint heap, jint flags, jint timeout)
+{
+   struct mmsghdr hdrs[MMSG_MAX];
+   struct iovec iov[MMSG_MAX];
+   char control[MMSG_MAX * MMSG_CONTROL];
+   if (-1 == msgfields(env)) return -1;
+   if (count > MMSG_MAX) count = MMSG_MAX;
+   char* scratch = NULL;
+   if (heap > 0) {
+      scratch = malloc(heap);
+      if (NULL == scratch) { throw(env, ENOMEM, strerror(ENOMEM)); return -1; }
+   }
+   memset(hdrs, 0, count * sizeof(struct mmsghdr));
+   if (-1 == msgiovecs(env, msgs, off, count, hdrs, iov, scratch, 0)) { free(scratch); return -1; }
+   for (int i = 0; i < count; i++) {
+      hdrs[i].msg_hdr.msg_control = control + i * MMSG_CONTROL;
+      hdrs[i].msg_hdr.msg_controllen = MMSG_CONTROL;
+   }
+
+   if (!(flags & MSG_DONTWAIT)) {
+      if (timeout > 0)
+         if (-1 == waitreadable(env, sock, timeout)) { free(scratch); return -1; }
+      flags |= MSG_WAITFORONE;
+   }
+   int n = recvmmsg(sock, hdrs, count, flags, NULL);
+   if (-1 == n) { free(scratch); handleerrno(env); return -1; }
+
+   for (int i = 0; i < n; i++) {
+      jobject m = (*env)->GetObjectArrayElement(env, msgs, off + i);
+      struct msghdr *msg = &hdrs[i].msg_hdr;
+      jobject base = (*env)->GetObjectField(env, m, msgbase);
+      if (NULL == (*env)->GetDirectBufferAddress(env, base)) {
+         jint offs = (*env)->GetIntField(env, m, msgoffset);
+         (*env)->SetByteArrayRegion(env, base, offs, hdrs[i].msg_len, (jbyte*) iov[i].iov_base);
+      }
+      (*env)->DeleteLocalRef(env, base);
+      (*env)->SetIntField(env, m, msglength, hdrs[i].msg_len);
+      (*env)->SetBooleanField(env, m, msgtruncated, (msg->msg_flags & MSG_TRUNC) ? JNI_TRUE : JNI_FALSE);
+#ifdef SCM_CREDENTIALS
+      struct cmsghdr *cmsg;
+      for (cmsg = CMSG_FIRSTHDR(msg); cmsg != NULL; cmsg = CMSG_NXTHDR(msg, cmsg)) {
+         if (cmsg->cmsg_level == SOL_SOCKET && cmsg->cmsg_type == SCM_CREDENTIALS) {
+            struct ucred *creds = (struct ucred *) CMSG_DATA(cmsg);
+            (*env)->SetIntField(env, m, msgpid, creds->pid);
+            (*env)->SetIntField(env, m, msguid, creds->uid);
+            (*env)->SetIntField(env, m, msggid, creds->gid);
+            break;
+         }
+      }
+#endif
+      (*env)->DeleteLocalRef(env, m);
+   }
+   free(scratch);
+   return n;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSocket
+ * Method:    native_setsockopt
+ * Signature: (III)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1setsockopt
+  (JNIEnv *env, jobject o, jint sock, jint opt, jint value)
+{
+   setintopt(env, sock, opt, value);
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSocket
+ * Method:    native_getsockopt
+ * Signature: (II)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1getsockopt
+  (JNIEnv *env, jobject o, jint sock, jint opt)
+{
+   return getintopt(env, sock, opt);
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixServerSocket
+ * Method:    native_setsockopt
+ * Signature: (III)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixServerSocket_native_1setsockopt
+  (JNIEnv *env, jobject o, jint sock, jint opt, jint value)
+{
+   setintopt(env, sock, opt, value);
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixServerSocket
+ * Method:    native_getsockopt
+ * Signature: (II)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixServerSocket_native_1getsockopt
+  (JNIEnv *env, jobject o, jint sock, jint opt)
+{
+   return getintopt(env, sock, opt);
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixServerSocket
+ * Method:    native_listen
+ * Signature: (II)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixServerSocket_native_1listen
+  (JNIEnv *env, jobject o, jint sock, jint backlog)
+{
+   if (-1 == listen(sock, backlog)) { handleerrno(env); }
+}
+
+/*
+ * io_uring, used through the raw system calls, so no liburing is needed.
+ * The rings are shared with the kernel: the head of the completion queue and
+ * the tail of the submission queue are written by us, the other two by the
+ * kernel, so they are accessed with acquire / release semantics.
+ */
+struct uring {
+   int fd;
+   unsigned *sqhead, *sqtail, *sqmask, *sqarray;
+   unsigned *cqhead, *cqtail, *cqmask;
+   struct io_uring_sqe *sqes;
+   struct io_uring_cqe *cqes;
+   void *sqptr, *cqptr;
+   size_t sqlen, cqlen, sqeslen;
+   unsigned pending;
+};
+
+/*
+ * These must match the operation constants in cx.ath.matthew.unix.IoUring.
+ */
+#define URING_OP_NOP 0
+#define URING_OP_RECV 1
+#define URING_OP_SEND 2
+#define URING_OP_READ_FIXED 3
+#define URING_OP_WRITE_FIXED 4
+#define URING_OP_CONNECT 5
+#define URING_OP_ACCEPT 6
+
+void uringunmap(struct uring *r)
+{
+   if (NULL != r->sqes && MAP_FAILED != r->sqes) munmap(r->sqes, r->sqeslen);
+   if (NULL != r->cqptr && MAP_FAILED != r->cqptr && r->cqptr != r->sqptr) munmap(r->cqptr, r->cqlen);
+   if (NULL != r->sqptr && MAP_FAILED != r->sqptr) munmap(r->sqptr, r->sqlen);
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_IoUring
+ * Method:    native_setup
+ * Signature: (I)J
+ */
+JNIEXPORT jlong JNICALL Java_cx_ath_matthew_unix_IoUring_native_1setup
+  (JNIEnv *env, jclass c, jint entries)
+{
+   struct io_uring_params p;
+   memset(&p, 0, sizeof(p));
+   int fd = syscall(__NR_io_uring_setup, entries, &p);
+   if (-1 == fd) { handleerrno(env); return 0; }
+   struct uring *r = calloc(1, sizeof(struct uring));
+   if (NULL == r) { close(fd); throw(env, ENOMEM, strerror(ENOMEM)); return 0; }
+   r->fd = fd;
+   r->sqlen = p.sq_off.array + p.sq_entries * sizeof(unsigned);
+   r->cqlen = p.cq_off.cqes + p.cq_entries * sizeof(struct io_uring_cqe);
+   if (p.features & IORING_FEAT_SINGLE_MMAP) {
+      if (r->cqlen > r->sqlen) r->sqlen = r->cqlen;
+      r->cqlen = r->sqlen;
+   }
+   r->sqptr = mmap(NULL, r->sqlen, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_POPULATE, fd, IORING_OFF_SQ_RING);
+   if (MAP_FAILED == r->sqptr) goto fail;
+   if (p.features & IORING_FEAT_SINGLE_MMAP)
+      r->cqptr = r->sqptr;
+   else {
+      r->cqptr = mmap(NULL, r->cqlen, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_POPULATE, fd, IORING_OFF_CQ_RING);
+      if (MAP_FAILED == r->cqptr) goto fail;
+   }
+   r->sqeslen = p.sq_entries * sizeof(struct io_uring_sqe);
+   r->sqes = mmap(NULL, r->sqeslen, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_POPULATE, fd, IORING_OFF_SQES);
+   if (MAP_FAILED == r->sqes) goto fail;
+   r->sqhead = (unsigned*) ((char*) r->sqptr + p.sq_off.head);
+   r->sqtail = (unsigned*) ((char*) r->sqptr + p.sq_off.tail);
+   r->sqmask = (unsigned*) ((char*) r->sqptr + p.sq_off.ring_mask);
+   r->sqarray = (unsigned*) ((char*) r->sqptr + p.sq_off.array);
+   r->cqhead = (unsigned*) ((char*) r->cqptr + p.cq_off.head);
+   r->cqtail = (unsigned*) ((char*) r->cqptr + p.cq_off.tail);
+   r->cqmask = (unsigned*) ((char*) r->cqptr + p.cq_off.ring_mask);
+   r->cqes = (struct io_uring_cqe*) ((char*) r->cqptr + p.cq_off.cqes);
+   return (jlong) (intptr_t) r;
+fail:
+   {
+      int err = errno;
+      uringunmap(r);
+      close(fd);
+      free(r);
+      throw(env, err, strerror(err));
+      return 0;
+   }
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_IoUring
+ * Method:    native_close
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_IoUring_native_1close
+  (JNIEnv *env, jclass c, jlong ring)
+{
+   struct uring *r = (struct uring*) (intptr_t) ring;
+   uringunmap(r);
+   close(r->fd);
+   free(r);
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_IoUring
+ * Method:    native_register_buffers
+ * Signature: (J[Ljava/nio/ByteBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_IoUring_native_1register_1buffers
+  (JNIEnv *env, jclass c, jlong ring, jobjectArray bufs)
+{
+   struct uring *r = (struct uring*) (intptr_t) ring;
+   int n = (*env)->GetArrayLength(env, bufs);
+   struct iovec *iov = calloc(n, sizeof(struct iovec));
+   if (NULL == iov) { throw(env, ENOMEM, strerror(ENOMEM)); return; }
+   int i;
+   for (i = 0; i < n; i++) {
+      jobject buf = (*env)->GetObjectArrayElement(env, bufs, i);
+      iov[i].iov_base = directaddress(env, buf);
+      iov[i].iov_len = (*env)->GetDirectBufferCapacity(env, buf);
+      (*env)->DeleteLocalRef(env, buf);
+      if (NULL == iov[i].iov_base) { free(iov); return; }
+   }
+   if (-1 == syscall(__NR_io_uring_register, r->fd, IORING_REGISTER_BUFFERS, iov, n)) handleerrno(env);
+   free(iov);
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_IoUring
+ * Method:    native_prepare
+ * Signature: (JIILjava/nio/ByteBuffer;IIIJ)Z
+ * Returns false if the submission queue is full.
+ */
+JNIEXPORT jboolean JNICALL Java_cx_ath_matthew_unix_IoUring_native_1prepare
+  (JNIEnv *env, jclass c, jlong ring, jint op, jint fd, jobject buf, jint pos, jint len, jint index, jlong data)
+{
+   struct uring *r = (struct uring*) (intptr_t) ring;
+   char* addr = NULL;
+   if (NULL != buf) {
+      addr = directaddress(env, buf);
+      if (NULL == addr) return JNI_TRUE;
+   }
+   unsigned tail = *r->sqtail;
+   unsigned head = __atomic_load_n(r->sqhead, __ATOMIC_ACQUIRE);
+   if (tail - head > *r->sqmask) return JNI_FALSE;
+   unsigned idx = tail & *r->sqmask;
+   struct io_uring_sqe *sqe = &r->sqes[idx];
+   memset(sqe, 0, sizeof(*sqe));
+   sqe->fd = fd;
+   sqe->user_data = data;
+   switch (op) {
+      case URING_OP_RECV:
+         sqe->opcode = IORING_OP_RECV;
+         sqe->addr = (uintptr_t) (addr + pos);
+         sqe->len = len;
+         break;
+      case URING_OP_SEND:
+         sqe->opcode = IORING_OP_SEND;
+         sqe->addr = (uintptr_t) (addr + pos);
+         sqe->len = len;
+         sqe->msg_flags = MSG_NOSIGNAL;
+         break;
+      case URING_OP_READ_FIXED:
+      case URING_OP_WRITE_FIXED:
+         sqe->opcode = URING_OP_READ_FIXED == op ? IORING_OP_READ_FIXED : IORING_OP_WRITE_FIXED;
+         sqe->addr = (uintptr_t) (addr + pos);
+         sqe->len = len;
+         sqe->buf_index = index;
+         break;
+      case URING_OP_CONNECT:
+         sqe->opcode = IORING_OP_CONNECT;
+         sqe->addr = (uintptr_t) addr;
+         sqe->off = len;
+         break;
+      case URING_OP_ACCEPT:
+         sqe->opcode = IORING_OP_ACCEPT;
+         sqe->accept_flags = SOCK_CLOEXEC;
+         break;
+      default:
+         sqe->opcode = IORING_OP_NOP;
+   }
+   r->sqarray[idx] = idx;
+   __atomic_store_n(r->sqtail, tail + 1, __ATOMIC_RELEASE);
+   r->pending++;
+   return JNI_TRUE;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_IoUring
+ * Method:    native_submit
+ * Signature: (J)V
+ * Submits all prepared operations with one system call.
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_IoUring_native_1submit
+  (JNIEnv *env, jclass c, jlong ring)
+{
+   struct uring *r = (struct uring*) (intptr_t) ring;
+   while (r->pending > 0) {
+      int rv = syscall(__NR_io_uring_enter, r->fd, r->pending, 0, 0, NULL, 0);
+      if (-1 == rv) {
+         if (EINTR == errno) continue;
+         if (EAGAIN == errno || EBUSY == errno) { sched_yield(); continue; }
+         handleerrno(env);
+         return;
+      }
+      r->pending -= rv;
+   }
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_IoUring
+ * Method:    native_reap
+ * Signature: (J[J[I)I
+ * Waits for at least one completion and returns the number of completions
+ * copied into data and res.
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_IoUring_native_1reap
+  (JNIEnv *env, jclass c, jlong ring, jlongArray data, jintArray res)
+{
+   struct uring *r = (struct uring*) (intptr_t) ring;
+   int max = (*env)->GetArrayLength(env, data);
+   jlong cdata[256];
+   jint cres[256];
+   if (max > 256) max = 256;
+   unsigned head = *r->cqhead;
+   unsigned tail = __atomic_load_n(r->cqtail, __ATOMIC_ACQUIRE);
+   while (head == tail) {
+      int rv = syscall(__NR_io_uring_enter, r->fd, 0, 1, IORING_ENTER_GETEVENTS, NULL, 0);
+      if (-1 == rv && EINTR != errno) { handleerrno(env); return -1; }
+      tail = __atomic_load_n(r->cqtail, __ATOMIC_ACQUIRE);
+   }
+   int n = 0;
+   while (head != tail && n < max) {
+      struct io_uring_cqe *cqe = &r->cqes[head & *r->cqmask];
+      cdata[n] = cqe->user_data;
+      cres[n] = cqe->res;
+      n++;
+      head++;
+   }
+   __atomic_store_n(r->cqhead, head, __ATOMIC_RELEASE);
+   (*env)->SetLongArrayRegion(env, data, 0, n, cdata);
+   (*env)->SetIntArrayRegion(env, res, 0, n, cres);
+   return n;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_IoUring
+ * Method:    native_socket
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_IoUring_native_1socket
+  (JNIEnv *env, jclass c)
+{
+   int sock = socket(PF_UNIX, SOCK_STREAM | SOCK_CLOEXEC, 0);
+   if (-1 == sock) { handleerrno(env); }
+   return sock;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_IoUring
+ * Method:    native_sockaddr
+ * Signature: (Ljava/nio/ByteBuffer;Ljava/lang/String;Z)I
+ * Fills the direct buffer with the socket address and returns its length.
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_IoUring_native_1sockaddr
+  (JNIEnv *env, jclass c, jobject buf, jstring address, jboolean abstract)
+{
+   struct sockaddr_un *sad = directaddress(env, buf);
+   if (NULL == sad) return -1;
+   if ((*env)->GetDirectBufferCapacity(env, buf) < sizeof(struct sockaddr_un)) {
+      throw(env, EINVAL, strerror(EINVAL));
+      return -1;
+   }
+   memset(sad, 0, sizeof(struct sockaddr_un));
+   return fillsockaddr(env, address, abstract, sad);
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_IoUring
+ * Method:    native_close_fd
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_IoUring_native_1close_1fd
+  (JNIEnv *env, jclass c, jint fd)
+{
+   close(fd);
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_IoUring
+ * Method:    native_strerror
+ * Signature: (I)Ljava/lang/String;
+ */
+JNIEXPORT jstring JNICALL Java_cx_ath_matthew_unix_IoUring_native_1strerror
+  (JNIEnv *env, jclass c, jint err)
+{
+   return (*env)->NewStringUTF(env, strerror(err));
+}
+
+/*
+ * Shared memory transport. The memory holds two single-producer,
+ * single-consumer byte rings, ring 0 from the connecting side (0) to the
+ * accepting side (1), ring 1 the other way round. Each ring has a head, only
+ * written by the consumer, and a tail, only written by the producer, in their
+ * own cache lines. A side which has to wait sets its waiting flag and sleeps
+ * in poll() on its eventfd, the peer only rings the eventfd if the flag is
+ * set. The socket used for the handshake is polled as well, so a peer which
+ * exits without closing is noticed.
+ */
+#define SHM_LINE 64
+#define SHM_DATA_WAITING(s) ((s) * SHM_LINE)
+#define SHM_SPACE_WAITING(s) ((2 + (s)) * SHM_LINE)
+#define SHM_CLOSED(s) ((4 + (s)) * SHM_LINE)
+#define SHM_HEADER (6 * SHM_LINE)
+#define SHM_RING_HEADER (2 * SHM_LINE)
+#define SHM_MIN_CAPACITY 4096
+#define SHM_MAX_CAPACITY (1 << 30)
+
+/* return codes of native_read and native_write besides a byte count */
+#define SHM_EOF 0
+#define SHM_AGAIN -1
+#define SHM_CLOSED_LOCALLY -2
+
+struct shmring {
+   uint64_t *head;
+   uint64_t *tail;
+   char *data;
+   uint64_t cap;
+};
+
+uint32_t* shmword(char *base, int off)
+{
+   return (uint32_t*) (base + off);
+}
+
+int shmcapacity(size_t size)
+{
+   if (size < SHM_HEADER + 2 * SHM_RING_HEADER) return -1;
+   size_t cap = (size - SHM_HEADER) / 2 - SHM_RING_HEADER;
+   if (cap < SHM_MIN_CAPACITY || cap > SHM_MAX_CAPACITY || 0 != (cap & (cap - 1))) return -1;
+   if (size != SHM_HEADER + 2 * (SHM_RING_HEADER + cap)) return -1;
+   return cap;
+}
+
+void shmring(char *base, size_t size, int r, struct shmring *ring)
+{
+   ring->cap = shmcapacity(size);
+   char *rbase = base + SHM_HEADER + r * (SHM_RING_HEADER + ring->cap);
+   ring->head = (uint64_t*) rbase;
+   ring->tail = (uint64_t*) (rbase + SHM_LINE);
+   ring->data = rbase + SHM_RING_HEADER;
+}
+
+void shmring_bell(int fd)
+{
+   uint64_t one = 1;
+   while (-1 == write(fd, &one, sizeof(one)) && EINTR == errno);
+}
+
+/*
+ * Wait until the eventfd is rung, the socket is hung up or the deadline
+ * passes. Returns 0 when woken, 1 on hangup, or -1 if an exception has been
+ * raised.
+ */
+int shmwait(JNIEnv *env, int bell, int sock, int timeout, struct timespec *end)
+{
+   struct pollfd pfd[2];
+   pfd[0].fd = bell;
+   pfd[0].events = POLLIN;
+   pfd[1].fd = sock;
+   pfd[1].events = POLLRDHUP;
+   for (;;) {
+      int wait = -1;
+      if (timeout > 0) {
+         struct timespec now;
+         clock_gettime(CLOCK_MONOTONIC, &now);
+         wait = (end->tv_sec - now.tv_sec) * 1000 + (end->tv_nsec - now.tv_nsec) / 1000000;
+         if (wait <= 0) { throwtimeout(env); return -1; }
+      }
+      int rv = poll(pfd, 2, wait);
+      if (-1 == rv) {
+         if (EINTR == errno) continue;
+         handleerrno(env);
+         return -1;
+      }
+      if (0 == rv) continue;
+      if (pfd[0].revents & POLLIN) {
+         uint64_t v;
+         while (-1 == read(bell, &v, sizeof(v)) && EINTR == errno);
+      }
+      if (pfd[1].revents & (POLLRDHUP | POLLHUP | POLLERR)) return 1;
+      return 0;
+   }
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixShmSocket
+ * Method:    native_create
+ * Signature: (I[Ljava/io/FileDescriptor;)V
+ * Creates the shared memory and the four eventfds.
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixShmSocket_native_1create
+  (JNIEnv *env, jclass c, jint capacity, jobjectArray fds)
+{
+   int cfds[5];
+   int i, n = 0;
+   size_t size = SHM_HEADER + 2 * (SHM_RING_HEADER + (size_t) capacity);
+   cfds[n] = syscall(__NR_memfd_create, "unix-java-shm", 1 /* MFD_CLOEXEC */);
+   if (-1 == cfds[n]) { handleerrno(env); return; }
+   n++;
+   if (-1 == ftruncate(cfds[0], size)) goto fail;
+   for (; n < 5; n++) {
+      cfds[n] = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK);
+      if (-1 == cfds[n]) goto fail;
+   }
+   for (i = 0; i < 5; i++) {
+      jobject fdo = newfd(env, cfds[i]);
+      if (NULL == fdo) { n = 5; goto failclose; }
+      (*env)->SetObjectArrayElement(env, fds, i, fdo);
+      (*env)->DeleteLocalRef(env, fdo);
+   }
+   return;
+fail:
+   handleerrno(env);
+failclose:
+   for (i = 0; i < n; i++) close(cfds[i]);
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixShmSocket
+ * Method:    native_map
+ * Signature: (I)Ljava/nio/ByteBuffer;
+ */
+JNIEXPORT jobject JNICALL Java_cx_ath_matthew_unix_UnixShmSocket_native_1map
+  (JNIEnv *env, jclass c, jint fd)
+{
+   struct stat st;
+   if (-1 == fstat(fd, &st)) { handleerrno(env); return NULL; }
+   if (-1 == shmcapacity(st.st_size)) { throw(env, EINVAL, "Invalid shared memory size"); return NULL; }
+   void *addr = mmap(NULL, st.st_size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+   if (MAP_FAILED == addr) { handleerrno(env); return NULL; }
+   jobject buf = (*env)->NewDirectByteBuffer(env, addr, st.st_size);
+   if (NULL == buf) munmap(addr, st.st_size);
+   return buf;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixShmSocket
+ * Method:    native_unmap
+ * Signature: (Ljava/nio/ByteBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixShmSocket_native_1unmap
+  (JNIEnv *env, jclass c, jobject map)
+{
+   void *addr = directaddress(env, map);
+   if (NULL == addr) return;
+   munmap(addr, (*env)->GetDirectBufferCapacity(env, map));
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixShmSocket
+ * Method:    native_capacity
+ * Signature: (Ljava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixShmSocket_native_1capacity
+  (JNIEnv *env, jclass c, jobject map)
+{
+   return shmcapacity((*env)->GetDirectBufferCapacity(env, map));
+}
+
+/*
+ * The ring indices are in memory shared with the peer, which may be broken or
+ * malicious. Returns 0 if they describe at most a full ring. Otherwise the
+ * connection is marked closed, both bells are rung and -1 is returned with an
+ * EPROTO exception raised.
+ */
+int shmcheck(JNIEnv *env, char *base, int side, int bell, int peerbell, struct shmring *ring, uint64_t head, uint64_t tail)
+{
+   if (tail - head <= ring->cap) return 0;
+   __atomic_store_n(shmword(base, SHM_CLOSED(side)), 1, __ATOMIC_RELEASE);
+   __atomic_thread_fence(__ATOMIC_SEQ_CST);
+   shmring_bell(bell);
+   shmring_bell(peerbell);
+   throw(env, EPROTO, "Corrupt shared memory ring");
+   return -1;
+}
+
+/*
+ * Copy between a ring and a direct buffer or byte array, in up to two parts
+ * if the range wraps around the end of the ring.
+ */
+void shmcopy(JNIEnv *env, struct shmring *ring, uint64_t pos, jobject buf, jbyte *direct, jint off, jint len, int out)
+{
+   uint64_t start = pos & (ring->cap - 1);
+   jint first = ring->cap - start < (uint64_t) len ? (jint) (ring->cap - start) : len;
+   jint parts[2] = { first, len - first };
+   char *src[2] = { ring->data + start, ring->data };
+   int i;
+   for (i = 0; i < 2; i++) {
+      if (0 == parts[i]) continue;
+      if (NULL != direct) {
+         if (out) memcpy(direct + off, src[i], parts[i]);
+         else memcpy(src[i], direct + off, parts[i]);
+      } else if (out)
+         (*env)->SetByteArrayRegion(env, buf, off, parts[i], (jbyte*) src[i]);
+      else
+         (*env)->GetByteArrayRegion(env, buf, off, parts[i], (jbyte*) src[i]);
+      off += parts[i];
+   }
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixShmSocket
+ * Method:    native_read
+ * Signature: (Ljava/nio/ByteBuffer;IIIILjava/lang/Object;IIZI)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixShmSocket_native_1read
+  (JNIEnv *env, jclass c, jobject map, jint side, jint bell, jint peerbell, jint sock, jobject buf, jint off,
+   jint len, jboolean block, jint timeout)
+{
+   char *base = (*env)->GetDirectBufferAddress(env, map);
+   struct shmring ring;
+   struct timespec end;
+   shmring(base, (*env)->GetDirectBufferCapacity(env, map), 1 - side, &ring);
+   jbyte *direct = (*env)->GetDirectBufferAddress(env, buf);
+   uint32_t *waiting = shmword(base, SHM_DATA_WAITING(side));
+   int hangup = 0;
+   if (timeout > 0) {
+      clock_gettime(CLOCK_MONOTONIC, &end);
+      end.tv_sec += timeout / 1000;
+      end.tv_nsec += (timeout % 1000) * 1000000L;
+      if (end.tv_nsec >= 1000000000L) { end.tv_sec++; end.tv_nsec -= 1000000000L; }
+   }
+   for (;;) {
+      uint64_t head = *ring.head;
+      uint64_t tail = __atomic_load_n(ring.tail, __ATOMIC_ACQUIRE);
+      if (-1 == shmcheck(env, base, side, bell, peerbell, &ring, head, tail)) return SHM_AGAIN;
+      if (tail != head) {
+         jint n = tail - head < (uint64_t) len ? (jint) (tail - head) : len;
+         shmcopy(env, &ring, head, buf, direct, off, n, 1);
+         __atomic_store_n(ring.head, head + n, __ATOMIC_RELEASE);
+         __atomic_thread_fence(__ATOMIC_SEQ_CST);
+         if (__atomic_load_n(shmword(base, SHM_SPACE_WAITING(1 - side)), __ATOMIC_RELAXED))
+            shmring_bell(peerbell);
+         return n;
+      }
+      if (__atomic_load_n(shmword(base, SHM_CLOSED(side)), __ATOMIC_ACQUIRE)) return SHM_CLOSED_LOCALLY;
+      if (hangup || __atomic_load_n(shmword(base, SHM_CLOSED(1 - side)), __ATOMIC_ACQUIRE)) return SHM_EOF;
+      if (!block) return SHM_AGAIN;
+      __atomic_store_n(waiting, 1, __ATOMIC_RELAXED);
+      __atomic_thread_fence(__ATOMIC_SEQ_CST);
+      if (head == __atomic_load_n(ring.tail, __ATOMIC_ACQUIRE)
+            && !__atomic_load_n(shmword(base, SHM_CLOSED(side)), __ATOMIC_ACQUIRE)
+            && !__atomic_load_n(shmword(base, SHM_CLOSED(1 - side)), __ATOMIC_ACQUIRE)) {
+         int rv = shmwait(env, bell, sock, timeout, &end);
+         if (-1 == rv) { __atomic_store_n(waiting, 0, __ATOMIC_RELAXED); return SHM_AGAIN; }
+         hangup = rv;
+      }
+      __atomic_store_n(waiting, 0, __ATOMIC_RELAXED);
+   }
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixShmSocket
+ * Method:    native_write
+ * Signature: (Ljava/nio/ByteBuffer;IIIILjava/lang/Object;IIZ)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixShmSocket_native_1write
+  (JNIEnv *env, jclass c, jobject map, jint side, jint bell, jint peerbell, jint sock, jobject buf, jint off,
+   jint len, jboolean block)
+{
+   char *base = (*env)->GetDirectBufferAddress(env, map);
+   struct shmring ring;
+   shmring(base, (*env)->GetDirectBufferCapacity(env, map), side, &ring);
+   jbyte *direct = (*env)->GetDirectBufferAddress(env, buf);
+   uint32_t *waiting = shmword(base, SHM_SPACE_WAITING(side));
+   int hangup = 0;
+   for (;;) {
+      if (__atomic_load_n(shmword(base, SHM_CLOSED(side)), __ATOMIC_ACQUIRE)) return SHM_CLOSED_LOCALLY;
+      if (hangup || __atomic_load_n(shmword(base, SHM_CLOSED(1 - side)), __ATOMIC_ACQUIRE)) {
+         throw(env, EPIPE, strerror(EPIPE));
+         return SHM_AGAIN;
+      }
+      uint64_t tail = *ring.tail;
+      uint64_t head = __atomic_load_n(ring.head, __ATOMIC_ACQUIRE);
+      if (-1 == shmcheck(env, base, side, bell, peerbell, &ring, head, tail)) return SHM_AGAIN;
+      uint64_t space = ring.cap - (tail - head);
+      if (space > 0) {
+         jint n = space < (uint64_t) len ? (jint) space : len;
+         shmcopy(env, &ring, tail, buf, direct, off, n, 0);
+         if ((*env)->ExceptionCheck(env)) return SHM_AGAIN;
+         __atomic_store_n(ring.tail, tail + n, __ATOMIC_RELEASE);
+         __atomic_thread_fence(__ATOMIC_SEQ_CST);
+         if (__atomic_load_n(shmword(base, SHM_DATA_WAITING(1 - side)), __ATOMIC_RELAXED))
+            shmring_bell(peerbell);
+         return n;
+      }
+      if (!block) return SHM_AGAIN;
+      __atomic_store_n(waiting, 1, __ATOMIC_RELAXED);
+      __atomic_thread_fence(__ATOMIC_SEQ_CST);
+      if (head == __atomic_load_n(ring.head, __ATOMIC_ACQUIRE)
+            && !__atomic_load_n(shmword(base, SHM_CLOSED(side)), __ATOMIC_ACQUIRE)
+            && !__atomic_load_n(shmword(base, SHM_CLOSED(1 - side)), __ATOMIC_ACQUIRE)) {
+         int rv = shmwait(env, bell, sock, 0, NULL);
+         if (-1 == rv) { __atomic_store_n(waiting, 0, __ATOMIC_RELAXED); return SHM_AGAIN; }
+         hangup = rv;
+      }
+      __atomic_store_n(waiting, 0, __ATOMIC_RELAXED);
+   }
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixShmSocket
+ * Method:    native_shutdown
+ * Signature: (Ljava/nio/ByteBuffer;I[I)V
+ * Marks this side as closed and wakes all waiting threads on both sides.
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixShmSocket_native_1shutdown
+  (JNIEnv *env, jclass c, jobject map, jint side, jintArray bells)
+{
+   char *base = (*env)->GetDirectBufferAddress(env, map);
+   jint cbells[4];
+   int i;
+   __atomic_store_n(shmword(base, SHM_CLOSED(side)), 1, __ATOMIC_RELEASE);
+   __atomic_thread_fence(__ATOMIC_SEQ_CST);
+   (*env)->GetIntArrayRegion(env, bells, 0, 4, cbells);
+   for (i = 0; i < 4; i++) shmring_bell(cbells[i]);
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixShmSocket
+ * Method:    native_close_fd
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixShmSocket_native_1close_1fd
+  (JNIEnv *env, jclass c, jint fd)
+{
+   close(fd);
+}
+
+#define RELAY_CHUNK 65536
+
+struct relaydir {
+   int from;
+   int to;
+   int pipe[2];
+   size_t pending;
+   int eof;
+};
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSocket
+ * Method:    native_relay
+ * Signature: (II[J)V
+ * Moves data in both directions through a pipe per direction with splice(),
+ * until one side reaches end-of-stream or its peer has gone. The pipe of
+ * that direction is then drained and the writing side of the other socket
+ * shut down. Data already moved into the pipe of the other direction is
+ * delivered as well before returning. The byte counts are added to counts[0]
+ * (a to b) and counts[1] (b to a).
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1relay
+  (JNIEnv *env, jclass c, jint a, jint b, jlongArray counts)
+{
+   struct relaydir dir[2] = { { a, b, { -1, -1 }, 0, 0 }, { b, a, { -1, -1 }, 0, 0 } };
+   jlong moved[2] = { 0, 0 };
+   int aflags = fcntl(a, F_GETFL);
+   int bflags = fcntl(b, F_GETFL);
+   int i, done = 0, err = 0;
+   if (-1 == aflags || -1 == bflags) { handleerrno(env); return; }
+   for (i = 0; i < 2; i++)
+      if (-1 == pipe2(dir[i].pipe, O_CLOEXEC | O_NONBLOCK)) { err = errno; goto out; }
+   if (-1 == fcntl(a, F_SETFL, aflags | O_NONBLOCK) || -1 == fcntl(b, F_SETFL, bflags | O_NONBLOCK)) {
+      err = errno;
+      goto out;
+   }
+   while (!done) {
+      struct pollfd pfd[2];
+      for (i = 0; i < 2; i++) {
+         pfd[i].fd = dir[i].from;
+         pfd[i].events = 0;
+         pfd[i].revents = 0;
+      }
+      for (i = 0; i < 2; i++) {
+         if (!dir[i].eof && 0 == dir[i].pending) pfd[i].events |= POLLIN | POLLRDHUP;
+         /* the destination of direction i is the source of the other direction */
+         if (0 < dir[i].pending) pfd[1 - i].events |= POLLOUT;
+      }
+      if (-1 == poll(pfd, 2, -1)) {
+         if (EINTR == errno) continue;
+         err = errno;
+         break;
+      }
+      for (i = 0; i < 2 && !done; i++) {
+         if (!dir[i].eof && 0 == dir[i].pending && 0 != pfd[i].revents) {
+            ssize_t n = splice(dir[i].from, NULL, dir[i].pipe[1], NULL, RELAY_CHUNK,
+                  SPLICE_F_MOVE | SPLICE_F_NONBLOCK);
+            if (0 == n) dir[i].eof = 1;
+            else if (0 < n) dir[i].pending = n;
+            else if (ECONNRESET == errno) dir[i].eof = 1;
+            else if (EAGAIN != errno && EINTR != errno) { err = errno; break; }
+         }
+         while (0 < dir[i].pending) {
+            ssize_t n = splice(dir[i].pipe[0], NULL, dir[i].to, NULL, dir[i].pending,
+                  SPLICE_F_MOVE | SPLICE_F_NONBLOCK);
+            if (0 < n) {
+               dir[i].pending -= n;
+               moved[i] += n;
+            } else if (-1 == n && (EPIPE == errno || ECONNRESET == errno)) {
+               /* the receiving peer has gone */
+               done = 1;
+               break;
+            } else if (-1 == n && EINTR == errno) {
+               continue;
+            } else if (-1 == n && EAGAIN != errno) {
+               err = errno;
+               break;
+            } else {
+               break;
+            }
+         }
+         if (err) break;
+         if (dir[i].eof && 0 == dir[i].pending) {
+            shutdown(dir[i].to, SHUT_WR);
+            done = 1;
+         }
+      }
+      if (err) break;
+   }
+   /* the pipes are closed below, anything left in them would be lost */
+   for (i = 0; i < 2 && !err; i++) {
+      while (0 < dir[i].pending) {
+         ssize_t n = splice(dir[i].pipe[0], NULL, dir[i].to, NULL, dir[i].pending,
+               SPLICE_F_MOVE | SPLICE_F_NONBLOCK);
+         if (0 < n) {
+            dir[i].pending -= n;
+            moved[i] += n;
+         } else if (-1 == n && EAGAIN == errno) {
+            struct pollfd pfd = { dir[i].to, POLLOUT, 0 };
+            if (-1 == poll(&pfd, 1, -1) && EINTR != errno) { err = errno; break; }
+         } else if (-1 == n && EINTR == errno) {
+            continue;
+         } else if (0 == n || EPIPE == errno || ECONNRESET == errno) {
+            /* the receiving peer has gone */
+            break;
+         } else {
+            err = errno;
+            break;
+         }
+      }
+   }
+out:
+   fcntl(a, F_SETFL, aflags);
+   fcntl(b, F_SETFL, bflags);
+   for (i = 0; i < 2; i++) {
+      if (-1 != dir[i].pipe[0]) close(dir[i].pipe[0]);
+      if (-1 != dir[i].pipe[1]) close(dir[i].pipe[1]);
+   }
+   jlong total[2];
+   (*env)->GetLongArrayRegion(env, counts, 0, 2, total);
+   total[0] += moved[0];
+   total[1] += moved[1];
+   (*env)->SetLongArrayRegion(env, counts, 0, 2, total);
+   if (err) throw(env, err, strerror(err));
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSocket
+ * Method:    native_channel_fd
+ * Signature: (Ljava/nio/channels/FileChannel;)I
+ * Returns the descriptor of a JDK file channel, read from its private fd
+ * field, or -1 for other implementations.
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1channel_1fd
+  (JNIEnv *env, jclass c, jobject channel)
+{
+   jclass cls = (*env)->GetObjectClass(env, channel);
+   jfieldID fid = (*env)->GetFieldID(env, cls, "fd", "Ljava/io/FileDescriptor;");
+   if (NULL == fid) {
+      (*env)->ExceptionClear(env);
+      return -1;
+   }
+   jobject fdo = (*env)->GetObjectField(env, channel, fid);
+   if (NULL == fdo) return -1;
+   return getfd(env, fdo);
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSocket
+ * Method:    native_sendfile
+ * Signature: (IIJJZ)J
+ * Sends up to count bytes of the file starting at position with
+ * sendfile(). In blocking mode this only returns early at the end of the
+ * file.
+ */
+JNIEXPORT jlong JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1sendfile
+  (JNIEnv *env, jclass c, jint sock, jint fd, jlong position, jlong count, jboolean block)
+{
+   off_t off = position;
+   jlong total = 0;
+   /*
+    * sendfile has no MSG_DONTWAIT, so a non-blocking socket is switched to
+    * O_NONBLOCK for the duration of the call. Other calls on the socket in
+    * non-blocking mode use MSG_DONTWAIT anyway, so they are not affected.
+    */
+   int flags = 0;
+   if (!block) {
+      flags = fcntl(sock, F_GETFL);
+      if (-1 == flags) { handleerrno(env); return -1; }
+      if (!(flags & O_NONBLOCK) && -1 == fcntl(sock, F_SETFL, flags | O_NONBLOCK)) { handleerrno(env); return -1; }
+   }
+   while (total < count) {
+      ssize_t n = sendfile(sock, fd, &off, count - total > SSIZE_MAX ? SSIZE_MAX : (size_t) (count - total));
+      if (0 == n) break;
+      if (-1 == n) {
+         if (EINTR == errno) continue;
+         if (EAGAIN != errno && 0 == total) handleerrno(env);
+         break;
+      }
+      total += n;
+   }
+   if (!block && !(flags & O_NONBLOCK)) fcntl(sock, F_SETFL, flags);
+   return (*env)->ExceptionCheck(env) ? -1 : total;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSocket
+ * Method:    native_splice_to_file
+ * Signature: (IIJJZI)J
+ * Receives up to count bytes into the file starting at position, through a
+ * pipe with splice(). In blocking mode this only returns early at
+ * end-of-stream. Returns -1 if end-of-stream is reached before any data.
+ */
+JNIEXPORT jlong JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1splice_1to_1file
+  (JNIEnv *env, jclass c, jint sock, jint fd, jlong position, jlong count, jboolean block, jint timeout)
+{
+   int p[2];
+   loff_t off = position;
+   jlong total = 0;
+   int eof = 0;
+   if (-1 == pipe2(p, O_CLOEXEC)) { handleerrno(env); return -1; }
+   while (total < count) {
+      if (block && timeout > 0 && -1 == waitreadable(env, sock, timeout)) {
+         /* bytes already written to the file must be reported, not lost with the timeout */
+         if (0 < total) (*env)->ExceptionClear(env);
+         break;
+      }
+      ssize_t n = splice(sock, NULL, p[1], NULL, count - total > RELAY_CHUNK ? RELAY_CHUNK : (size_t) (count - total),
+            SPLICE_F_MOVE | (block ? 0 : SPLICE_F_NONBLOCK));
+      if (0 == n) { eof = 1; break; }
+      if (-1 == n) {
+         if (EINTR == errno) continue;
+         if (EAGAIN != errno && 0 == total) handleerrno(env);
+         break;
+      }
+      while (0 < n) {
+         ssize_t m = splice(p[0], NULL, fd, &off, n, SPLICE_F_MOVE);
+         if (-1 == m && EINTR == errno) continue;
+         if (0 >= m) {
+            /* the data already in the pipe is lost, so report the error */
+            if (0 == m) errno = EIO;
+            handleerrno(env);
+            close(p[0]);
+            close(p[1]);
+            return -1;
+         }
+         n -= m;
+         total += m;
+      }
+   }
+   close(p[0]);
+   close(p[1]);
+   return eof && 0 == total ? -1 : total;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixServerSocket
+ * Method:    native_accept_batch
+ * Signature: (I[IZ)I
+ * Accepts pending connections until fds is full or none is left. In
+ * blocking mode only the first accept waits. Connections which have been
+ * accepted are always returned, an error is only raised if there are none.
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixServerSocket_native_1accept_1batch
+  (JNIEnv *env, jobject o, jint sock, jintArray fds, jboolean block)
+{
+   jsize len = (*env)->GetArrayLength(env, fds);
+   jint stackfds[64];
+   jint *cfds = len <= 64 ? stackfds : malloc(len * sizeof(jint));
+   jint n = 0;
+   if (NULL == cfds) { throw(env, ENOMEM, strerror(ENOMEM)); return -1; }
+   while (n < len) {
+      if (block && 0 < n) {
+         /* the socket is in blocking mode, so only accept what is pending */
+         struct pollfd pfd;
+         pfd.fd = sock;
+         pfd.events = POLLIN;
+         if (1 != poll(&pfd, 1, 0)) break;
+      }
+      int newsock = accept4(sock, NULL, NULL, SOCK_CLOEXEC);
+      if (-1 == newsock) {
+         if (EINTR == errno || ECONNABORTED == errno) continue;
+         if (0 == n) {
+            handleerrno(env);
+            n = -1;
+         }
+         break;
+      }
+      cfds[n++] = newsock;
+   }
+   if (0 < n) (*env)->SetIntArrayRegion(env, fds, 0, n, cfds);
+   if (cfds != stackfds) free(cfds);
+   return n;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSocket
+ * Method:    native_recvmsg
+ * Signature: (ILcx/ath/matthew/unix/UnixMessage;III)I
+ * Receives into a message together with the credentials attached by the
+ * kernel if SO_PASSCRED is enabled. Returns 0 at end-of-stream and -1 if no
+ * data is available.
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1recvmsg
+  (JNIEnv *env, jobject o, jint sock, jobject m, jint heap, jint flags, jint timeout)
+{
+   struct msghdr msg;
+   struct iovec iov;
+   char control[MMSG_CONTROL];
+   if (-1 == msgfields(env)) return -1;
+   jobject base = (*env)->GetObjectField(env, m, msgbase);
+   jint offs = (*env)->GetIntField(env, m, msgoffset);
+   jint len = (*env)->GetIntField(env, m, msglength);
+   char* addr = (*env)->GetDirectBufferAddress(env, base);
+   char* scratch = NULL;
+   if (NULL == addr) {
+      scratch = malloc(0 < heap ? heap : 1);
+      if (NULL == scratch) { throw(env, ENOMEM, strerror(ENOMEM)); return -1; }
+      iov.iov_base = scratch;
+   } else
+      iov.iov_base = addr + offs;
+   iov.iov_len = len;
+   memset(&msg, 0, sizeof(msg));
+   msg.msg_iov = &iov;
+   msg.msg_iovlen = 1;
+   msg.msg_control = control;
+   msg.msg_controllen = sizeof(control);
+
+   if (!(flags & MSG_DONTWAIT) && timeout > 0)
+      if (-1 == waitreadable(env, sock, timeout)) { free(scratch); return -1; }
+   int rv = recvmsg(sock, &msg, flags | MSG_CMSG_CLOEXEC);
+   if (-1 == rv) { free(scratch); handleerrno(env); return -1; }
+
+   if (NULL != scratch && 0 < rv) (*env)->SetByteArrayRegion(env, base, offs, rv, (jbyte*) scratch);
+   free(scratch);
+   (*env)->DeleteLocalRef(env, base);
+   (*env)->SetIntField(env, m, msglength, rv);
+   (*env)->SetBooleanField(env, m, msgtruncated, (msg.msg_flags & MSG_TRUNC) ? JNI_TRUE : JNI_FALSE);
+#ifdef SCM_CREDENTIALS
+   struct cmsghdr *cmsg;
+   for (cmsg = CMSG_FIRSTHDR(&msg); cmsg != NULL; cmsg = CMSG_NXTHDR(&msg, cmsg)) {
+      if (cmsg->cmsg_level == SOL_SOCKET && cmsg->cmsg_type == SCM_CREDENTIALS) {
+         struct ucred *creds = (struct ucred *) CMSG_DATA(cmsg);
+         (*env)->SetIntField(env, m, msgpid, creds->pid);
+         (*env)->SetIntField(env, m, msguid, creds->uid);
+         (*env)->SetIntField(env, m, msggid, creds->gid);
+         break;
+      }
+   }
+#endif
+   return rv;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixServerSocket
+ * Method:    native_getpid
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixServerSocket_native_1getpid
+  (JNIEnv *env, jclass c)
+{
+   return getpid();
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixServerSocket
+ * Method:    native_inspect
+ * Signature: (I[I)Ljava/lang/String;
+ * Checks an inherited descriptor. Stores the socket type, or -1 if it is not
+ * a listening unix stream or seqpacket socket, whether the address is
+ * abstract, and whether the socket is non-blocking. Returns the address,
+ * and sets the close-on-exec flag.
+ */
+JNIEXPORT jstring JNICALL Java_cx_ath_matthew_unix_UnixServerSocket_native_1inspect
+  (JNIEnv *env, jclass c, jint fd, jintArray info)
+{
+   jint cinfo[3] = { -1, 0, 0 };
+   struct sockaddr_un sad;
+   socklen_t salen = sizeof(sad);
+   int type, listening;
+   socklen_t optlen = sizeof(int);
+   jstring path = NULL;
+   if (-1 == fcntl(fd, F_SETFD, FD_CLOEXEC)) { handleerrno(env); return NULL; }
+   memset(&sad, 0, sizeof(sad));
+   if (0 == getsockname(fd, (struct sockaddr*) &sad, &salen) && AF_UNIX == sad.sun_family
+         && 0 == getsockopt(fd, SOL_SOCKET, SO_TYPE, &type, &optlen)
+         && 0 == getsockopt(fd, SOL_SOCKET, SO_ACCEPTCONN, &listening, &optlen) && listening
+         && (SOCK_STREAM == type || SOCK_SEQPACKET == type)) {
+      cinfo[0] = SOCK_STREAM == type ? TYPE_STREAM : TYPE_SEQPACKET;
+      size_t len = salen - offsetof(struct sockaddr_un, sun_path);
+      if (0 < len && '\0' == sad.sun_path[0]) {
+         /* abstract names are not terminated */
+         char name[sizeof(sad.sun_path)];
+         memcpy(name, sad.sun_path + 1, len - 1);
+         name[len - 1] = '\0';
+         cinfo[1] = 1;
+         path = (*env)->NewStringUTF(env, name);
+      } else {
+         sad.sun_path[sizeof(sad.sun_path) - 1] = '\0';
+         path = (*env)->NewStringUTF(env, sad.sun_path);
+      }
+      int fl = fcntl(fd, F_GETFL);
+      cinfo[2] = -1 != fl && (fl & O_NONBLOCK) ? 1 : 0;
+   }
+   (*env)->SetIntArrayRegion(env, info, 0, 3, cinfo);
+   return path;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSocket
+ * Method:    native_socketpair
+ * Signature: (I[I)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1socketpair
+  (JNIEnv *env, jclass c, jint type, jintArray fds)
+{
+   int sv[2];
+   if (-1 == socketpair(PF_UNIX, socktype(type) | SOCK_CLOEXEC, 0, sv)) { handleerrno(env); return; }
+   jint csv[2] = { sv[0], sv[1] };
+   (*env)->SetIntArrayRegion(env, fds, 0, 2, csv);
+}
+
+/* the descriptor the socket is passed as to a spawned child */
+#define SPAWN_FD 3
+
+#if defined(__GLIBC__) && (__GLIBC__ > 2 || (__GLIBC__ == 2 && __GLIBC_MINOR__ >= 34))
+#define HAVE_ADDCLOSEFROM 1
+#endif
+
+/*
+ * posix_spawnp() with fd as SPAWN_FD and all descriptors above it closed in
+ * the child, so that descriptors the JVM or other libraries opened without
+ * close-on-exec do not leak. Without posix_spawn_file_actions_addclosefrom_np
+ * (glibc before 2.34, other libcs) the child is forked and closes them with
+ * close_range, or one by one on older kernels; an exec failure is reported
+ * back through a close-on-exec pipe. Returns 0 or an error number.
+ */
+int spawnclosing(pid_t *pid, char **argv, int fd)
+{
+   extern char **environ;
+#ifdef HAVE_ADDCLOSEFROM
+   posix_spawn_file_actions_t actions;
+   int rv;
+   posix_spawn_file_actions_init(&actions);
+   posix_spawn_file_actions_adddup2(&actions, fd, SPAWN_FD);
+   posix_spawn_file_actions_addclosefrom_np(&actions, SPAWN_FD + 1);
+   rv = posix_spawnp(pid, argv[0], &actions, NULL, argv, environ);
+   posix_spawn_file_actions_destroy(&actions);
+   return rv;
+#else
+   int p[2], err = 0;
+   long max = sysconf(_SC_OPEN_MAX);
+   if (-1 == pipe2(p, O_CLOEXEC)) return errno;
+   *pid = fork();
+   if (-1 == *pid) { err = errno; close(p[0]); close(p[1]); return err; }
+   if (0 == *pid) {
+      /* only async-signal-safe calls from here on */
+      if (-1 != dup2(fd, SPAWN_FD)) {
+         /* keep the error pipe, it is closed by the exec */
+         if (p[1] > SPAWN_FD + 1) syscall(__NR_close_range, SPAWN_FD + 1, p[1] - 1, 0);
+         if (-1 == syscall(__NR_close_range, p[1] + 1, ~0U, 0)) {
+            long f;
+            for (f = SPAWN_FD + 1; f < max; f++)
+               if (f != p[1]) close(f);
+         }
+         execvp(argv[0], argv);
+      }
+      err = errno;
+      while (-1 == write(p[1], &err, sizeof(err)) && EINTR == errno);
+      _exit(127);
+   }
+   close(p[1]);
+   ssize_t n;
+   while (-1 == (n = read(p[0], &err, sizeof(err))) && EINTR == errno);
+   close(p[0]);
+   if (sizeof(err) != n) return 0;
+   while (-1 == waitpid(*pid, NULL, 0) && EINTR == errno);
+   return err;
+#endif
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixChildProcess
+ * Method:    native_spawn
+ * Signature: ([Ljava/lang/String;I)I
+ * Starts the command, searched in PATH, with the given descriptor as
+ * descriptor 3. Standard input, output and error and the environment are
+ * inherited, all other descriptors are closed in the child. On success the
+ * descriptor is closed in this process, without shutting the socket down.
+ * Returns the pid.
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixChildProcess_native_1spawn
+  (JNIEnv *env, jclass c, jobjectArray command, jint fd)
+{
+   jsize argc = (*env)->GetArrayLength(env, command);
+   char **argv = calloc(argc + 1, sizeof(char*));
+   jsize i;
+   pid_t pid = -1;
+   int tmp = -1, rv;
+   if (NULL == argv) { throw(env, ENOMEM, strerror(ENOMEM)); return -1; }
+   for (i = 0; i < argc; i++) {
+      jstring s = (*env)->GetObjectArrayElement(env, command, i);
+      const char *cs = (*env)->GetStringUTFChars(env, s, NULL);
+      if (NULL == cs) goto out;
+      argv[i] = strdup(cs);
+      (*env)->ReleaseStringUTFChars(env, s, cs);
+      (*env)->DeleteLocalRef(env, s);
+      if (NULL == argv[i]) { throw(env, ENOMEM, strerror(ENOMEM)); goto out; }
+   }
+   /* move the descriptor out of the way first, dup2() onto itself would keep FD_CLOEXEC */
+   tmp = fcntl(fd, F_DUPFD_CLOEXEC, SPAWN_FD + 1);
+   if (-1 == tmp) { handleerrno(env); goto out; }
+   rv = spawnclosing(&pid, argv, tmp);
+   if (0 != rv) {
+      pid = -1;
+      throw(env, rv, strerror(rv));
+   } else
+      close(fd);
+out:
+   if (-1 != tmp) close(tmp);
+   for (i = 0; i < argc; i++) free(argv[i]);
+   free(argv);
+   return pid;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixChildProcess
+ * Method:    native_waitpid
+ * Signature: (I)I
+ * Waits for the process to exit. Returns the exit code, or 128 plus the
+ * signal number if it was killed by a signal.
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixChildProcess_native_1waitpid
+  (JNIEnv *env, jclass c, jint pid)
+{
+   int status;
+   while (-1 == waitpid(pid, &status, 0)) {
+      if (EINTR != errno) { handleerrno(env); return -1; }
+   }
+   if (WIFEXITED(status)) return WEXITSTATUS(status);
+   if (WIFSIGNALED(status)) return 128 + WTERMSIG(status);
+   return status;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixChildProcess
+ * Method:    native_kill
+ * Signature: (II)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixChildProcess_native_1kill
+  (JNIEnv *env, jclass c, jint pid, jint sig)
+{
+   if (-1 == kill(pid, sig) && ESRCH != errno) handleerrno(env);
+}
+
 #ifdef __cplusplus
 }
 #endif
@@ -0,0 +1,255 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package cx.ath.matthew.unix;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedSelectorException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The epoll fallback of {@link UnixAsyncGroup}, for kernels without io_uring.
+ *
+ * An operation is tried straight away without blocking. If it would block, it
+ * is queued and the socket is armed for readiness with a one-shot
+ * registration; the poller thread retries the queued operations of a socket
+ * in order once it is ready.
+ */
+final class AsyncPoller implements Runnable {
+    /**
+     * An operation which is retried until it does not block. Operations are
+     * attempted with the poller lock held, but completed after it has been
+     * released, so that code run by the completion can submit to any poller.
+     */
+    abstract static class Op {
+        final int fd;
+        final boolean read;
+        private IOException error = null;
+
+        Op(final int fd, final boolean read) {
+            this.fd = fd;
+            this.read = read;
+        }
+
+        /**
+         * Try the operation without blocking and keep the result if done.
+         *
+         * @param ready true if the poller reported the socket as ready
+         * @return false if the operation would block
+         * @throws IOException if the operation failed
+         */
+        abstract boolean attempt(boolean ready) throws IOException;
+
+        /**
+         * Complete the operation with the result kept by {@link #attempt(boolean)}.
+         */
+        abstract void complete();
+
+        abstract void fail(IOException e);
+
+        private boolean tryAttempt(final boolean ready) {
+            try {
+                return attempt(ready);
+            } catch (final IOException e) {
+                error = e;
+                return true;
+            }
+        }
+
+        private void finish() {
+            if (null != error) {
+                fail(error);
+            } else {
+                complete();
+            }
+        }
+    }
+
+    private static class Pending {
+        final ArrayDeque<Op> reads = new ArrayDeque<>();
+        final ArrayDeque<Op> writes = new ArrayDeque<>();
+    }
+
+    private final UnixSelector selector;
+    private final Map<Integer, Pending> pending = new HashMap<>();
+    private boolean closed = false;
+    private IOException failure = null;
+
+    AsyncPoller(final String name) throws IOException {
+        selector = new UnixSelector();
+        final Thread t = new Thread(this, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    void submit(final Op op) {
+        final List<Op> done = new ArrayList<>(1);
+        synchronized (this) {
+            if (closed) {
+                op.error = null != failure ? failure : new AsynchronousCloseException();
+                done.add(op);
+            } else {
+                Pending p = pending.get(op.fd);
+                if (null == p) {
+                    p = new Pending();
+                }
+                final ArrayDeque<Op> q = op.read ? p.reads : p.writes;
+                if (q.isEmpty() && op.tryAttempt(false)) {
+                    done.add(op);
+                } else {
+                    q.add(op);
+                    pending.put(op.fd, p);
+                    arm(op.fd, p, done);
+                }
+            }
+        }
+        finish(done);
+    }
+
+    // must be called with the poller lock held
+    private void arm(final int fd, final Pending p, final List<Op> done) {
+        final int ops = (p.reads.isEmpty() ? 0 : UnixSelector.OP_READ)
+                | (p.writes.isEmpty() ? 0 : UnixSelector.OP_WRITE) | UnixSelector.ONESHOT;
+        try {
+            try {
+                selector.modify(fd, ops);
+            } catch (final UnixIOException e) {
+                // not yet registered, or closed and registered again under the same number
+                selector.register(fd, ops);
+            }
+        } catch (final IOException e) {
+            pending.remove(fd);
+            failQueued(p, e, done);
+        }
+    }
+
+    private static void run(final ArrayDeque<Op> q, final List<Op> done) {
+        while (!q.isEmpty() && q.peek().tryAttempt(true)) {
+            done.add(q.poll());
+        }
+    }
+
+    private static void finish(final List<Op> done) {
+        for (final Op op : done) {
+            op.finish();
+        }
+    }
+
+    @Override
+    public void run() {
+        final int[] ready = new int[2 * 256];
+        final List<Op> done = new ArrayList<>();
+        for (;;) {
+            final int n;
+            try {
+                n = selector.select(ready, -1);
+            } catch (final ClosedSelectorException e) {
+                break;
+            } catch (final IOException e) {
+                // the selector is broken, fail everything instead of retrying
+                close(e);
+                break;
+            }
+            synchronized (this) {
+                if (closed) {
+                    break;
+                }
+                for (int i = 0; i < n; i++) {
+                    final int fd = ready[2 * i];
+                    final int ops = ready[2 * i + 1];
+                    final Pending p = pending.get(fd);
+                    if (null == p) {
+                        continue;
+                    }
+                    final boolean hangup = 0 != (ops & UnixSelector.OP_HANGUP);
+                    if (hangup || 0 != (ops & UnixSelector.OP_READ)) {
+                        run(p.reads, done);
+                    }
+                    if (hangup || 0 != (ops & UnixSelector.OP_WRITE)) {
+                        run(p.writes, done);
+                    }
+                    if (p.reads.isEmpty() && p.writes.isEmpty()) {
+                        pending.remove(fd);
+                    } else {
+                        arm(fd, p, done);
+                    }
+                }
+            }
+            finish(done);
+            done.clear();
+        }
+        try {
+            selector.close();
+        } catch (final IOException e) {
+            // nothing left to clean up
+        }
+    }
+
+    private static void failQueued(final Pending p, final IOException e, final List<Op> done) {
+        for (final Op op : p.reads) {
+            op.error = e;
+            done.add(op);
+        }
+        for (final Op op : p.writes) {
+            op.error = e;
+            done.add(op);
+        }
+    }
+
+    /**
+     * Stop the poller thread and fail all outstanding operations.
+     */
+    void close() {
+        close(null);
+    }
+
+    private void close(final IOException cause) {
+        final List<Op> done = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            failure = cause;
+            for (final Pending p : pending.values()) {
+                failQueued(p, null != cause ? cause : new AsynchronousCloseException(), done);
+            }
+            pending.clear();
+        }
+        finish(done);
+        if (null != cause) {
+            return;
+        }
+        try {
+            // the poller thread closes the selector
+            selector.wakeup();
+        } catch (final IOException e) {
+            // the poller thread has already stopped
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package cx.ath.matthew.unix;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Selects how sockets are implemented.
+ *
+ * The JNI backend in libunix-java supports everything. On JDK 16 and later,
+ * plain stream sockets on a path can also use the unix domain socket channels
+ * of java.nio, which need no native library. The backend is chosen once, with
+ * the system property {@value #PROPERTY}:
+ * <ul>
+ * <li>{@code jni} - always use libunix-java, fail if it cannot be loaded</li>
+ * <li>{@code jdk} - use java.nio for plain stream sockets, and libunix-java,
+ * if available, for everything else</li>
+ * <li>{@code auto} (default) - use libunix-java if it can be loaded,
+ * otherwise java.nio</li>
+ * </ul>
+ * The java.nio classes are looked up reflectively, the module targets Java 8.
+ */
+final class Backend {
+    static final String PROPERTY = "cx.ath.matthew.unix.backend";
+
+    /**
+     * Whether libunix-java has been loaded.
+     */
+    static final boolean NATIVE;
+
+    /**
+     * Whether plain stream sockets use java.nio channels.
+     */
+    static final boolean CHANNELS;
+
+    private static final ProtocolFamily UNIX;
+    private static final Method ADDRESS_OF;
+    private static final Method ADDRESS_PATH;
+    private static final Method OPEN_SOCKET;
+    private static final Method OPEN_SERVER;
+
+    static {
+        ProtocolFamily unix = null;
+        Method of = null;
+        Method path = null;
+        Method socket = null;
+        Method server = null;
+        try {
+            unix = StandardProtocolFamily.valueOf("UNIX");
+            final Class<?> cls = Class.forName("java.net.UnixDomainSocketAddress");
+            of = cls.getMethod("of", String.class);
+            path = cls.getMethod("getPath");
+            socket = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            server = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+        } catch (final IllegalArgumentException | ReflectiveOperationException e) {
+            unix = null;
+        }
+        UNIX = unix;
+        ADDRESS_OF = of;
+        ADDRESS_PATH = path;
+        OPEN_SOCKET = socket;
+        OPEN_SERVER = server;
+
+        final String choice = System.getProperty(PROPERTY, "auto");
+        final boolean jdk = null != UNIX;
+        UnsatisfiedLinkError error = null;
+        boolean loaded = false;
+        try {
+            System.loadLibrary("unix-java");
+            loaded = true;
+        } catch (final UnsatisfiedLinkError e) {
+            error = e;
+        }
+        if (!loaded && ("jni".equals(choice) || !jdk)) {
+            throw error;
+        }
+        NATIVE = loaded;
+        CHANNELS = jdk && ("jdk".equals(choice) || !loaded);
+    }
+
+    private Backend() {
+    }
+
+    /**
+     * Make sure the backend has been chosen and libunix-java loaded if needed.
+     * All the work is done by the static initializer.
+     */
+    static void init() {
+    }
+
+    /**
+     * Check whether a socket uses a java.nio channel.
+     *
+     * @param address the address to connect or bind to
+     * @param type the socket type
+     * @return true for a channel, false for libunix-java
+     * @throws UnsupportedOperationException if the socket needs libunix-java,
+     *             which is not available
+     */
+    static boolean useChannel(final UnixSocketAddress address, final int type) {
+        if (!CHANNELS) {
+            return false;
+        }
+        if (UnixSocket.SOCK_STREAM == type && !address.abs) {
+            return true;
+        }
+        if (NATIVE) {
+            return false;
+        }
+        throw new UnsupportedOperationException("Abstract and seqpacket sockets require libunix-java");
+    }
+
+    static SocketChannel openChannel(final UnixSocketAddress address) throws IOException {
+        final SocketChannel channel = (SocketChannel) invoke(OPEN_SOCKET, null, UNIX);
+        try {
+            channel.connect(toSocketAddress(address));
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    static ServerSocketChannel openServerChannel(final UnixSocketAddress address, final int backlog)
+            throws IOException {
+        final ServerSocketChannel channel = (ServerSocketChannel) invoke(OPEN_SERVER, null, UNIX);
+        try {
+            channel.bind(toSocketAddress(address), backlog);
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    static SocketAddress toSocketAddress(final UnixSocketAddress address) throws IOException {
+        return (SocketAddress) invoke(ADDRESS_OF, null, address.path);
+    }
+
+    static UnixSocketAddress toUnixSocketAddress(final SocketAddress address) throws IOException {
+        return new UnixSocketAddress(invoke(ADDRESS_PATH, address).toString());
+    }
+
+    static UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException("Not supported by the java.nio backend");
+    }
+
+    private static Object invoke(final Method m, final Object target, final Object... args) throws IOException {
+        try {
+            return m.invoke(target, args);
+        } catch (final InvocationTargetException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } catch (final IllegalAccessException e) {
+            throw new IOException(e);
+        }
+    }
+}
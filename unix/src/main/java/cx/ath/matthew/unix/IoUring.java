@@ -0,0 +1,234 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package cx.ath.matthew.unix;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An io_uring instance with its reaper thread.
+ *
+ * Operations are queued by any thread. Whichever thread gets the submission
+ * lock moves all queued operations into the submission queue and submits them
+ * with a single system call, so concurrent callers share one io_uring_enter.
+ * The reaper thread waits for completions and completes the requests.
+ */
+final class IoUring implements Runnable {
+    static {
+        Backend.init();
+    }
+
+    // operations, mapped to io_uring opcodes in native code
+    static final int OP_NOP = 0;
+    static final int OP_RECV = 1;
+    static final int OP_SEND = 2;
+    static final int OP_READ_FIXED = 3;
+    static final int OP_WRITE_FIXED = 4;
+    static final int OP_CONNECT = 5;
+    static final int OP_ACCEPT = 6;
+
+    private static final int ENTRIES = 256;
+
+    private static native long native_setup(int entries) throws IOException;
+
+    private static native void native_close(long ring);
+
+    private static native void native_register_buffers(long ring, ByteBuffer[] bufs) throws IOException;
+
+    private static native boolean native_prepare(long ring, int op, int fd, ByteBuffer buf, int pos, int len,
+            int index, long data) throws IOException;
+
+    private static native void native_submit(long ring) throws IOException;
+
+    private static native int native_reap(long ring, long[] data, int[] res) throws IOException;
+
+    static native int native_socket() throws IOException;
+
+    static native int native_sockaddr(ByteBuffer buf, String address, boolean abs) throws IOException;
+
+    static native void native_close_fd(int fd);
+
+    static native String native_strerror(int err);
+
+    /**
+     * An operation. The buffer, if any, must be direct and stay reachable until
+     * the operation completes.
+     */
+    abstract static class Request {
+        final int op;
+        final int fd;
+        final ByteBuffer buf;
+        final int pos;
+        final int len;
+        final int index;
+
+        Request(final int op, final int fd, final ByteBuffer buf, final int pos, final int len, final int index) {
+            this.op = op;
+            this.fd = fd;
+            this.buf = buf;
+            this.pos = pos;
+            this.len = len;
+            this.index = index;
+        }
+
+        /**
+         * Called on the reaper thread.
+         *
+         * @param res the result of the operation, a negative errno on error
+         */
+        abstract void complete(int res);
+
+        abstract void fail(IOException e);
+    }
+
+    private final long ring;
+    private final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<>();
+    private final Map<Long, Request> inflight = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    // 0 is reserved for the wakeup on close
+    private long ids = 0;
+    private volatile boolean closed = false;
+
+    IoUring(final String name) throws IOException {
+        ring = native_setup(ENTRIES);
+        final Thread t = new Thread(this, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    static IOException error(final int res) {
+        return new UnixIOException(-res, native_strerror(-res));
+    }
+
+    void registerBuffers(final ByteBuffer[] bufs) throws IOException {
+        native_register_buffers(ring, bufs);
+    }
+
+    void submit(final Request r) {
+        if (closed) {
+            r.fail(new AsynchronousCloseException());
+            return;
+        }
+        queue.add(r);
+        while (!queue.isEmpty() && lock.tryLock()) {
+            try {
+                if (closed) {
+                    break;
+                }
+                Request q;
+                while (null != (q = queue.poll())) {
+                    final long id = ++ids;
+                    inflight.put(id, q);
+                    try {
+                        while (!native_prepare(ring, q.op, q.fd, q.buf, q.pos, q.len, q.index, id)) {
+                            // submission queue full
+                            native_submit(ring);
+                        }
+                    } catch (final IOException e) {
+                        inflight.remove(id);
+                        q.fail(e);
+                    }
+                }
+                native_submit(ring);
+            } catch (final IOException e) {
+                failAll(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (closed) {
+            failAll(new AsynchronousCloseException());
+        }
+    }
+
+    @Override
+    public void run() {
+        final long[] data = new long[256];
+        final int[] res = new int[256];
+        try {
+            while (!closed) {
+                final int n = native_reap(ring, data, res);
+                for (int i = 0; i < n; i++) {
+                    final Request r = inflight.remove(data[i]);
+                    if (null != r) {
+                        r.complete(res[i]);
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            closed = true;
+            failAll(e);
+            return;
+        }
+        // closing the ring cancels the operations still in the kernel
+        lock.lock();
+        try {
+            native_close(ring);
+        } finally {
+            lock.unlock();
+        }
+        failAll(new AsynchronousCloseException());
+    }
+
+    private void failAll(final IOException e) {
+        Request r;
+        while (null != (r = queue.poll())) {
+            r.fail(e);
+        }
+        for (final Long id : inflight.keySet()) {
+            r = inflight.remove(id);
+            if (null != r) {
+                r.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Stop the reaper thread and fail all outstanding operations.
+     */
+    void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            // wake the reaper
+            while (!native_prepare(ring, OP_NOP, -1, null, 0, 0, 0, 0)) {
+                // submission queue full
+                native_submit(ring);
+            }
+            native_submit(ring);
+        } catch (final IOException e) {
+            // the reaper has already stopped
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+
+package cx.ath.matthew.unix;
+
+import java.io.FileDescriptor;
+import java.util.Arrays;
+
+/**
+ * The credentials of the process at the other end of a connected socket, as
+ * recorded by the kernel when the connection was established (SO_PEERCRED).
+ *
+ * On Linux the supplementary groups of the peer (SO_PEERGROUPS, 4.13 and
+ * later) and a pidfd referring to the peer process (SO_PEERPIDFD, 6.5 and
+ * later) are included where the kernel supports them. Unlike the PID, the
+ * pidfd cannot come to refer to a different process if the peer exits and
+ * its PID is reused.
+ *
+ * @see UnixSocket#getPeerCredentials()
+ */
+public final class PeerCredentials {
+    private final int pid;
+    private final int uid;
+    private final int gid;
+    private final int[] groups;
+    private final FileDescriptor pidfd;
+
+    PeerCredentials(final int pid, final int uid, final int gid, final int[] groups, final FileDescriptor pidfd) {
+        this.pid = pid;
+        this.uid = uid;
+        this.gid = gid;
+        this.groups = groups;
+        this.pidfd = pidfd;
+    }
+
+    /**
+     * Get the process id of the peer.
+     *
+     * @return the PID
+     */
+    public int getPid() {
+        return pid;
+    }
+
+    /**
+     * Get the effective user id of the peer.
+     *
+     * @return the UID
+     */
+    public int getUid() {
+        return uid;
+    }
+
+    /**
+     * Get the effective group id of the peer.
+     *
+     * @return the GID
+     */
+    public int getGid() {
+        return gid;
+    }
+
+    /**
+     * Get the supplementary groups of the peer.
+     *
+     * @return a copy of the group ids, or null if not supported by the kernel
+     */
+    public int[] getGroups() {
+        return null == groups ? null : groups.clone();
+    }
+
+    /**
+     * Check if the peer is a member of a group, either as its effective group or
+     * as one of its supplementary groups.
+     *
+     * @param group the group id
+     * @return true if the peer is a member
+     */
+    public boolean isMemberOf(final int group) {
+        if (gid == group) {
+            return true;
+        }
+        if (null != groups) {
+            for (final int g : groups) {
+                if (g == group) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get a pidfd referring to the peer process.
+     * The descriptor belongs to the socket and is closed with it.
+     *
+     * @return the pidfd, or null if not supported by the kernel
+     */
+    public FileDescriptor getPidFd() {
+        return pidfd;
+    }
+
+    @Override
+    public String toString() {
+        return "PeerCredentials[pid=" + pid + ", uid=" + uid + ", gid=" + gid + ", groups="
+                + Arrays.toString(groups) + ", pidfd=" + (null != pidfd) + "]";
+    }
+}
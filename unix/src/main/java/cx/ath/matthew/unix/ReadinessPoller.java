@@ -0,0 +1,254 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package cx.ath.matthew.unix;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Parks threads until a socket becomes ready instead of blocking them in a
+ * native call.
+ *
+ * A thread blocked in native code pins the carrier of a virtual thread. A
+ * parked thread does not, so sockets with {@link UnixSocket#setParkOnReadiness(boolean)}
+ * enabled wait here for readiness and only enter native code when the call
+ * will not block. A single daemon thread waits for the readiness events of all
+ * sockets with a {@link UnixSelector} and unparks the waiting threads.
+ */
+final class ReadinessPoller implements Runnable {
+    private static ReadinessPoller instance = null;
+
+    private final UnixSelector selector;
+    private final Map<Integer, Waiter> waiters = new HashMap<>();
+    private IOException failure = null;
+
+    private static class Waiter {
+        Thread reader;
+        Thread writer;
+        // the socket is being closed, the descriptor must not be used again
+        boolean cancelled;
+    }
+
+    private ReadinessPoller() throws IOException {
+        selector = new UnixSelector();
+        final Thread t = new Thread(this, "UnixSocket-poller");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Wait until the socket is ready for the given operation.
+     *
+     * @param fd the socket
+     * @param op {@link UnixSelector#OP_READ} or {@link UnixSelector#OP_WRITE}
+     * @param timeout the timeout in milliseconds, 0 for no timeout
+     * @throws SocketTimeoutException if the timeout expires
+     * @throws IOException on error
+     */
+    static void await(final int fd, final int op, final int timeout) throws IOException {
+        final ReadinessPoller poller;
+        synchronized (ReadinessPoller.class) {
+            if (null == instance) {
+                instance = new ReadinessPoller();
+            }
+            poller = instance;
+        }
+        poller.park(fd, op, timeout);
+    }
+
+    /**
+     * Wake all threads waiting for the socket, before it is closed. They fail
+     * with a {@link NotConnectedException}.
+     *
+     * @param fd the socket
+     */
+    static void cancel(final int fd) {
+        final ReadinessPoller poller;
+        synchronized (ReadinessPoller.class) {
+            poller = instance;
+        }
+        if (null == poller) {
+            return;
+        }
+        synchronized (poller.waiters) {
+            final Waiter w = poller.waiters.remove(fd);
+            if (null != w) {
+                w.cancelled = true;
+                LockSupport.unpark(w.reader);
+                LockSupport.unpark(w.writer);
+            }
+        }
+    }
+
+    private void park(final int fd, final int op, final int timeout) throws IOException {
+        final Thread self = Thread.currentThread();
+        Waiter w;
+        synchronized (waiters) {
+            checkFailure();
+            w = waiters.get(fd);
+            if (null == w) {
+                w = new Waiter();
+                waiters.put(fd, w);
+            }
+            if (UnixSelector.OP_READ == op) {
+                w.reader = self;
+            } else {
+                w.writer = self;
+            }
+            arm(fd, w);
+        }
+        final long deadline = System.nanoTime() + timeout * 1000000L;
+        while (isWaiting(fd, self)) {
+            if (0 < timeout) {
+                final long left = deadline - System.nanoTime();
+                if (0 >= left) {
+                    synchronized (waiters) {
+                        if (w == waiters.get(fd) && (self == w.reader || self == w.writer)) {
+                            remove(fd, w, self);
+                            throw new SocketTimeoutException("Read timed out");
+                        }
+                    }
+                    break;
+                }
+                LockSupport.parkNanos(this, left);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        synchronized (waiters) {
+            checkFailure();
+            if (w.cancelled) {
+                throw new NotConnectedException();
+            }
+        }
+    }
+
+    // must be called with the waiters lock held
+    private void checkFailure() throws IOException {
+        if (null != failure) {
+            throw new IOException("Readiness poller failed", failure);
+        }
+    }
+
+    private boolean isWaiting(final int fd, final Thread self) {
+        synchronized (waiters) {
+            final Waiter w = waiters.get(fd);
+            return null != w && (self == w.reader || self == w.writer);
+        }
+    }
+
+    private void remove(final int fd, final Waiter w, final Thread self) {
+        if (self == w.reader) {
+            w.reader = null;
+        }
+        if (self == w.writer) {
+            w.writer = null;
+        }
+        if (null == w.reader && null == w.writer) {
+            waiters.remove(fd);
+        }
+    }
+
+    // must be called with the waiters lock held
+    private void arm(final int fd, final Waiter w) throws IOException {
+        final int ops = (null != w.reader ? UnixSelector.OP_READ : 0) | (null != w.writer ? UnixSelector.OP_WRITE : 0)
+                | UnixSelector.ONESHOT;
+        try {
+            selector.modify(fd, ops);
+        } catch (final UnixIOException e) {
+            // not yet registered, or closed and registered again under the same number
+            selector.register(fd, ops);
+        }
+    }
+
+    @Override
+    public void run() {
+        final int[] ready = new int[2 * 256];
+        for (;;) {
+            final int n;
+            try {
+                n = selector.select(ready, -1);
+            } catch (final IOException e) {
+                fail(e);
+                return;
+            }
+            synchronized (waiters) {
+                for (int i = 0; i < n; i++) {
+                    final int fd = ready[2 * i];
+                    final int ops = ready[2 * i + 1];
+                    final Waiter w = waiters.get(fd);
+                    if (null == w) {
+                        continue;
+                    }
+                    final boolean hangup = 0 != (ops & UnixSelector.OP_HANGUP);
+                    if (null != w.reader && (hangup || 0 != (ops & UnixSelector.OP_READ))) {
+                        LockSupport.unpark(w.reader);
+                        w.reader = null;
+                    }
+                    if (null != w.writer && (hangup || 0 != (ops & UnixSelector.OP_WRITE))) {
+                        LockSupport.unpark(w.writer);
+                        w.writer = null;
+                    }
+                    if (null == w.reader && null == w.writer) {
+                        waiters.remove(fd);
+                    } else {
+                        try {
+                            arm(fd, w);
+                        } catch (final IOException e) {
+                            // wake the remaining waiter, its next call reports the error
+                            LockSupport.unpark(w.reader);
+                            LockSupport.unpark(w.writer);
+                            waiters.remove(fd);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // the selector is broken, fail all waiting threads and let the next await start a new poller
+    private void fail(final IOException cause) {
+        synchronized (ReadinessPoller.class) {
+            if (this == instance) {
+                instance = null;
+            }
+        }
+        synchronized (waiters) {
+            failure = cause;
+            for (final Waiter w : waiters.values()) {
+                LockSupport.unpark(w.reader);
+                LockSupport.unpark(w.writer);
+            }
+            waiters.clear();
+        }
+        try {
+            selector.close();
+        } catch (final IOException e) {
+            // already failed
+        }
+    }
+}
@@ -29,6 +29,7 @@ package cx.ath.matthew.unix;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * An input stream for an unix socket.
@@ -42,8 +43,16 @@ public class USInputStream extends InputStream {
      */
     public static final int MSG_DONTWAIT = 0x40;
 
+    /**
+     * The peek at incoming data code.
+     */
+    public static final int MSG_PEEK = 0x02;
+
     private native int native_recv(int sock, byte[] b, int off, int len, int flags, int timeout) throws IOException;
 
+    private native int native_recv_direct(int sock, ByteBuffer buf, int pos, int len, int flags, int timeout)
+            throws IOException;
+
     private final int sock;
     boolean closed = false;
     private final byte[] onebuf = new byte[1];
@@ -51,6 +60,8 @@ public class USInputStream extends InputStream {
     private final boolean blocking = true;
     private int flags = 0;
     private int timeout = 0;
+    private int readAhead = 0;
+    private ByteBuffer ahead = null;
 
     /**
      * Create a new input stream for an unix socket.
@@ -76,14 +87,30 @@ public class USInputStream extends InputStream {
 
     @Override
     public int read() throws IOException {
-        int rv = 0;
-        while (0 >= rv) {
-            rv = read(onebuf);
+        if (closed) {
+            throw new NotConnectedException();
         }
-        if (-1 == rv) {
-            return -1;
+        if (null == ahead || !ahead.hasRemaining()) {
+            if (0 < readAhead) {
+                int rv = 0;
+                while (0 == rv) {
+                    rv = fill();
+                }
+                if (-1 == rv) {
+                    return -1;
+                }
+            } else {
+                int rv = 0;
+                while (0 == rv) {
+                    rv = read(onebuf);
+                }
+                if (-1 == rv) {
+                    return -1;
+                }
+                return onebuf[0] & 0xFF;
+            }
         }
-        return 0 > onebuf[0] ? -onebuf[0] : onebuf[0];
+        return ahead.get() & 0xFF;
     }
 
     @Override
@@ -91,7 +118,32 @@ public class USInputStream extends InputStream {
         if (closed) {
             throw new NotConnectedException();
         }
-        final int count = native_recv(sock, b, off, len, flags, timeout);
+        if (0 == len) {
+            return 0;
+        }
+        if (null != ahead && ahead.hasRemaining()) {
+            final int n = Math.min(len, ahead.remaining());
+            ahead.get(b, off, n);
+            return n;
+        }
+        if (0 < readAhead && len < readAhead) {
+            // small reads are served from the read-ahead buffer
+            final int rv = fill();
+            if (0 >= rv) {
+                return rv;
+            }
+            final int n = Math.min(len, rv);
+            ahead.get(b, off, n);
+            return n;
+        }
+        int count;
+        if (0 == flags && us.isParkOnReadiness()) {
+            while (-1 == (count = native_recv(sock, b, off, len, MSG_DONTWAIT, 0))) {
+                ReadinessPoller.await(sock, UnixSelector.OP_READ, timeout);
+            }
+        } else {
+            count = native_recv(sock, b, off, len, flags, timeout);
+        }
         /*
          * Yes, I really want to do this. Recv returns 0 for 'connection shut down'.
          * read() returns -1 for 'end of stream.
@@ -107,6 +159,119 @@ public class USInputStream extends InputStream {
         }
     }
 
+    /**
+     * Refill the empty read-ahead buffer with a single recv.
+     *
+     * @return the number of bytes buffered, 0 if no data is available in
+     *         non-blocking mode, or -1 at end-of-stream
+     */
+    private int fill() throws IOException {
+        if (null == ahead || ahead.capacity() != readAhead) {
+            ahead = ByteBuffer.allocateDirect(readAhead);
+        }
+        ahead.clear();
+        int count;
+        if (0 == flags && us.isParkOnReadiness()) {
+            while (-1 == (count = native_recv_direct(sock, ahead, 0, readAhead, MSG_DONTWAIT, 0))) {
+                ReadinessPoller.await(sock, UnixSelector.OP_READ, timeout);
+            }
+        } else {
+            count = native_recv_direct(sock, ahead, 0, readAhead, flags, timeout);
+        }
+        ahead.limit(0 < count ? count : 0);
+        // see read(byte[], int, int)
+        if (0 == count) {
+            return -1;
+        } else if (-1 == count) {
+            return 0;
+        }
+        return count;
+    }
+
+    /**
+     * Move buffered bytes into the given buffer.
+     *
+     * @param dst the buffer to fill
+     * @return the number of bytes moved
+     */
+    int drain(final ByteBuffer dst) {
+        if (null == ahead || !ahead.hasRemaining()) {
+            return 0;
+        }
+        final int n = Math.min(dst.remaining(), ahead.remaining());
+        final ByteBuffer src = ahead.duplicate();
+        src.limit(src.position() + n);
+        dst.put(src);
+        ahead.position(ahead.position() + n);
+        return n;
+    }
+
+    /**
+     * Returns the number of bytes which can be read without a system call.
+     *
+     * @return the number of bytes in the read-ahead buffer
+     */
+    @Override
+    public int available() throws IOException {
+        if (closed) {
+            throw new NotConnectedException();
+        }
+        return null == ahead ? 0 : ahead.remaining();
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        if (0 >= n) {
+            return 0;
+        }
+        if (0 == readAhead && (null == ahead || !ahead.hasRemaining())) {
+            return super.skip(n);
+        }
+        long skipped = 0;
+        while (skipped < n) {
+            if (null == ahead || !ahead.hasRemaining()) {
+                // stop at end-of-stream or when no data is available
+                if (0 == readAhead || 0 >= fill()) {
+                    break;
+                }
+            }
+            final int k = (int) Math.min(n - skipped, ahead.remaining());
+            ahead.position(ahead.position() + k);
+            skipped += k;
+        }
+        return skipped;
+    }
+
+    /**
+     * Set the size of the read-ahead buffer.
+     * With a read-ahead buffer, reads smaller than the buffer receive as much as
+     * the kernel has available with one recv into a direct buffer, and the
+     * following reads are served from it without a system call. This makes
+     * {@link #read()} cheap for line oriented protocols. Data already buffered
+     * is still returned after the buffer is disabled.
+     *
+     * @param size the buffer size in bytes, 0 to disable read-ahead
+     */
+    public void setReadAhead(final int size) {
+        if (0 > size) {
+            throw new IllegalArgumentException("Negative read-ahead size");
+        }
+        readAhead = size;
+        // buffered bytes are kept, fill() allocates again once they are consumed
+        if (null == ahead || !ahead.hasRemaining()) {
+            ahead = null;
+        }
+    }
+
+    /**
+     * Get the size of the read-ahead buffer.
+     *
+     * @return the buffer size in bytes, 0 if read-ahead is disabled
+     */
+    public int getReadAhead() {
+        return readAhead;
+    }
+
     /**
      * Check if the output stream is closed.
      *
@@ -135,9 +300,11 @@ public class USInputStream extends InputStream {
     }
 
     /**
-     * Set timeout of read requests.
+     * Set timeout of blocking read requests.
+     * A read which does not receive any data within the timeout raises a
+     * {@link java.net.SocketTimeoutException}.
      *
-     * @param timeout the timeout
+     * @param timeout the timeout in milliseconds, 0 for no timeout
      */
     public void setSoTimeout(final int timeout) {
         this.timeout = timeout;
@@ -29,6 +29,13 @@ package cx.ath.matthew.unix;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An output stream for an unix socket.
@@ -39,12 +46,20 @@ import java.io.OutputStream;
 public class USOutputStream extends OutputStream {
     private native int native_send(int sock, byte[] b, int off, int len) throws IOException;
 
-    private native int native_send(int sock, byte[][] b) throws IOException;
-
     private final int sock;
     boolean closed = false;
     private final byte[] onebuf = new byte[1];
     private final UnixSocket us;
+    private ByteBuffer buf = null;
+    private int flushDelay = 0;
+    private boolean corked = false;
+    private boolean draining = false;
+    private ScheduledFuture<?> pendingFlush = null;
+    private IOException flushError = null;
+    // not a monitor, writers may park in ReadinessPoller.await while holding it
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private static ScheduledExecutorService flusher = null;
 
     /**
      * Create a new output stream for an unit socket.
@@ -59,43 +74,339 @@ public class USOutputStream extends OutputStream {
 
     @Override
     public void close() throws IOException {
-        closed = true;
-        us.close();
+        try {
+            if (!closed) {
+                flush();
+            }
+        } finally {
+            closed = true;
+            us.close();
+        }
     }
 
+    /**
+     * Send all buffered bytes. Also ends a cork.
+     *
+     * @throws IOException if an I/O error occurs
+     */
     @Override
-    public void flush() {
-    } // no-op, we do not buffer
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new NotConnectedException();
+            }
+            corked = false;
+            flushBuffer();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Send the buffered bytes, if any.
+     * Called before every unbuffered write to the socket to keep the order.
+     */
+    void flushBuffer() throws IOException {
+        lock.lock();
+        try {
+            flushBuffer(null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // more is sent after the buffered bytes with one gathering write
+    private void flushBuffer(final ByteBuffer more) throws IOException {
+        if (null != flushError) {
+            final IOException e = flushError;
+            flushError = null;
+            throw e;
+        }
+        if (draining || null == buf || 0 == buf.position()) {
+            return;
+        }
+        if (null != pendingFlush) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+        draining = true;
+        buf.flip();
+        try {
+            if (null == more) {
+                while (buf.hasRemaining()) {
+                    us.write(buf, 0);
+                }
+            } else {
+                us.write(new ByteBuffer[] { buf, more }, 0, 2, 0);
+            }
+        } finally {
+            buf.compact();
+            draining = false;
+        }
+    }
+
+    /**
+     * Set the size of the write buffer.
+     * With a write buffer, writes smaller than the buffer are collected and
+     * sent with a single system call when the buffer is full, on
+     * {@link #flush()}, on {@link #close()}, or after the flush delay. Larger
+     * writes are sent straight away together with the buffered bytes. Closing
+     * the {@link UnixSocket} directly discards any buffered bytes.
+     *
+     * @param size the buffer size in bytes, 0 to send every write immediately
+     * @throws IOException if flushing the current buffer fails
+     */
+    public void setWriteBuffer(final int size) throws IOException {
+        lock.lock();
+        try {
+            if (0 > size) {
+                throw new IllegalArgumentException("Negative write buffer size");
+            }
+            if (null != buf && size == buf.capacity()) {
+                return;
+            }
+            if (!closed) {
+                flushBuffer();
+            }
+            buf = 0 == size ? null : ByteBuffer.allocateDirect(size);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the size of the write buffer.
+     *
+     * @return the buffer size in bytes, 0 if writes are not buffered
+     */
+    public int getWriteBuffer() {
+        lock.lock();
+        try {
+            return null == buf ? 0 : buf.capacity();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Set the maximum time bytes stay in the write buffer.
+     * The buffer is flushed by a shared timer thread at most this long after
+     * the first byte was buffered. An error during such a flush is raised by
+     * the next write or flush.
+     *
+     * @param millis the delay in milliseconds, 0 to flush only when the buffer
+     *            is full or on {@link #flush()}
+     */
+    public void setFlushDelay(final int millis) {
+        lock.lock();
+        try {
+            if (0 > millis) {
+                throw new IllegalArgumentException("Negative flush delay");
+            }
+            flushDelay = millis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the maximum time bytes stay in the write buffer.
+     *
+     * @return the delay in milliseconds, 0 if there is no timed flush
+     */
+    public int getFlushDelay() {
+        lock.lock();
+        try {
+            return flushDelay;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hold back all buffered bytes until {@link #flush()} or until the cork is
+     * removed, to send a message written in several parts in one piece. This is
+     * the equivalent of MSG_MORE or TCP_CORK, which unix sockets do not
+     * implement. A full buffer is still sent; the flush delay does not apply
+     * while corked.
+     *
+     * @param enable true to cork, false to remove the cork and flush
+     * @throws IOException if flushing fails
+     */
+    public void setCork(final boolean enable) throws IOException {
+        lock.lock();
+        try {
+            if (enable) {
+                if (null == buf) {
+                    throw new IllegalStateException("Corking requires a write buffer");
+                }
+                corked = true;
+            } else if (corked) {
+                flush();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check if the stream is corked.
+     *
+     * @return true while buffered bytes are held back
+     * @see #setCork(boolean)
+     */
+    public boolean isCorked() {
+        lock.lock();
+        try {
+            return corked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (0 == flushDelay || corked || null != pendingFlush) {
+            return;
+        }
+        pendingFlush = schedule(flushDelay);
+    }
+
+    private ScheduledFuture<?> schedule(final int millis) {
+        return flusher().schedule(new Runnable() {
+            @Override
+            public void run() {
+                timedFlush();
+            }
+        }, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Runs on the timer thread shared by all streams, so it must never block:
+     * a peer which does not read would delay the flushes of every other socket.
+     * It sends what the socket takes without waiting and tries again later.
+     */
+    private void timedFlush() {
+        if (!lock.tryLock()) {
+            // a writer is busy, and possibly blocked in a send
+            schedule(Math.max(1, flushDelay));
+            return;
+        }
+        try {
+            pendingFlush = null;
+            if (closed || corked || draining || null == buf || 0 == buf.position()) {
+                return;
+            }
+            draining = true;
+            buf.flip();
+            try {
+                us.write(buf, USInputStream.MSG_DONTWAIT);
+            } catch (final IOException e) {
+                flushError = e;
+                return;
+            } finally {
+                buf.compact();
+                draining = false;
+            }
+            if (0 < buf.position()) {
+                scheduleFlush();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static synchronized ScheduledExecutorService flusher() {
+        if (null == flusher) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "USOutputStream-flush");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return flusher;
+    }
 
     /**
      * Write the given array of byte arrays.
+     * The arrays are written with a single gathering write where possible.
+     * A null element ends the data.
      *
      * @param b the data
      * @throws IOException if an I/O error occurs
      * @throws NotConnectedException if the output stream has been closed
      */
     public void write(final byte[][] b) throws IOException {
-        if (closed) {
-            throw new NotConnectedException();
+        lock.lock();
+        try {
+            if (closed) {
+                throw new NotConnectedException();
+            }
+            int n = 0;
+            while (n < b.length && null != b[n]) {
+                n++;
+            }
+            final ByteBuffer[] bufs = new ByteBuffer[n];
+            for (int i = 0; i < n; i++) {
+                bufs[i] = ByteBuffer.wrap(b[i]);
+            }
+            us.write(bufs, 0, n, 0);
+        } finally {
+            lock.unlock();
         }
-        native_send(sock, b);
     }
 
     @Override
     public void write(final byte[] b, final int off, final int len) throws IOException {
-        if (closed) {
-            throw new NotConnectedException();
+        lock.lock();
+        try {
+            if (closed) {
+                throw new NotConnectedException();
+            }
+            if (null != buf) {
+                if (len <= buf.remaining()) {
+                    buf.put(b, off, len);
+                    if (!buf.hasRemaining()) {
+                        flushBuffer();
+                    } else {
+                        scheduleFlush();
+                    }
+                    return;
+                }
+                if (len < buf.capacity()) {
+                    flushBuffer();
+                    buf.put(b, off, len);
+                    scheduleFlush();
+                    return;
+                }
+                if (0 < buf.position() && !us.isParkOnReadiness()) {
+                    flushBuffer(ByteBuffer.wrap(b, off, len));
+                    return;
+                }
+                flushBuffer();
+            }
+            if (us.isParkOnReadiness()) {
+                us.write(ByteBuffer.wrap(b, off, len), 0);
+            } else {
+                native_send(sock, b, off, len);
+            }
+        } finally {
+            lock.unlock();
         }
-        native_send(sock, b, off, len);
     }
 
     @Override
     public void write(final int b) throws IOException {
-        onebuf[0] = (byte) (b % 0x7F);
-        if (1 == b % 0x80) {
-            onebuf[0] = (byte) -onebuf[0];
+        lock.lock();
+        try {
+            onebuf[0] = (byte) b;
+            write(onebuf, 0, 1);
+        } finally {
+            lock.unlock();
         }
-        write(onebuf);
     }
 
     /**
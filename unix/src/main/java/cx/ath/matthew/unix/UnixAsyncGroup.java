@@ -0,0 +1,488 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package cx.ath.matthew.unix;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.ClosedChannelException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous socket operations which complete a {@link CompletableFuture}.
+ *
+ * Operations are executed by io_uring where the kernel supports it: concurrent
+ * submissions are batched into one system call, and completions are delivered
+ * on a small number of reaper threads, which also run the dependent actions of
+ * the futures. Without io_uring, or with the system property
+ * {@value #PROPERTY} set to {@code epoll}, operations are tried without
+ * blocking and retried by poller threads when the socket is ready.
+ *
+ * Sockets are assigned to threads by their file descriptor, so the operations
+ * of one socket complete in order. Reads and writes complete with the number
+ * of bytes transferred, like a single non-blocking read or write would; reads
+ * complete with -1 at end-of-stream. The buffer must not be used until the
+ * operation completes.
+ */
+public class UnixAsyncGroup implements Closeable {
+    /**
+     * The system property to choose the implementation, {@code io_uring},
+     * {@code epoll} or {@code auto} (the default).
+     */
+    public static final String PROPERTY = "cx.ath.matthew.unix.async";
+
+    private final IoUring[] rings;
+    private final AsyncPoller[] pollers;
+    private final Map<ByteBuffer, Integer> registered = new IdentityHashMap<>();
+    private volatile boolean closed = false;
+
+    private UnixAsyncGroup(final IoUring[] rings, final AsyncPoller[] pollers) {
+        this.rings = rings;
+        this.pollers = pollers;
+    }
+
+    /**
+     * Create a group with a single reaper thread.
+     *
+     * @return the group
+     * @throws IOException on error
+     */
+    public static UnixAsyncGroup open() throws IOException {
+        return open(1);
+    }
+
+    /**
+     * Create a group.
+     *
+     * @param threads the number of reaper threads, each with its own io_uring
+     * @return the group
+     * @throws IOException on error
+     * @throws UnsupportedOperationException if libunix-java is not available
+     */
+    public static UnixAsyncGroup open(final int threads) throws IOException {
+        if (0 >= threads) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        if (!Backend.NATIVE) {
+            throw new UnsupportedOperationException("Asynchronous I/O requires libunix-java");
+        }
+        final String choice = System.getProperty(PROPERTY, "auto");
+        if (!"epoll".equals(choice)) {
+            final IoUring[] rings = new IoUring[threads];
+            try {
+                for (int i = 0; i < threads; i++) {
+                    rings[i] = new IoUring("UnixAsyncGroup-reaper-" + i);
+                }
+                return new UnixAsyncGroup(rings, null);
+            } catch (final UnixIOException e) {
+                for (final IoUring r : rings) {
+                    if (null != r) {
+                        r.close();
+                    }
+                }
+                if ("io_uring".equals(choice)) {
+                    throw e;
+                }
+                // io_uring is not available or not permitted, use epoll
+            }
+        }
+        final AsyncPoller[] pollers = new AsyncPoller[threads];
+        try {
+            for (int i = 0; i < threads; i++) {
+                pollers[i] = new AsyncPoller("UnixAsyncGroup-poller-" + i);
+            }
+        } catch (final IOException e) {
+            for (final AsyncPoller p : pollers) {
+                if (null != p) {
+                    p.close();
+                }
+            }
+            throw e;
+        }
+        return new UnixAsyncGroup(null, pollers);
+    }
+
+    /**
+     * Check if the group uses io_uring.
+     *
+     * @return true for io_uring, false for the epoll fallback
+     */
+    public boolean isIoUring() {
+        return null != rings;
+    }
+
+    /**
+     * Register direct buffers with the kernel. Reads into and writes from these
+     * buffers skip mapping the buffer pages for every operation. Only the
+     * registered buffer objects themselves are recognized, not slices or
+     * duplicates. Buffers can be registered once per group; with the epoll
+     * fallback this has no effect.
+     *
+     * @param buffers the direct buffers
+     * @throws IOException on error
+     * @throws IllegalStateException if buffers have already been registered
+     */
+    public synchronized void registerBuffers(final ByteBuffer... buffers) throws IOException {
+        ensureOpen();
+        for (final ByteBuffer b : buffers) {
+            if (!b.isDirect()) {
+                throw new IllegalArgumentException("Only direct buffers can be registered");
+            }
+        }
+        if (!registered.isEmpty()) {
+            throw new IllegalStateException("Buffers already registered");
+        }
+        if (null != rings) {
+            for (final IoUring r : rings) {
+                r.registerBuffers(buffers);
+            }
+        }
+        for (int i = 0; i < buffers.length; i++) {
+            registered.put(buffers[i], i);
+        }
+    }
+
+    /**
+     * Read from the socket into the buffer.
+     *
+     * @param socket the connected socket
+     * @param dst the buffer
+     * @return the future number of bytes read, -1 at end-of-stream
+     */
+    public CompletableFuture<Integer> read(final UnixSocket socket, final ByteBuffer dst) {
+        final CompletableFuture<Integer> f = new CompletableFuture<>();
+        try {
+            ensureOpen();
+            if (!socket.isConnected()) {
+                throw new NotConnectedException();
+            }
+            if (dst.isReadOnly()) {
+                throw new ReadOnlyBufferException();
+            }
+        } catch (final IOException | RuntimeException e) {
+            f.completeExceptionally(e);
+            return f;
+        }
+        final int len = dst.remaining();
+        if (0 == len) {
+            f.complete(0);
+            return f;
+        }
+        if (null == rings) {
+            poller(socket.getFd()).submit(new AsyncPoller.Op(socket.getFd(), true) {
+                private int n;
+
+                @Override
+                boolean attempt(final boolean ready) throws IOException {
+                    n = socket.read(dst, USInputStream.MSG_DONTWAIT);
+                    return 0 != n;
+                }
+
+                @Override
+                void complete() {
+                    f.complete(n);
+                }
+
+                @Override
+                void fail(final IOException e) {
+                    f.completeExceptionally(e);
+                }
+            });
+            return f;
+        }
+        final int pos = dst.position();
+        final Integer index = fixed(dst);
+        final ByteBuffer buf = dst.isDirect() ? dst : ByteBuffer.allocateDirect(len);
+        final int op = null != index ? IoUring.OP_READ_FIXED : IoUring.OP_RECV;
+        ring(socket.getFd()).submit(new IoUring.Request(op, socket.getFd(), buf, buf == dst ? pos : 0, len,
+                null != index ? index : 0) {
+            @Override
+            void complete(final int res) {
+                if (0 > res) {
+                    f.completeExceptionally(IoUring.error(res));
+                } else if (0 == res) {
+                    f.complete(-1);
+                } else {
+                    if (buf != dst) {
+                        buf.limit(res);
+                        dst.put(buf);
+                    } else {
+                        dst.position(pos + res);
+                    }
+                    f.complete(res);
+                }
+            }
+
+            @Override
+            void fail(final IOException e) {
+                f.completeExceptionally(e);
+            }
+        });
+        return f;
+    }
+
+    /**
+     * Write from the buffer to the socket.
+     *
+     * @param socket the connected socket
+     * @param src the buffer
+     * @return the future number of bytes written
+     */
+    public CompletableFuture<Integer> write(final UnixSocket socket, final ByteBuffer src) {
+        final CompletableFuture<Integer> f = new CompletableFuture<>();
+        try {
+            ensureOpen();
+            if (!socket.isConnected()) {
+                throw new NotConnectedException();
+            }
+        } catch (final IOException | RuntimeException e) {
+            f.completeExceptionally(e);
+            return f;
+        }
+        final int len = src.remaining();
+        if (0 == len) {
+            f.complete(0);
+            return f;
+        }
+        if (null == rings) {
+            poller(socket.getFd()).submit(new AsyncPoller.Op(socket.getFd(), false) {
+                private int n;
+
+                @Override
+                boolean attempt(final boolean ready) throws IOException {
+                    n = socket.write(src, USInputStream.MSG_DONTWAIT);
+                    return 0 != n;
+                }
+
+                @Override
+                void complete() {
+                    f.complete(n);
+                }
+
+                @Override
+                void fail(final IOException e) {
+                    f.completeExceptionally(e);
+                }
+            });
+            return f;
+        }
+        final int pos = src.position();
+        final Integer index = fixed(src);
+        final ByteBuffer buf;
+        if (src.isDirect()) {
+            buf = src;
+        } else {
+            buf = ByteBuffer.allocateDirect(len);
+            buf.put(src.duplicate());
+        }
+        final int op = null != index ? IoUring.OP_WRITE_FIXED : IoUring.OP_SEND;
+        ring(socket.getFd()).submit(new IoUring.Request(op, socket.getFd(), buf, buf == src ? pos : 0, len,
+                null != index ? index : 0) {
+            @Override
+            void complete(final int res) {
+                if (0 > res) {
+                    f.completeExceptionally(IoUring.error(res));
+                } else {
+                    src.position(pos + res);
+                    f.complete(res);
+                }
+            }
+
+            @Override
+            void fail(final IOException e) {
+                f.completeExceptionally(e);
+            }
+        });
+        return f;
+    }
+
+    /**
+     * Connect a new stream socket to the address.
+     * With the epoll fallback the connect is done by the calling thread; a unix
+     * socket connect only blocks while the listen backlog of the server is full.
+     *
+     * @param address the address to connect to
+     * @return the future connected socket
+     */
+    public CompletableFuture<UnixSocket> connect(final UnixSocketAddress address) {
+        final CompletableFuture<UnixSocket> f = new CompletableFuture<>();
+        try {
+            ensureOpen();
+            if (null == rings) {
+                f.complete(new UnixSocket(address));
+                return f;
+            }
+        } catch (final IOException | RuntimeException e) {
+            f.completeExceptionally(e);
+            return f;
+        }
+        final int sock;
+        final ByteBuffer sad = ByteBuffer.allocateDirect(128);
+        final int len;
+        try {
+            sock = IoUring.native_socket();
+            try {
+                len = IoUring.native_sockaddr(sad, address.path, address.abs);
+            } catch (final IOException e) {
+                IoUring.native_close_fd(sock);
+                throw e;
+            }
+        } catch (final IOException e) {
+            f.completeExceptionally(e);
+            return f;
+        }
+        ring(sock).submit(new IoUring.Request(IoUring.OP_CONNECT, sock, sad, 0, len, 0) {
+            @Override
+            void complete(final int res) {
+                if (0 > res) {
+                    IoUring.native_close_fd(sock);
+                    f.completeExceptionally(IoUring.error(res));
+                } else {
+                    f.complete(new UnixSocket(sock, address, UnixSocket.SOCK_STREAM, false));
+                }
+            }
+
+            @Override
+            void fail(final IOException e) {
+                IoUring.native_close_fd(sock);
+                f.completeExceptionally(e);
+            }
+        });
+        return f;
+    }
+
+    /**
+     * Accept a connection.
+     * With the epoll fallback the server socket should be in non-blocking mode,
+     * otherwise the poller thread blocks if another thread accepts the pending
+     * connection first.
+     *
+     * @param server the bound server socket
+     * @return the future accepted socket
+     */
+    public CompletableFuture<UnixSocket> accept(final UnixServerSocket server) {
+        final CompletableFuture<UnixSocket> f = new CompletableFuture<>();
+        try {
+            ensureOpen();
+            if (!server.isBound()) {
+                throw new NotConnectedException();
+            }
+        } catch (final IOException | RuntimeException e) {
+            f.completeExceptionally(e);
+            return f;
+        }
+        final int fd = server.getFd();
+        if (null == rings) {
+            poller(fd).submit(new AsyncPoller.Op(fd, true) {
+                private UnixSocket s;
+
+                @Override
+                boolean attempt(final boolean ready) throws IOException {
+                    if (!ready && server.getBlocking()) {
+                        // only accept once the poller reported a connection
+                        return false;
+                    }
+                    s = server.accept();
+                    return null != s;
+                }
+
+                @Override
+                void complete() {
+                    f.complete(s);
+                }
+
+                @Override
+                void fail(final IOException e) {
+                    f.completeExceptionally(e);
+                }
+            });
+            return f;
+        }
+        ring(fd).submit(new IoUring.Request(IoUring.OP_ACCEPT, fd, null, 0, 0, 0) {
+            @Override
+            void complete(final int res) {
+                if (0 > res) {
+                    f.completeExceptionally(IoUring.error(res));
+                } else {
+                    f.complete(server.accepted(res));
+                }
+            }
+
+            @Override
+            void fail(final IOException e) {
+                f.completeExceptionally(e);
+            }
+        });
+        return f;
+    }
+
+    private synchronized Integer fixed(final ByteBuffer buf) {
+        return registered.get(buf);
+    }
+
+    private IoUring ring(final int fd) {
+        return rings[fd % rings.length];
+    }
+
+    private AsyncPoller poller(final int fd) {
+        return pollers[fd % pollers.length];
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * Check the group status.
+     *
+     * @return true if closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close the group. Outstanding operations fail with an
+     * {@link java.nio.channels.AsynchronousCloseException}, the sockets stay
+     * open.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (null != rings) {
+            for (final IoUring r : rings) {
+                r.close();
+            }
+        } else {
+            for (final AsyncPoller p : pollers) {
+                p.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+
+package cx.ath.matthew.unix;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small cache of authorization decisions keyed by user and group id.
+ *
+ * A daemon serving several tenants can authorize every message received with
+ * {@link UnixSocket#receive(UnixMessage)} without asking its policy, e.g. a
+ * lookup in a user database, each time: decisions are kept for a limited time
+ * and the least recently used ones are dropped once the cache is full.
+ * Messages without credentials are never authorized.
+ */
+public class UnixAuthorizationCache {
+    /**
+     * Decides whether a user and group are authorized.
+     */
+    public interface Authorizer {
+        /**
+         * Decide on a user and group.
+         *
+         * @param uid the user id
+         * @param gid the group id
+         * @return true if authorized
+         * @throws IOException on error, the decision is not cached
+         */
+        boolean authorize(int uid, int gid) throws IOException;
+    }
+
+    private static class Decision {
+        final boolean authorized;
+        final long expires;
+
+        Decision(final boolean authorized, final long expires) {
+            this.authorized = authorized;
+            this.expires = expires;
+        }
+    }
+
+    private final Authorizer authorizer;
+    private final long ttl;
+    private final Map<Long, Decision> decisions;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Create a cache.
+     *
+     * @param authorizer the policy asked on a cache miss
+     * @param maxEntries the maximum number of cached decisions
+     * @param ttl the time a decision is kept
+     * @param unit the unit of the time
+     */
+    public UnixAuthorizationCache(final Authorizer authorizer, final int maxEntries, final long ttl,
+            final TimeUnit unit) {
+        if (0 >= maxEntries) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.authorizer = authorizer;
+        this.ttl = unit.toNanos(ttl);
+        this.decisions = new LinkedHashMap<Long, Decision>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, Decision> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Check if the sender of a received message is authorized.
+     *
+     * @param msg the message received with credentials
+     * @return true if authorized, false if not or if the message carries no
+     *         credentials
+     * @throws IOException on error of the authorizer
+     */
+    public boolean isAuthorized(final UnixMessage msg) throws IOException {
+        if (-1 == msg.getUID() || -1 == msg.getGID()) {
+            return false;
+        }
+        return isAuthorized(msg.getUID(), msg.getGID());
+    }
+
+    /**
+     * Check if the peer of a connection is authorized.
+     *
+     * @param credentials the credentials of the peer
+     * @return true if authorized
+     * @throws IOException on error of the authorizer
+     */
+    public boolean isAuthorized(final PeerCredentials credentials) throws IOException {
+        return isAuthorized(credentials.getUid(), credentials.getGid());
+    }
+
+    /**
+     * Check if a user and group are authorized.
+     *
+     * @param uid the user id
+     * @param gid the group id
+     * @return true if authorized
+     * @throws IOException on error of the authorizer
+     */
+    public boolean isAuthorized(final int uid, final int gid) throws IOException {
+        final Long key = key(uid, gid);
+        final long now = System.nanoTime();
+        synchronized (decisions) {
+            final Decision d = decisions.get(key);
+            if (null != d && 0 < d.expires - now) {
+                hits.incrementAndGet();
+                return d.authorized;
+            }
+        }
+        misses.incrementAndGet();
+        // the authorizer may be slow, so it is not called with the lock held
+        final boolean authorized = authorizer.authorize(uid, gid);
+        synchronized (decisions) {
+            decisions.put(key, new Decision(authorized, now + ttl));
+        }
+        return authorized;
+    }
+
+    /**
+     * Drop the cached decision for a user and group, e.g. after a change of
+     * policy.
+     *
+     * @param uid the user id
+     * @param gid the group id
+     */
+    public void invalidate(final int uid, final int gid) {
+        synchronized (decisions) {
+            decisions.remove(key(uid, gid));
+        }
+    }
+
+    /**
+     * Drop all cached decisions.
+     */
+    public void invalidateAll() {
+        synchronized (decisions) {
+            decisions.clear();
+        }
+    }
+
+    /**
+     * Get the number of decisions served from the cache.
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of decisions made by the authorizer.
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static Long key(final int uid, final int gid) {
+        return Long.valueOf((long) uid << 32 | 0xFFFFFFFFL & gid);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+
+package cx.ath.matthew.unix;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A child process started by {@link UnixSocket#spawn(UnixSocket, String...)}.
+ * Standard input, output and error are inherited from the JVM, so the streams
+ * of this process are empty; the child communicates over its socket.
+ */
+class UnixChildProcess extends Process {
+    static {
+        Backend.init();
+    }
+
+    private static native int native_spawn(String[] command, int fd) throws IOException;
+
+    private static native int native_waitpid(int pid) throws IOException;
+
+    private static native void native_kill(int pid, int sig) throws IOException;
+
+    private static final int SIGKILL = 9;
+    private static final int SIGTERM = 15;
+
+    private final int pid;
+    private final CountDownLatch exited = new CountDownLatch(1);
+    private volatile int exitCode;
+
+    UnixChildProcess(final String[] command, final int fd) throws IOException {
+        pid = native_spawn(command, fd);
+        // like the JDK, reap the child on a thread of its own
+        final Thread reaper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    exitCode = native_waitpid(pid);
+                } catch (final IOException e) {
+                    exitCode = -1;
+                }
+                exited.countDown();
+            }
+        }, "UnixChildProcess-" + pid);
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /**
+     * Get the process id of the child.
+     *
+     * @return the PID
+     */
+    int getPid() {
+        return pid;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(final int b) throws IOException {
+                throw new IOException("Stream closed");
+            }
+        };
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+        exited.await();
+        return exitCode;
+    }
+
+    @Override
+    public boolean waitFor(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return exited.await(timeout, unit);
+    }
+
+    @Override
+    public int exitValue() {
+        if (0 != exited.getCount()) {
+            throw new IllegalThreadStateException("process hasn't exited");
+        }
+        return exitCode;
+    }
+
+    @Override
+    public boolean isAlive() {
+        return 0 != exited.getCount();
+    }
+
+    @Override
+    public void destroy() {
+        kill(SIGTERM);
+    }
+
+    @Override
+    public Process destroyForcibly() {
+        kill(SIGKILL);
+        return this;
+    }
+
+    private void kill(final int sig) {
+        if (isAlive()) {
+            try {
+                native_kill(pid, sig);
+            } catch (final IOException e) {
+                // already gone
+            }
+        }
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package cx.ath.matthew.unix;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+/**
+ * Represents a UNIX datagram socket (SOCK_DGRAM).
+ *
+ * Datagrams keep their boundaries, every receive returns exactly one
+ * datagram and every send transmits one datagram.
+ */
+public class UnixDatagramSocket implements Closeable {
+    static {
+        Backend.init();
+    }
+
+    private native int native_create() throws IOException;
+
+    private native void native_bind(int sock, String address, boolean abs) throws IOException;
+
+    private native void native_connect(int sock, String address, boolean abs) throws IOException;
+
+    private native int native_send(int sock, Object buf, int off, int len, String address, boolean abs, int flags)
+            throws IOException;
+
+    private native int native_recv(int sock, Object buf, int off, int len, Object[] from, int flags, int timeout)
+            throws IOException;
+
+    private native void native_close(int sock) throws IOException;
+
+    private native void native_set_pass_cred(int sock, boolean passcred) throws IOException;
+
+    private native int native_sendmmsg(int sock, UnixMessage[] msgs, int off, int len, int heap, String address,
+            boolean abs, int flags) throws IOException;
+
+    private native int native_recvmmsg(int sock, UnixMessage[] msgs, int off, int len, int heap, int flags,
+            int timeout) throws IOException;
+
+    private UnixSocketAddress address = null;
+    private UnixSocketAddress remote = null;
+    private boolean closed = false;
+    private boolean blocking = true;
+    private boolean passcred = false;
+    private int timeout = 0;
+    private final int sock;
+
+    /**
+     * Create an unbound datagram socket.
+     * An unbound socket can send datagrams, but the receiver cannot reply.
+     *
+     * @throws IOException on error
+     * @throws UnsupportedOperationException if libunix-java is not available
+     */
+    public UnixDatagramSocket() throws IOException {
+        if (!Backend.NATIVE) {
+            throw Backend.unsupported();
+        }
+        sock = native_create();
+    }
+
+    /**
+     * Create a datagram socket bound to the given address.
+     *
+     * @param address The address to receive datagrams on.
+     * @throws IOException on error
+     */
+    public UnixDatagramSocket(final UnixSocketAddress address) throws IOException {
+        this();
+        try {
+            bind(address);
+        } catch (final IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Bind the socket to the given address.
+     *
+     * @param address The address to receive datagrams on.
+     * @throws IOException on error
+     */
+    public void bind(final UnixSocketAddress address) throws IOException {
+        ensureOpen();
+        native_bind(sock, address.path, address.abs);
+        this.address = address;
+    }
+
+    /**
+     * Connect the socket to the given address.
+     * A connected socket only receives datagrams from this address and may use
+     * {@link #write(ByteBuffer)} and {@link #read(ByteBuffer)}.
+     *
+     * @param address The address to connect to.
+     * @throws IOException on error
+     */
+    public void connect(final UnixSocketAddress address) throws IOException {
+        ensureOpen();
+        native_connect(sock, address.path, address.abs);
+        this.remote = address;
+    }
+
+    /**
+     * Send a datagram to the given address.
+     *
+     * @param src The buffer holding the datagram.
+     * @param target The address to send the datagram to.
+     * @return The number of bytes sent, 0 if the datagram could not be sent in
+     *         non-blocking mode.
+     * @throws IOException on error
+     */
+    public int send(final ByteBuffer src, final UnixSocketAddress target) throws IOException {
+        ensureOpen();
+        return send(src, target.path, target.abs);
+    }
+
+    /**
+     * Send a datagram to the connected address.
+     *
+     * @param src The buffer holding the datagram.
+     * @return The number of bytes sent, 0 if the datagram could not be sent in
+     *         non-blocking mode.
+     * @throws IOException on error
+     */
+    public int write(final ByteBuffer src) throws IOException {
+        ensureOpen();
+        if (null == remote) {
+            throw new NotConnectedException();
+        }
+        return send(src, null, false);
+    }
+
+    /**
+     * Receive a datagram.
+     * The part of the datagram which does not fit into the buffer is discarded.
+     *
+     * @param dst The buffer to store the datagram in.
+     * @return The address of the sender, which has an empty path if the sender
+     *         is not bound, or null if no datagram is available in non-blocking mode.
+     * @throws SocketTimeoutException if the read timeout expires
+     * @throws IOException on error
+     */
+    public UnixSocketAddress receive(final ByteBuffer dst) throws IOException {
+        final Object[] from = new Object[1];
+        if (-1 == receive(dst, from)) {
+            return null;
+        }
+        return (UnixSocketAddress) from[0];
+    }
+
+    /**
+     * Receive a datagram from the connected address.
+     * The part of the datagram which does not fit into the buffer is discarded.
+     *
+     * @param dst The buffer to store the datagram in.
+     * @return The number of bytes received, or -1 if no datagram is available in
+     *         non-blocking mode.
+     * @throws SocketTimeoutException if the read timeout expires
+     * @throws IOException on error
+     */
+    public int read(final ByteBuffer dst) throws IOException {
+        if (null == remote) {
+            throw new NotConnectedException();
+        }
+        return receive(dst, null);
+    }
+
+    /**
+     * Send a batch of datagrams with as few system calls as possible.
+     * In blocking mode all messages are sent, in non-blocking mode sending
+     * stops at the first message which would block.
+     * After sending, {@link UnixMessage#getLength()} holds the number of bytes
+     * sent for each message.
+     *
+     * @param msgs The messages to send.
+     * @param off The index of the first message to send.
+     * @param len The number of messages to send.
+     * @param target The address to send the datagrams to, or null to use the
+     *            connected address.
+     * @return The number of messages sent.
+     * @throws IOException on error
+     */
+    public int send(final UnixMessage[] msgs, final int off, final int len, final UnixSocketAddress target)
+            throws IOException {
+        ensureOpen();
+        if (null == target && null == remote) {
+            throw new NotConnectedException();
+        }
+        checkBounds(msgs, off, len);
+        final String path = null == target ? null : target.path;
+        final boolean abs = null != target && target.abs;
+        int sent = 0;
+        while (sent < len) {
+            int heap = 0;
+            for (int i = off + sent; i < off + len; i++) {
+                heap += msgs[i].prepare(false);
+            }
+            final int n = native_sendmmsg(sock, msgs, off + sent, len - sent, heap, path, abs, flags());
+            if (0 >= n) {
+                break;
+            }
+            for (int i = off + sent; i < off + sent + n; i++) {
+                msgs[i].complete();
+            }
+            sent += n;
+            if (!blocking) {
+                break;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Receive a batch of datagrams with a single system call.
+     * In blocking mode the call waits for the first datagram and then returns
+     * all datagrams which are already available, up to the given number.
+     * After receiving, {@link UnixMessage#getLength()} holds the length of
+     * each received message.
+     *
+     * @param msgs The messages to receive into.
+     * @param off The index of the first message to use.
+     * @param len The maximum number of messages to receive.
+     * @return The number of messages received, 0 if none is available in
+     *         non-blocking mode.
+     * @throws SocketTimeoutException if the read timeout expires
+     * @throws IOException on error
+     */
+    public int receive(final UnixMessage[] msgs, final int off, final int len) throws IOException {
+        ensureOpen();
+        checkBounds(msgs, off, len);
+        int heap = 0;
+        for (int i = off; i < off + len; i++) {
+            heap += msgs[i].prepare(true);
+        }
+        final int n = native_recvmmsg(sock, msgs, off, len, heap, flags(), timeout);
+        if (0 >= n) {
+            return 0;
+        }
+        for (int i = off; i < off + n; i++) {
+            msgs[i].complete();
+        }
+        return n;
+    }
+
+    /**
+     * Get the credential passing status.
+     *
+     * @see #setPassCred(boolean)
+     *
+     * @return The current status of credential passing.
+     */
+    public boolean getPassCred() {
+        return passcred;
+    }
+
+    /**
+     * Set the credential passing status.
+     * If enabled, the credentials of the sender are reported for datagrams
+     * received by {@link #receive(UnixMessage[], int, int)}.
+     * (Only does anything on linux)
+     *
+     * @param enable Set to true for credentials to be passed.
+     * @throws IOException on error
+     */
+    public void setPassCred(final boolean enable) throws IOException {
+        ensureOpen();
+        native_set_pass_cred(sock, enable);
+        passcred = enable;
+    }
+
+    /**
+     * Return the address this socket is bound to.
+     *
+     * @return The UnixSocketAddress if bound or null if unbound.
+     */
+    public UnixSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Return the address this socket is connected to.
+     *
+     * @return The UnixSocketAddress if connected or null if unconnected.
+     */
+    public UnixSocketAddress getRemoteAddress() {
+        return remote;
+    }
+
+    /**
+     * Get the blocking mode.
+     *
+     * @return true if sends and receives are blocking.
+     * @see #setBlocking(boolean)
+     */
+    public boolean getBlocking() {
+        return blocking;
+    }
+
+    /**
+     * Set the blocking mode.
+     *
+     * @param enable Set to false for non-blocking sends and receives.
+     */
+    public void setBlocking(final boolean enable) {
+        blocking = enable;
+    }
+
+    /**
+     * Set timeout of blocking receives.
+     * A receive which does not get a datagram within the timeout raises a
+     * {@link SocketTimeoutException}.
+     *
+     * @param timeout the timeout in milliseconds, 0 for no timeout
+     */
+    public void setSoTimeout(final int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Get timeout of blocking receives.
+     *
+     * @return the timeout in milliseconds, 0 for no timeout
+     * @see #setSoTimeout(int)
+     */
+    public int getSoTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Check the socket status.
+     *
+     * @return true if closed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        native_close(sock);
+    }
+
+    int getFd() {
+        return sock;
+    }
+
+    int flags() {
+        return blocking ? 0 : USInputStream.MSG_DONTWAIT;
+    }
+
+    private int send(final ByteBuffer src, final String path, final boolean abs) throws IOException {
+        final int pos = src.position();
+        final int len = src.remaining();
+        final int count;
+        if (src.isDirect()) {
+            count = native_send(sock, src, pos, len, path, abs, flags());
+        } else if (src.hasArray()) {
+            count = native_send(sock, src.array(), src.arrayOffset() + pos, len, path, abs, flags());
+        } else {
+            final byte[] b = new byte[len];
+            src.duplicate().get(b);
+            count = native_send(sock, b, 0, len, path, abs, flags());
+        }
+        if (0 > count) {
+            return 0;
+        }
+        src.position(pos + count);
+        return count;
+    }
+
+    private int receive(final ByteBuffer dst, final Object[] from) throws IOException {
+        ensureOpen();
+        if (dst.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+        final int pos = dst.position();
+        final int len = dst.remaining();
+        final int count;
+        if (dst.isDirect()) {
+            count = native_recv(sock, dst, pos, len, from, flags(), timeout);
+        } else {
+            count = native_recv(sock, dst.array(), dst.arrayOffset() + pos, len, from, flags(), timeout);
+        }
+        if (0 < count) {
+            dst.position(pos + Math.min(count, len));
+        }
+        return count;
+    }
+
+    private static void checkBounds(final UnixMessage[] msgs, final int off, final int len) {
+        if (0 > off || 0 > len || off > msgs.length - len) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new NotConnectedException();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package cx.ath.matthew.unix;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+/**
+ * A reusable descriptor for a single message, used by the batched send and
+ * receive methods.
+ *
+ * A message refers to a buffer. For sending, the bytes between the position
+ * and the limit of the buffer form the message. For receiving, the message is
+ * stored at the position of the buffer. In both cases the position is advanced
+ * by the number of bytes transferred.
+ * If credential passing is enabled on the receiving socket, the credentials of
+ * the sending process are stored in the message as well.
+ */
+public class UnixMessage {
+    private ByteBuffer buffer;
+
+    // accessed from native code
+    Object base;
+    int offset;
+    int length;
+    int pid = -1;
+    int uid = -1;
+    int gid = -1;
+    boolean truncated = false;
+
+    /**
+     * Create a message descriptor.
+     *
+     * @param buffer the buffer holding the message data
+     */
+    public UnixMessage(final ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Get the buffer of this message.
+     *
+     * @return the buffer
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Set the buffer of this message.
+     *
+     * @param buffer the buffer holding the message data
+     */
+    public void setBuffer(final ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Get the number of bytes transferred by the last send or receive.
+     *
+     * @return the length of the message
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Check if the received message was larger than the space left in the
+     * buffer, the remaining part of the message has been discarded.
+     *
+     * @return true if the message has been truncated
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Return the pid of the sending process.
+     *
+     * @return the PID or -1 if it is not available
+     */
+    public int getPID() {
+        return pid;
+    }
+
+    /**
+     * Return the uid of the sending process.
+     *
+     * @return the UID or -1 if it is not available
+     */
+    public int getUID() {
+        return uid;
+    }
+
+    /**
+     * Return the gid of the sending process.
+     *
+     * @return the GID or -1 if it is not available
+     */
+    public int getGID() {
+        return gid;
+    }
+
+    /**
+     * Set up the native view of the buffer.
+     *
+     * @param receive true if the message is about to be received
+     * @return the number of bytes which have to be copied for a heap buffer
+     */
+    int prepare(final boolean receive) {
+        offset = buffer.position();
+        length = buffer.remaining();
+        pid = uid = gid = -1;
+        truncated = false;
+        if (buffer.isDirect()) {
+            if (receive && buffer.isReadOnly()) {
+                throw new ReadOnlyBufferException();
+            }
+            base = buffer;
+            return 0;
+        }
+        if (buffer.hasArray()) {
+            base = buffer.array();
+            offset += buffer.arrayOffset();
+        } else if (receive) {
+            throw new ReadOnlyBufferException();
+        } else {
+            final byte[] b = new byte[length];
+            buffer.duplicate().get(b);
+            base = b;
+            offset = 0;
+        }
+        return length;
+    }
+
+    /**
+     * Update the buffer after the message has been transferred.
+     */
+    void complete() {
+        base = null;
+        buffer.position(buffer.position() + Math.min(length, buffer.remaining()));
+    }
+}
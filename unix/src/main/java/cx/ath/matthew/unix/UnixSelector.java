@@ -0,0 +1,285 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package cx.ath.matthew.unix;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+
+/**
+ * An epoll based readiness selector for unix sockets.
+ *
+ * A single thread may wait for events on many sockets. The results of
+ * {@link #select(int[], int)} are returned in a caller supplied array, which
+ * can be reused for every call. For each ready socket two entries are stored,
+ * the file descriptor at the even index and the ready operations at the
+ * following odd index.
+ *
+ * <pre>
+ * final int[] ready = new int[2 * 256];
+ * while (running) {
+ *     final int n = selector.select(ready, -1);
+ *     for (int i = 0; i &lt; n; i++) {
+ *         final Object conn = selector.attachment(ready[2 * i]);
+ *         final int ops = ready[2 * i + 1];
+ *         ...
+ *     }
+ * }
+ * </pre>
+ */
+public class UnixSelector implements Closeable {
+    static {
+        Backend.init();
+    }
+
+    /**
+     * Operation bit for read readiness.
+     */
+    public static final int OP_READ = 0x01;
+
+    /**
+     * Operation bit for write readiness.
+     */
+    public static final int OP_WRITE = 0x02;
+
+    /**
+     * Operation bit for a pending connection on a server socket.
+     */
+    public static final int OP_ACCEPT = 0x04;
+
+    /**
+     * Operation bit for a hangup or error condition.
+     * It is always reported, but only requesting it also reports a peer which
+     * has shut down its writing side.
+     */
+    public static final int OP_HANGUP = 0x08;
+
+    /**
+     * Flag to register a socket in edge-triggered mode.
+     */
+    public static final int EDGE_TRIGGERED = 0x100;
+
+    /**
+     * Flag to report a registered socket only once. After an event has been
+     * reported, the socket has to be re-armed with
+     * {@link #modify(UnixSocket, int)}.
+     */
+    public static final int ONESHOT = 0x200;
+
+    private native void native_create(int[] fds) throws IOException;
+
+    private native void native_ctl(int epfd, int op, int sock, int ops, boolean accept) throws IOException;
+
+    private native int native_wait(int epfd, int evfd, int[] ready, int timeout) throws IOException;
+
+    private native void native_wakeup(int evfd) throws IOException;
+
+    private native void native_close(int epfd, int evfd) throws IOException;
+
+    private static final int CTL_ADD = 1;
+    private static final int CTL_MOD = 2;
+    private static final int CTL_DEL = 3;
+
+    private final int epfd;
+    private final int evfd;
+    private Object[] attachments = new Object[64];
+    private boolean closed = false;
+
+    /**
+     * Create a new selector.
+     *
+     * @throws IOException on error
+     * @throws UnsupportedOperationException if libunix-java is not available
+     */
+    public UnixSelector() throws IOException {
+        if (!Backend.NATIVE) {
+            throw Backend.unsupported();
+        }
+        final int[] fds = new int[2];
+        native_create(fds);
+        epfd = fds[0];
+        evfd = fds[1];
+    }
+
+    /**
+     * Register a socket with this selector.
+     *
+     * @param socket the socket to register
+     * @param ops the operations of interest, optionally combined with {@link #EDGE_TRIGGERED}
+     * @param attachment an object to associate with the socket, may be null
+     * @throws IOException on error
+     */
+    public void register(final UnixSocket socket, final int ops, final Object attachment) throws IOException {
+        register(socket.getFd(), ops, false, attachment);
+    }
+
+    /**
+     * Register a server socket with this selector.
+     * Pending connections are reported as {@link #OP_ACCEPT}.
+     *
+     * @param socket the server socket to register
+     * @param ops the operations of interest, optionally combined with {@link #EDGE_TRIGGERED}
+     * @param attachment an object to associate with the socket, may be null
+     * @throws IOException on error
+     */
+    public void register(final UnixServerSocket socket, final int ops, final Object attachment)
+            throws IOException {
+        register(socket.getFd(), ops, true, attachment);
+    }
+
+    /**
+     * Change the operations of interest for a registered socket.
+     *
+     * @param socket the registered socket
+     * @param ops the operations of interest, optionally combined with {@link #EDGE_TRIGGERED}
+     * @throws IOException on error
+     */
+    public void modify(final UnixSocket socket, final int ops) throws IOException {
+        modify(socket.getFd(), ops);
+    }
+
+    /**
+     * Change the operations of interest for a registered server socket.
+     *
+     * @param socket the registered server socket
+     * @param ops the operations of interest, optionally combined with {@link #EDGE_TRIGGERED}
+     * @throws IOException on error
+     */
+    public void modify(final UnixServerSocket socket, final int ops) throws IOException {
+        ensureOpen();
+        native_ctl(epfd, CTL_MOD, socket.getFd(), ops, true);
+    }
+
+    /**
+     * Remove a socket from this selector.
+     * This must be done before the socket is closed.
+     *
+     * @param socket the registered socket
+     * @throws IOException on error
+     */
+    public void deregister(final UnixSocket socket) throws IOException {
+        deregister(socket.getFd());
+    }
+
+    /**
+     * Remove a server socket from this selector.
+     * This must be done before the socket is closed.
+     *
+     * @param socket the registered server socket
+     * @throws IOException on error
+     */
+    public void deregister(final UnixServerSocket socket) throws IOException {
+        deregister(socket.getFd());
+    }
+
+    /**
+     * Get the object attached to a registered socket.
+     *
+     * @param fd the file descriptor as reported by {@link #select(int[], int)}
+     * @return the attachment or null
+     */
+    public synchronized Object attachment(final int fd) {
+        return fd < attachments.length ? attachments[fd] : null;
+    }
+
+    /**
+     * Wait for registered sockets to become ready.
+     *
+     * @param ready the array to store the file descriptors and ready operations in;
+     *            at most {@code ready.length / 2} sockets are reported per call
+     * @param timeout the timeout in milliseconds, 0 to return immediately, or -1 to
+     *            wait until a socket is ready or {@link #wakeup()} is called
+     * @return the number of ready sockets
+     * @throws IOException on error
+     */
+    public int select(final int[] ready, final int timeout) throws IOException {
+        ensureOpen();
+        return native_wait(epfd, evfd, ready, timeout);
+    }
+
+    /**
+     * Cause a blocked or the next call to {@link #select(int[], int)} to return.
+     *
+     * @throws IOException on error
+     */
+    public void wakeup() throws IOException {
+        ensureOpen();
+        native_wakeup(evfd);
+    }
+
+    /**
+     * Check the selector status.
+     *
+     * @return true if closed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        attachments = new Object[0];
+        native_close(epfd, evfd);
+    }
+
+    void register(final int fd, final int ops) throws IOException {
+        ensureOpen();
+        native_ctl(epfd, CTL_ADD, fd, ops, false);
+    }
+
+    void modify(final int fd, final int ops) throws IOException {
+        ensureOpen();
+        native_ctl(epfd, CTL_MOD, fd, ops, false);
+    }
+
+    private synchronized void register(final int fd, final int ops, final boolean accept, final Object attachment)
+            throws IOException {
+        ensureOpen();
+        native_ctl(epfd, CTL_ADD, fd, ops, accept);
+        if (fd >= attachments.length) {
+            final Object[] n = new Object[Math.max(fd + 1, 2 * attachments.length)];
+            System.arraycopy(attachments, 0, n, 0, attachments.length);
+            attachments = n;
+        }
+        attachments[fd] = attachment;
+    }
+
+    private synchronized void deregister(final int fd) throws IOException {
+        ensureOpen();
+        native_ctl(epfd, CTL_DEL, fd, 0, false);
+        if (fd < attachments.length) {
+            attachments[fd] = null;
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new ClosedSelectorException();
+        }
+    }
+}
@@ -29,6 +29,12 @@ package cx.ath.matthew.unix;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Represents a listening UNIX Socket.
@@ -39,19 +45,52 @@ import java.io.IOException;
  */
 public class UnixServerSocket implements Closeable {
     static {
-        System.loadLibrary("unix-java");
+        Backend.init();
     }
 
-    private native int native_bind(String address, boolean abs) throws IOException;
+    private native int native_bind(String address, boolean abs, int type, int backlog) throws IOException;
 
-    private native void native_close(int sock) throws IOException;
+    private native void native_close(int sock, boolean shutdown) throws IOException;
 
     private native int native_accept(int sock) throws IOException;
 
+    private native int native_accept_batch(int sock, int[] fds, boolean block) throws IOException;
+
+    private native void native_set_blocking(int sock, boolean blocking) throws IOException;
+
+    private native void native_listen(int sock, int backlog) throws IOException;
+
+    private native void native_setsockopt(int sock, int opt, int value) throws IOException;
+
+    private native int native_getsockopt(int sock, int opt) throws IOException;
+
+    private static native int native_getpid();
+
+    private static native String native_inspect(int fd, int[] info) throws IOException;
+
+    // a second descriptor for a socket, as a service manager would keep one
+    static native int native_dup(int fd) throws IOException;
+
+    /**
+     * The default length of the queue of pending connections.
+     */
+    public static final int DEFAULT_BACKLOG = 10;
+
+    // the first descriptor passed by the service manager, see sd_listen_fds(3)
+    private static final int LISTEN_FDS_START = 3;
+    private static List<UnixServerSocket> inherited = null;
+
     private UnixSocketAddress address = null;
     private boolean bound = false;
     private boolean closed = false;
+    private boolean blocking = true;
+    private int type = UnixSocket.SOCK_STREAM;
+    private int backlog = DEFAULT_BACKLOG;
+    private boolean passcred = false;
+    // shared with the service manager, must not be shut down
+    private boolean adopted = false;
     private int sock;
+    private ServerSocketChannel channel = null;
 
     /**
      * Create an un-bound server socket.
@@ -69,6 +108,17 @@ public class UnixServerSocket implements Closeable {
         bind(address);
     }
 
+    /**
+     * Create a server socket of the given type bound to the given address.
+     *
+     * @param address Path to the socket.
+     * @param type The socket type, {@link UnixSocket#SOCK_STREAM} or {@link UnixSocket#SOCK_SEQPACKET}
+     * @throws IOException on bind error
+     */
+    public UnixServerSocket(final UnixSocketAddress address, final int type) throws IOException {
+        bind(address, type);
+    }
+
     /**
      * Create a server socket bound to the given address.
      *
@@ -79,20 +129,152 @@ public class UnixServerSocket implements Closeable {
         this(new UnixSocketAddress(address));
     }
 
+    private UnixServerSocket(final int sock, final UnixSocketAddress address, final int type,
+            final boolean blocking) {
+        this.sock = sock;
+        this.address = address;
+        this.type = type;
+        this.blocking = blocking;
+        this.bound = true;
+        this.adopted = true;
+    }
+
+    /**
+     * Adopt the listening sockets passed by a service manager such as systemd
+     * (socket activation, see sd_listen_fds(3)).
+     * The service manager binds the sockets before the service is started, so
+     * clients can connect, and wait in the listen backlog, while the JVM
+     * starts, and no connection is refused during a restart.
+     * The sockets are only adopted once, further calls return the same list.
+     * Inherited descriptors which are not listening unix stream or seqpacket
+     * sockets are skipped, as are all descriptors if LISTEN_PID does not match
+     * this process.
+     *
+     * @return the inherited server sockets in the order they were passed,
+     *         empty if the process has not been socket activated
+     * @throws IOException on error
+     */
+    public static synchronized List<UnixServerSocket> inherited() throws IOException {
+        if (null != inherited) {
+            return inherited;
+        }
+        if (!Backend.NATIVE) {
+            throw Backend.unsupported();
+        }
+        final List<UnixServerSocket> sockets = new ArrayList<UnixServerSocket>();
+        final String pid = System.getenv("LISTEN_PID");
+        final String fds = System.getenv("LISTEN_FDS");
+        int count = 0;
+        if (null != pid && null != fds) {
+            try {
+                if (Integer.parseInt(pid.trim()) == native_getpid()) {
+                    count = Integer.parseInt(fds.trim());
+                }
+            } catch (final NumberFormatException e) {
+                // not activated
+            }
+        }
+        for (int fd = LISTEN_FDS_START; fd < LISTEN_FDS_START + count; fd++) {
+            final UnixServerSocket socket = adopt(fd);
+            if (null != socket) {
+                sockets.add(socket);
+            }
+        }
+        inherited = Collections.unmodifiableList(sockets);
+        return inherited;
+    }
+
+    /**
+     * Adopt an inherited listening socket. Closing it only releases the
+     * descriptor, the socket stays open for the processes sharing it.
+     *
+     * @param fd the descriptor
+     * @return the server socket, or null if fd is not a listening unix stream
+     *         or seqpacket socket
+     * @throws IOException on error
+     */
+    static UnixServerSocket adopt(final int fd) throws IOException {
+        final int[] info = new int[3];
+        final String path = native_inspect(fd, info);
+        if (-1 == info[0]) {
+            return null;
+        }
+        return new UnixServerSocket(fd, new UnixSocketAddress(path, 1 == info[1]), info[0], 0 == info[2]);
+    }
+
     /**
      * Accepts a connection on the ServerSocket.
      *
-     * @return A UnixSocket connected to the accepted connection.
+     * @return A UnixSocket connected to the accepted connection, or null if
+     *         there is no pending connection in non-blocking mode.
      * @throws IOException on error
      */
     public UnixSocket accept() throws IOException {
+        if (null != channel) {
+            final SocketChannel client = channel.accept();
+            return null == client ? null : new UnixSocket(client, address);
+        }
         final int client_sock = native_accept(sock);
-        return new UnixSocket(client_sock, address);
+        if (-1 == client_sock) {
+            return null;
+        }
+        return accepted(client_sock);
+    }
+
+    /**
+     * Accepts all pending connections, up to the length of the given array,
+     * with a single native call.
+     * In blocking mode this waits for the first connection, further
+     * connections are only accepted if they are already pending. This drains
+     * the backlog quickly, e.g. when many clients reconnect at once.
+     * The accepted sockets are not inherited by child processes.
+     *
+     * @param sockets the array to store the accepted sockets in, from index 0
+     * @return the number of accepted connections, 0 if there is no pending
+     *         connection in non-blocking mode
+     * @throws IOException on error
+     */
+    public int accept(final UnixSocket[] sockets) throws IOException {
+        if (null != channel) {
+            int n = 0;
+            while (n < sockets.length) {
+                final SocketChannel client = channel.accept();
+                if (null == client) {
+                    break;
+                }
+                sockets[n++] = new UnixSocket(client, address);
+                if (blocking) {
+                    // a channel cannot tell if another connection is pending
+                    break;
+                }
+            }
+            return n;
+        }
+        final int[] fds = new int[sockets.length];
+        final int n = native_accept_batch(sock, fds, blocking);
+        if (-1 == n) {
+            return 0;
+        }
+        for (int i = 0; i < n; i++) {
+            sockets[i] = accepted(fds[i]);
+        }
+        return n;
+    }
+
+    UnixSocket accepted(final int client_sock) {
+        return new UnixSocket(client_sock, address, type, passcred);
     }
 
     @Override
     public synchronized void close() throws IOException {
-        native_close(sock);
+        if (null != channel) {
+            channel.close();
+            channel = null;
+        } else {
+            // shutting down an inherited socket would refuse connections to
+            // the service manager's copy as well
+            native_close(sock, !adopted);
+        }
         sock = 0;
         closed = true;
         bound = false;
@@ -105,10 +287,34 @@ public class UnixServerSocket implements Closeable {
      * @throws IOException on error
      */
     public void bind(final UnixSocketAddress address) throws IOException {
+        bind(address, UnixSocket.SOCK_STREAM);
+    }
+
+    /**
+     * Binds a server socket of the given type to the given address.
+     *
+     * @param address Path to the socket.
+     * @param type The socket type, {@link UnixSocket#SOCK_STREAM} or {@link UnixSocket#SOCK_SEQPACKET}
+     * @throws IOException on error
+     */
+    public void bind(final UnixSocketAddress address, final int type) throws IOException {
         if (bound) {
             close();
         }
-        sock = native_bind(address.path, address.abs);
+        if (Backend.useChannel(address, type)) {
+            channel = Backend.openServerChannel(address, backlog);
+            channel.configureBlocking(blocking);
+            this.type = type;
+            bound = true;
+            closed = false;
+            this.address = address;
+            return;
+        }
+        sock = native_bind(address.path, address.abs, type, backlog);
+        this.type = type;
+        if (!blocking) {
+            native_set_blocking(sock, false);
+        }
         bound = true;
         closed = false;
         this.address = address;
@@ -124,6 +330,23 @@ public class UnixServerSocket implements Closeable {
         bind(new UnixSocketAddress(address));
     }
 
+    int getFd() {
+        if (null != channel) {
+            throw Backend.unsupported();
+        }
+        return sock;
+    }
+
+    /**
+     * Check if this socket uses the java.nio backend instead of libunix-java.
+     *
+     * @return true if the socket is a java.nio channel
+     * @see UnixSocket#isChannelBackend()
+     */
+    public boolean isChannelBackend() {
+        return null != channel;
+    }
+
     /**
      * Return the address this socket is bound to.
      *
@@ -133,6 +356,15 @@ public class UnixServerSocket implements Closeable {
         return address;
     }
 
+    /**
+     * Return the type of this socket.
+     *
+     * @return {@link UnixSocket#SOCK_STREAM} or {@link UnixSocket#SOCK_SEQPACKET}
+     */
+    public int getType() {
+        return type;
+    }
+
     /**
      * Check the status of the socket.
      *
@@ -150,4 +382,145 @@ public class UnixServerSocket implements Closeable {
     public boolean isBound() {
         return bound;
     }
+
+    /**
+     * Set the length of the queue of pending connections.
+     * Clients which connect while the queue is full are refused, so a larger
+     * backlog absorbs bursts of reconnecting clients.
+     * If the socket is already bound, the new backlog is applied immediately,
+     * except on the java.nio backend where it applies to the next bind.
+     *
+     * @param backlog the maximum number of pending connections, the kernel caps
+     *            it at net.core.somaxconn
+     * @throws IOException on error
+     */
+    public void setBacklog(final int backlog) throws IOException {
+        if (bound && null == channel) {
+            native_listen(sock, backlog);
+        }
+        this.backlog = backlog;
+    }
+
+    /**
+     * Get the length of the queue of pending connections.
+     *
+     * @return the backlog
+     * @see #setBacklog(int)
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Set the size of the kernel send buffer (SO_SNDBUF).
+     *
+     * @param size the requested size in bytes
+     * @throws IOException on error
+     */
+    public void setSendBufferSize(final int size) throws IOException {
+        setOption(UnixSocket.OPT_SNDBUF, size);
+    }
+
+    /**
+     * Get the size of the kernel send buffer (SO_SNDBUF).
+     *
+     * @return the size in bytes
+     * @throws IOException on error
+     */
+    public int getSendBufferSize() throws IOException {
+        return getOption(UnixSocket.OPT_SNDBUF);
+    }
+
+    /**
+     * Set the size of the kernel receive buffer (SO_RCVBUF).
+     *
+     * @param size the requested size in bytes
+     * @throws IOException on error
+     */
+    public void setReceiveBufferSize(final int size) throws IOException {
+        setOption(UnixSocket.OPT_RCVBUF, size);
+    }
+
+    /**
+     * Get the size of the kernel receive buffer (SO_RCVBUF).
+     *
+     * @return the size in bytes
+     * @throws IOException on error
+     */
+    public int getReceiveBufferSize() throws IOException {
+        return getOption(UnixSocket.OPT_RCVBUF);
+    }
+
+    /**
+     * Set the credential passing status (SO_PASSCRED).
+     * Accepted sockets inherit the status.
+     * (Only does anything on linux)
+     *
+     * @param enable Set to true for credentials to be passed.
+     * @throws IOException on error
+     */
+    public void setPassCred(final boolean enable) throws IOException {
+        setOption(UnixSocket.OPT_PASSCRED, enable ? 1 : 0);
+        passcred = enable;
+    }
+
+    /**
+     * Get the credential passing status.
+     *
+     * @return The current status of credential passing.
+     * @throws IOException on error
+     */
+    public boolean getPassCred() throws IOException {
+        return 0 != getOption(UnixSocket.OPT_PASSCRED);
+    }
+
+    private void setOption(final int opt, final int value) throws IOException {
+        if (!bound) {
+            throw new NotConnectedException();
+        }
+        if (null == channel) {
+            native_setsockopt(sock, opt, value);
+        } else if (UnixSocket.OPT_RCVBUF == opt) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, value);
+        } else {
+            throw Backend.unsupported();
+        }
+    }
+
+    private int getOption(final int opt) throws IOException {
+        if (!bound) {
+            throw new NotConnectedException();
+        }
+        if (null == channel) {
+            return native_getsockopt(sock, opt);
+        } else if (UnixSocket.OPT_RCVBUF == opt) {
+            return channel.getOption(StandardSocketOptions.SO_RCVBUF);
+        }
+        throw Backend.unsupported();
+    }
+
+    /**
+     * Get the blocking mode.
+     *
+     * @return true if accept is blocking.
+     * @see #setBlocking(boolean)
+     */
+    public boolean getBlocking() {
+        return blocking;
+    }
+
+    /**
+     * Set the blocking mode.
+     *
+     * @param enable Set to false for a non-blocking accept.
+     * @throws IOException on error
+     */
+    public void setBlocking(final boolean enable) throws IOException {
+        if (null != channel) {
+            channel.configureBlocking(enable);
+        } else if (bound) {
+            native_set_blocking(sock, enable);
+        }
+        blocking = enable;
+    }
 }
@@ -0,0 +1,119 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package cx.ath.matthew.unix;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.spi.AbstractInterruptibleChannel;
+
+/**
+ * A channel for a listening unix socket.
+ *
+ * In non-blocking mode {@link #accept()} returns immediately, so a single
+ * thread may serve the listening socket together with its connections.
+ */
+public class UnixServerSocketChannel extends AbstractInterruptibleChannel {
+    private final UnixServerSocket socket;
+
+    /**
+     * Create a channel for the given bound server socket.
+     *
+     * @param socket the unix server socket
+     */
+    UnixServerSocketChannel(final UnixServerSocket socket) {
+        this.socket = socket;
+    }
+
+    /**
+     * Open a channel bound to the given address.
+     *
+     * @param address Path to the socket.
+     * @return a new, bound channel
+     * @throws IOException on bind error
+     */
+    public static UnixServerSocketChannel open(final UnixSocketAddress address) throws IOException {
+        return new UnixServerSocketChannel(new UnixServerSocket(address));
+    }
+
+    /**
+     * Get the server socket used by this channel.
+     *
+     * @return the unix server socket
+     */
+    public UnixServerSocket socket() {
+        return socket;
+    }
+
+    /**
+     * Adjust the blocking mode of this channel.
+     *
+     * @param block true for blocking mode, false for non-blocking mode
+     * @return this channel
+     * @throws IOException on error
+     */
+    public UnixServerSocketChannel configureBlocking(final boolean block) throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+        socket.setBlocking(block);
+        return this;
+    }
+
+    /**
+     * Check the blocking mode of this channel.
+     *
+     * @return true if this channel is in blocking mode
+     */
+    public boolean isBlocking() {
+        return socket.getBlocking();
+    }
+
+    /**
+     * Accepts a connection on this channel.
+     * The returned channel is in blocking mode.
+     *
+     * @return A channel for the accepted connection, or null if there is no
+     *         pending connection in non-blocking mode.
+     * @throws IOException on error
+     */
+    public UnixSocketChannel accept() throws IOException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+        boolean completed = false;
+        try {
+            begin();
+            final UnixSocket client = socket.accept();
+            completed = true;
+            return null == client ? null : new UnixSocketChannel(client);
+        } finally {
+            end(completed);
+        }
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,535 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+
+package cx.ath.matthew.unix;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A connection which transfers data through shared memory instead of the
+ * kernel socket buffers.
+ *
+ * The connection is set up over a connected {@link UnixSocket}: the side
+ * calling {@link #connect(UnixSocket, int)} creates a memfd holding one
+ * single-producer, single-consumer ring per direction and passes it, together
+ * with the eventfds used for wakeups, to the side calling
+ * {@link #accept(UnixSocket)}. Afterwards reads and writes only copy from and
+ * to the mapped memory; a system call is only made to wake the peer if it is
+ * waiting for data or space. The socket stays open to notice a peer which
+ * exits without closing the connection.
+ *
+ * The streams and buffer methods behave like those of {@link UnixSocket}, so
+ * protocol code written against streams does not need to change.
+ * At most one thread should read and one thread should write at a time.
+ */
+public class UnixShmSocket implements Closeable {
+    static {
+        Backend.init();
+    }
+
+    private static native void native_create(int capacity, FileDescriptor[] fds) throws IOException;
+
+    private static native ByteBuffer native_map(int fd) throws IOException;
+
+    private static native void native_unmap(ByteBuffer map) throws IOException;
+
+    private static native int native_capacity(ByteBuffer map);
+
+    private static native int native_read(ByteBuffer map, int side, int bell, int peerbell, int sock, Object buf,
+            int off, int len, boolean block, int timeout) throws IOException;
+
+    private static native int native_write(ByteBuffer map, int side, int bell, int peerbell, int sock, Object buf,
+            int off, int len, boolean block) throws IOException;
+
+    private static native void native_shutdown(ByteBuffer map, int side, int[] bells);
+
+    private static native void native_close_fd(int fd);
+
+    /**
+     * The default capacity of each ring.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    private static final byte HANDSHAKE = 'S';
+    private static final int FDS = 5;
+    // return codes of native_read and native_write
+    private static final int EOF = 0;
+    private static final int AGAIN = -1;
+    private static final int CLOSED = -2;
+    private static final int EPROTO = 71;
+
+    private final UnixSocket socket;
+    private final ByteBuffer map;
+    private final int side;
+    // data and space eventfds of side 0, then of side 1
+    private final int[] bells;
+    private final int sock;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+    private final InputStream is = new ShmInputStream();
+    private final OutputStream os = new ShmOutputStream();
+    private volatile boolean closed = false;
+    private volatile boolean blocking = true;
+    private volatile int timeout = 0;
+
+    private UnixShmSocket(final UnixSocket socket, final ByteBuffer map, final int side, final int[] bells) {
+        this.socket = socket;
+        this.map = map;
+        this.side = side;
+        this.bells = bells;
+        this.sock = socket.getFd();
+    }
+
+    /**
+     * Set up shared memory on a connected socket with rings of the default
+     * capacity. The peer has to call {@link #accept(UnixSocket)}.
+     *
+     * @param socket a connected, blocking socket, which is owned by the returned connection
+     * @return the shared memory connection
+     * @throws IOException on error
+     */
+    public static UnixShmSocket connect(final UnixSocket socket) throws IOException {
+        return connect(socket, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Set up shared memory on a connected socket. The peer has to call
+     * {@link #accept(UnixSocket)}.
+     *
+     * @param socket a connected, blocking socket, which is owned by the returned connection
+     * @param capacity the capacity of each ring in bytes, a power of two of at least 4096
+     * @return the shared memory connection
+     * @throws IOException on error
+     */
+    public static UnixShmSocket connect(final UnixSocket socket, final int capacity) throws IOException {
+        if (capacity < 4096 || capacity > 1 << 30 || 0 != (capacity & capacity - 1)) {
+            throw new IllegalArgumentException("capacity must be a power of two between 4096 and 2^30");
+        }
+        checkSocket(socket);
+        final FileDescriptor[] fds = new FileDescriptor[FDS];
+        native_create(capacity, fds);
+        final int[] nfds = numbers(fds);
+        ByteBuffer map = null;
+        try {
+            map = native_map(nfds[0]);
+            final ByteBuffer hello = ByteBuffer.wrap(new byte[] { HANDSHAKE });
+            while (hello.hasRemaining()) {
+                socket.sendFileDescriptors(hello, fds);
+            }
+            final int ack = socket.getInputStream().read();
+            if (HANDSHAKE != ack) {
+                throw new UnixIOException(0, "Shared memory handshake failed");
+            }
+        } catch (IOException | RuntimeException e) {
+            if (null != map) {
+                native_unmap(map);
+            }
+            closeAll(nfds, 0);
+            throw e;
+        }
+        native_close_fd(nfds[0]);
+        return new UnixShmSocket(socket, map, 0, copyBells(nfds));
+    }
+
+    /**
+     * Accept shared memory set up by a peer calling {@link #connect(UnixSocket, int)}.
+     *
+     * @param socket a connected, blocking socket, which is owned by the returned connection
+     * @return the shared memory connection
+     * @throws IOException on error
+     */
+    public static UnixShmSocket accept(final UnixSocket socket) throws IOException {
+        checkSocket(socket);
+        final FileDescriptor[] fds = new FileDescriptor[FDS];
+        final ByteBuffer hello = ByteBuffer.allocate(1);
+        if (1 != socket.receiveFileDescriptors(hello, fds)) {
+            throw new UnixIOException(0, "Shared memory handshake failed");
+        }
+        int received = 0;
+        while (received < FDS && null != fds[received]) {
+            received++;
+        }
+        final int[] nfds = numbers(fds);
+        if (HANDSHAKE != hello.get(0) || FDS != received) {
+            closeAll(nfds, 0);
+            throw new UnixIOException(0, "Shared memory handshake failed");
+        }
+        ByteBuffer map = null;
+        try {
+            map = native_map(nfds[0]);
+            socket.getOutputStream().write(HANDSHAKE);
+            socket.getOutputStream().flush();
+        } catch (IOException | RuntimeException e) {
+            if (null != map) {
+                native_unmap(map);
+            }
+            closeAll(nfds, 0);
+            throw e;
+        }
+        native_close_fd(nfds[0]);
+        return new UnixShmSocket(socket, map, 1, copyBells(nfds));
+    }
+
+    private static void checkSocket(final UnixSocket socket) throws IOException {
+        if (!socket.isConnected()) {
+            throw new NotConnectedException();
+        }
+        if (!socket.getBlocking()) {
+            throw new IllegalArgumentException("The socket must be in blocking mode");
+        }
+        socket.ensureNative();
+    }
+
+    private static int[] numbers(final FileDescriptor[] fds) {
+        final int[] n = new int[fds.length];
+        for (int i = 0; i < fds.length; i++) {
+            n[i] = null == fds[i] ? -1 : UnixSocket.fdNumber(fds[i]);
+        }
+        return n;
+    }
+
+    private static int[] copyBells(final int[] nfds) {
+        final int[] b = new int[FDS - 1];
+        System.arraycopy(nfds, 1, b, 0, b.length);
+        return b;
+    }
+
+    private static void closeAll(final int[] fds, final int from) {
+        for (int i = from; i < fds.length; i++) {
+            if (-1 != fds[i]) {
+                native_close_fd(fds[i]);
+            }
+        }
+    }
+
+    private int dataBell(final int s) {
+        return bells[s];
+    }
+
+    private int spaceBell(final int s) {
+        return bells[2 + s];
+    }
+
+    private int read(final Object buf, final int off, final int len) throws IOException {
+        try {
+            lock.readLock().lock();
+            try {
+                if (closed) {
+                    throw new NotConnectedException();
+                }
+                synchronized (readLock) {
+                    final int rv = native_read(map, side, dataBell(side), spaceBell(1 - side), sock, buf, off, len,
+                            blocking, timeout);
+                    if (CLOSED == rv) {
+                        throw new NotConnectedException();
+                    }
+                    // same mapping as USInputStream.read(byte[], int, int)
+                    if (EOF == rv) {
+                        return -1;
+                    } else if (AGAIN == rv) {
+                        return 0;
+                    }
+                    return rv;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        } catch (final UnixIOException e) {
+            throw broken(e);
+        }
+    }
+
+    private int write(final Object buf, final int off, final int len, final boolean all) throws IOException {
+        try {
+            lock.readLock().lock();
+            try {
+                if (closed) {
+                    throw new NotConnectedException();
+                }
+                synchronized (writeLock) {
+                    int done = 0;
+                    do {
+                        final int rv = native_write(map, side, spaceBell(side), dataBell(1 - side), sock, buf,
+                                off + done, len - done, blocking);
+                        if (CLOSED == rv) {
+                            throw new NotConnectedException();
+                        } else if (AGAIN == rv) {
+                            break;
+                        }
+                        done += rv;
+                    } while (all && done < len);
+                    return done;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        } catch (final UnixIOException e) {
+            throw broken(e);
+        }
+    }
+
+    // the native code marks the connection closed when the peer corrupts the shared rings
+    private UnixIOException broken(final UnixIOException e) {
+        if (EPROTO == e.getErrorNumber()) {
+            try {
+                close();
+            } catch (final IOException x) {
+                e.addSuppressed(x);
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Reads a sequence of bytes into the given buffer.
+     *
+     * @param dst The buffer into which bytes are to be transferred.
+     * @return The number of bytes read, 0 if no data is available in non-blocking
+     *         mode, or -1 if the peer has closed the connection.
+     * @throws SocketTimeoutException if the read timeout expires
+     * @throws IOException on error
+     * @see UnixSocket#read(ByteBuffer)
+     */
+    public int read(final ByteBuffer dst) throws IOException {
+        if (dst.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+        final int pos = dst.position();
+        final int len = dst.remaining();
+        if (0 == len) {
+            return 0;
+        }
+        final int count;
+        if (dst.isDirect()) {
+            count = read(dst, pos, len);
+        } else {
+            count = read(dst.array(), dst.arrayOffset() + pos, len);
+        }
+        if (0 < count) {
+            dst.position(pos + count);
+        }
+        return count;
+    }
+
+    /**
+     * Writes a sequence of bytes from the given buffer. In blocking mode all
+     * remaining bytes are written, waiting for the peer to make space as
+     * necessary.
+     *
+     * @param src The buffer from which bytes are to be retrieved.
+     * @return The number of bytes written, possibly 0 in non-blocking mode.
+     * @throws IOException on error
+     * @see UnixSocket#write(ByteBuffer)
+     */
+    public int write(final ByteBuffer src) throws IOException {
+        final int pos = src.position();
+        final int len = src.remaining();
+        if (0 == len) {
+            return 0;
+        }
+        final int count;
+        if (src.isDirect()) {
+            count = write(src, pos, len, blocking);
+        } else if (src.hasArray()) {
+            count = write(src.array(), src.arrayOffset() + pos, len, blocking);
+        } else {
+            final byte[] b = new byte[len];
+            src.duplicate().get(b);
+            count = write(b, 0, len, blocking);
+        }
+        src.position(pos + count);
+        return count;
+    }
+
+    /**
+     * Returns an InputStream for reading from the shared memory.
+     *
+     * @return An InputStream connected to the ring written by the peer.
+     */
+    public InputStream getInputStream() {
+        return is;
+    }
+
+    /**
+     * Returns an OutputStream for writing to the shared memory.
+     * Written data is immediately visible to the peer, flushing is not
+     * necessary.
+     *
+     * @return An OutputStream connected to the ring read by the peer.
+     */
+    public OutputStream getOutputStream() {
+        return os;
+    }
+
+    /**
+     * Get the socket this connection was set up on.
+     *
+     * @return the socket
+     */
+    public UnixSocket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Get the capacity of each ring.
+     *
+     * @return the capacity in bytes
+     */
+    public int getCapacity() {
+        return native_capacity(map);
+    }
+
+    /**
+     * Set the blocking mode.
+     *
+     * @param enable Set to false for non-blocking reads and writes.
+     */
+    public void setBlocking(final boolean enable) {
+        blocking = enable;
+    }
+
+    /**
+     * Get the blocking mode.
+     *
+     * @return true if reads and writes are blocking.
+     */
+    public boolean getBlocking() {
+        return blocking;
+    }
+
+    /**
+     * Set timeout of read requests.
+     *
+     * @param timeout the timeout in milliseconds, 0 to wait forever
+     */
+    public void setSoTimeout(final int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Get timeout of read requests.
+     *
+     * @return the timeout in milliseconds
+     */
+    public int getSoTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Check the status of the connection.
+     *
+     * @return True if closed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the connection and the socket. The peer reads the data written so
+     * far followed by end-of-stream. Threads blocked on this connection throw
+     * {@link NotConnectedException}.
+     *
+     * @throws IOException on error
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            native_shutdown(map, side, bells);
+        }
+        lock.writeLock().lock();
+        try {
+            native_unmap(map);
+            closeAll(bells, 0);
+        } finally {
+            lock.writeLock().unlock();
+            socket.close();
+        }
+    }
+
+    private class ShmInputStream extends InputStream {
+        private final byte[] one = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            synchronized (one) {
+                int rv = 0;
+                while (0 == rv) {
+                    rv = read(one, 0, 1);
+                }
+                return -1 == rv ? -1 : 0xFF & one[0];
+            }
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (0 > off || 0 > len || off > b.length - len) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (0 == len) {
+                return 0;
+            }
+            return UnixShmSocket.this.read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            UnixShmSocket.this.close();
+        }
+    }
+
+    private class ShmOutputStream extends OutputStream {
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (0 > off || 0 > len || off > b.length - len) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (0 != len) {
+                UnixShmSocket.this.write(b, off, len, true);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            UnixShmSocket.this.close();
+        }
+    }
+}
@@ -28,9 +28,20 @@
 package cx.ath.matthew.unix;
 
 import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 
 /**
  * Represents a UnixSocket.
@@ -41,45 +52,123 @@ import java.io.OutputStream;
  */
 public class UnixSocket implements Closeable {
     static {
-        System.loadLibrary("unix-java");
+        Backend.init();
     }
 
+    /**
+     * Socket type for a reliable byte stream, the default.
+     */
+    public static final int SOCK_STREAM = 1;
+
+    /**
+     * Socket type for a reliable, connection-oriented stream of messages which
+     * keeps message boundaries. Every read returns exactly one message, every
+     * write sends one message.
+     */
+    public static final int SOCK_SEQPACKET = 5;
+
+    // option identifiers, mapped to the socket options in native code
+    static final int OPT_SNDBUF = 1;
+    static final int OPT_RCVBUF = 2;
+    static final int OPT_PEEK_OFF = 3;
+    static final int OPT_PASSCRED = 4;
+
     private native void native_set_pass_cred(int sock, boolean passcred) throws IOException;
 
-    private native int native_connect(String address, boolean abs) throws IOException;
+    private native int native_connect(String address, boolean abs, int type) throws IOException;
 
     private native void native_close(int sock) throws IOException;
 
-    private native int native_getPID(int sock);
+    private native void native_shutdown(int sock) throws IOException;
 
-    private native int native_getUID(int sock);
+    private static native void native_socketpair(int type, int[] fds) throws IOException;
 
-    private native int native_getGID(int sock);
+    private native int native_recvmsg(int sock, UnixMessage msg, int heap, int flags, int timeout)
+            throws IOException;
+
+    private native int[] native_peer_credentials(int sock, int[] ids, FileDescriptor[] pidfd) throws IOException;
 
     private native void native_send_creds(int sock, byte data) throws IOException;
 
     private native byte native_recv_creds(int sock, int[] creds) throws IOException;
 
+    private native int native_recv_direct(int sock, ByteBuffer buf, int pos, int len, int flags, int timeout)
+            throws IOException;
+
+    private native int native_recv_array(int sock, byte[] b, int off, int len, int flags, int timeout)
+            throws IOException;
+
+    private native int native_send_direct(int sock, ByteBuffer buf, int pos, int len, int flags) throws IOException;
+
+    private native int native_send_array(int sock, byte[] b, int off, int len, int flags) throws IOException;
+
+    private native long native_sendv(int sock, Object[] bufs, int[] offs, int[] lens, int count, int heap,
+            int flags) throws IOException;
+
+    private native int native_recvv(int sock, Object[] bufs, int[] offs, int[] lens, int count, int heap,
+            int flags, int timeout) throws IOException;
+
+    private native int native_send_fds(int sock, Object buf, int off, int len, FileDescriptor[] fds, int flags)
+            throws IOException;
+
+    private native int native_recv_fds(int sock, Object buf, int off, int len, FileDescriptor[] fds, int flags,
+            int timeout) throws IOException;
+
+    private static native int native_fd_number(FileDescriptor fd);
+
+    private static native void native_relay(int a, int b, long[] counts) throws IOException;
+
+    private static native int native_channel_fd(FileChannel channel);
+
+    private static native long native_sendfile(int sock, int fd, long position, long count, boolean block)
+            throws IOException;
+
+    private static native long native_splice_to_file(int sock, int fd, long position, long count, boolean block,
+            int timeout) throws IOException;
+
+    private native void native_setsockopt(int sock, int opt, int value) throws IOException;
+
+    private native int native_getsockopt(int sock, int opt) throws IOException;
+
     private UnixSocketAddress address = null;
     private USOutputStream os = null;
     private USInputStream is = null;
+    private SocketChannel channel = null;
+    private InputStream channelIn = null;
+    private OutputStream channelOut = null;
+    private boolean inputShutdown = false;
+    private boolean outputShutdown = false;
     private boolean closed = false;
     private boolean connected = false;
     private boolean passcred = false;
     private int sock = 0;
+    private int type = SOCK_STREAM;
     private boolean blocking = true;
+    private int timeout = 0;
+    private boolean parkOnReadiness = false;
+    private int readAhead = 0;
+    private int writeBuffer = 0;
+    private int flushDelay = 0;
     private int uid = -1;
     private int pid = -1;
     private int gid = -1;
+    private PeerCredentials credentials = null;
 
-    UnixSocket(final int sock, final UnixSocketAddress address) {
+    UnixSocket(final int sock, final UnixSocketAddress address, final int type, final boolean passcred) {
         this.sock = sock;
         this.address = address;
+        this.type = type;
+        this.passcred = passcred;
         this.connected = true;
         this.os = new USOutputStream(sock, this);
         this.is = new USInputStream(sock, this);
     }
 
+    UnixSocket(final SocketChannel channel, final UnixSocketAddress address) throws IOException {
+        this.address = address;
+        attach(channel);
+    }
+
     /**
      * Create an unconnected socket.
      */
@@ -96,6 +185,17 @@ public class UnixSocket implements Closeable {
         connect(address);
     }
 
+    /**
+     * Create a socket of the given type connected to the given address.
+     *
+     * @param address The Unix Socket address to connect to
+     * @param type The socket type, {@link #SOCK_STREAM} or {@link #SOCK_SEQPACKET}
+     * @throws IOException on connect error
+     */
+    public UnixSocket(final UnixSocketAddress address, final int type) throws IOException {
+        connect(address, type);
+    }
+
     /**
      * Create a socket connected to the given address.
      *
@@ -113,16 +213,37 @@ public class UnixSocket implements Closeable {
      * @throws IOException on error
      */
     public void connect(final UnixSocketAddress address) throws IOException {
+        connect(address, SOCK_STREAM);
+    }
+
+    /**
+     * Connect the socket to this address using the given socket type.
+     *
+     * @param address The Unix Socket address to connect to
+     * @param type The socket type, {@link #SOCK_STREAM} or {@link #SOCK_SEQPACKET}
+     * @throws IOException on error
+     */
+    public void connect(final UnixSocketAddress address, final int type) throws IOException {
         if (connected) {
             close();
         }
-        this.sock = native_connect(address.path, address.abs);
+        if (Backend.useChannel(address, type)) {
+            this.address = address;
+            attach(Backend.openChannel(address));
+            return;
+        }
+        this.sock = native_connect(address.path, address.abs, type);
+        this.type = type;
         this.os = new USOutputStream(this.sock, this);
         this.is = new USInputStream(this.sock, this);
         this.address = address;
         this.connected = true;
         this.closed = false;
         this.is.setBlocking(blocking);
+        this.is.setSoTimeout(timeout);
+        this.is.setReadAhead(readAhead);
+        this.os.setWriteBuffer(writeBuffer);
+        this.os.setFlushDelay(flushDelay);
     }
 
     /**
@@ -135,6 +256,30 @@ public class UnixSocket implements Closeable {
         connect(new UnixSocketAddress(address));
     }
 
+    private void attach(final SocketChannel channel) throws IOException {
+        channel.configureBlocking(blocking);
+        this.channel = channel;
+        this.channelIn = Channels.newInputStream(channel);
+        this.channelOut = Channels.newOutputStream(channel);
+        this.type = SOCK_STREAM;
+        this.connected = true;
+        this.closed = false;
+        this.inputShutdown = false;
+        this.outputShutdown = false;
+    }
+
+    /**
+     * Check if this socket uses the java.nio backend instead of libunix-java.
+     * Only plain stream sockets on a path use java.nio, see the system property
+     * {@code cx.ath.matthew.unix.backend}. Credentials, file descriptor passing,
+     * read timeouts and the stream buffering options need libunix-java.
+     *
+     * @return true if the socket is a java.nio channel
+     */
+    public boolean isChannelBackend() {
+        return null != channel;
+    }
+
     @Override
     public void finalize() {
         try {
@@ -145,21 +290,76 @@ public class UnixSocket implements Closeable {
 
     @Override
     public synchronized void close() throws IOException {
-        native_close(sock);
-        sock = 0;
+        if (null != channel) {
+            channel.close();
+            channel = null;
+            channelIn = null;
+            channelOut = null;
+            this.closed = true;
+            this.connected = false;
+            return;
+        }
+        if (0 != sock) {
+            if (parkOnReadiness) {
+                ReadinessPoller.cancel(sock);
+            }
+            native_close(sock);
+            sock = 0;
+        }
+        if (null != credentials && null != credentials.getPidFd()) {
+            new FileInputStream(credentials.getPidFd()).close();
+        }
+        // a reconnected socket has a different peer
+        credentials = null;
+        uid = -1;
+        pid = -1;
+        gid = -1;
         this.closed = true;
         this.connected = false;
         os = null;
         is = null;
     }
 
+    /**
+     * Shut down both directions of the connection but keep the descriptor.
+     * Threads blocked reading from the socket see end-of-stream, so a thread
+     * which owns the reads can close the socket once it has stopped using the
+     * descriptor, before its number can be reused.
+     *
+     * @throws IOException on error
+     */
+    synchronized void shutdown() throws IOException {
+        if (null != channel) {
+            channel.shutdownInput();
+            channel.shutdownOutput();
+        } else if (0 != sock) {
+            native_shutdown(sock);
+        }
+    }
+
+    int getFd() {
+        if (null != channel) {
+            throw Backend.unsupported();
+        }
+        return sock;
+    }
+
+    /**
+     * Returns the type of this socket.
+     *
+     * @return {@link #SOCK_STREAM} or {@link #SOCK_SEQPACKET}
+     */
+    public int getType() {
+        return type;
+    }
+
     /**
      * Returns an InputStream for reading from the socket.
      *
      * @return An InputStream connected to this socket.
      */
     public InputStream getInputStream() {
-        return is;
+        return null != channel ? channelIn : is;
     }
 
     /**
@@ -168,7 +368,7 @@ public class UnixSocket implements Closeable {
      * @return An OutputStream connected to this socket.
      */
     public OutputStream getOutputStream() {
-        return os;
+        return null != channel ? channelOut : os;
     }
 
     /**
@@ -181,6 +381,749 @@ public class UnixSocket implements Closeable {
         return address;
     }
 
+    /**
+     * Reads a sequence of bytes from this socket into the given buffer.
+     * Direct buffers are filled in place without any copying, heap buffers only
+     * receive a copy of the bytes actually read.
+     * On a {@link #SOCK_SEQPACKET} socket exactly one message is read, the part
+     * of the message which does not fit into the buffer is discarded.
+     *
+     * @param dst The buffer into which bytes are to be transferred.
+     * @return The number of bytes read, 0 if no data is available in non-blocking
+     *         mode, or -1 if the socket has reached end-of-stream.
+     * @throws SocketTimeoutException if the read timeout expires
+     * @throws IOException on error
+     */
+    public int read(final ByteBuffer dst) throws IOException {
+        return read(dst, blocking ? 0 : USInputStream.MSG_DONTWAIT);
+    }
+
+    int read(final ByteBuffer dst, final int flags) throws IOException {
+        if (!connected) {
+            throw new NotConnectedException();
+        }
+        if (dst.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+        if (null != channel) {
+            checkChannelTimeout();
+            return channel.read(dst);
+        }
+        final int pos = dst.position();
+        final int len = dst.remaining();
+        if (0 == len) {
+            return 0;
+        }
+        if (null != is) {
+            // bytes already read ahead by the input stream come first
+            final int n = is.drain(dst);
+            if (0 < n) {
+                return n;
+            }
+        }
+        int count;
+        if (parkOnReadiness && 0 == flags) {
+            while (-1 == (count = recv(dst, pos, len, USInputStream.MSG_DONTWAIT, 0))) {
+                ReadinessPoller.await(sock, UnixSelector.OP_READ, timeout);
+                if (!connected) {
+                    throw new NotConnectedException();
+                }
+            }
+        } else {
+            count = recv(dst, pos, len, flags, timeout);
+        }
+        // see USInputStream.read(byte[], int, int)
+        if (0 == count) {
+            return -1;
+        } else if (-1 == count) {
+            return 0;
+        }
+        dst.position(pos + count);
+        return count;
+    }
+
+    /**
+     * Reads into a message together with the credentials of the sending
+     * process. The kernel attaches the credentials to the data if
+     * {@link #setPassCred(boolean)} is enabled, and does not merge data sent
+     * with different credentials into one read, so every message can be
+     * authorized individually, e.g. with a {@link UnixAuthorizationCache}.
+     * Bytes already held in the read-ahead buffer are returned first, without
+     * credentials.
+     *
+     * @param msg The message to receive into, {@link UnixMessage#getLength()}
+     *            holds the number of bytes read afterwards.
+     * @return The number of bytes read, 0 if no data is available in non-blocking
+     *         mode, or -1 if the socket has reached end-of-stream.
+     * @throws SocketTimeoutException if the read timeout expires
+     * @throws IOException on error
+     */
+    public int receive(final UnixMessage msg) throws IOException {
+        if (!connected) {
+            throw new NotConnectedException();
+        }
+        ensureNative();
+        final int heap = msg.prepare(true);
+        if (0 < is.available()) {
+            final int n = is.drain(msg.getBuffer());
+            msg.base = null;
+            msg.length = n;
+            return n;
+        }
+        final int count = native_recvmsg(sock, msg, heap, blocking ? 0 : USInputStream.MSG_DONTWAIT, timeout);
+        // see USInputStream.read(byte[], int, int)
+        if (0 == count) {
+            msg.base = null;
+            return -1;
+        } else if (-1 == count) {
+            msg.base = null;
+            msg.length = 0;
+            return 0;
+        }
+        msg.complete();
+        return count;
+    }
+
+    private int recv(final ByteBuffer dst, final int pos, final int len, final int flags, final int timeout)
+            throws IOException {
+        if (dst.isDirect()) {
+            return native_recv_direct(sock, dst, pos, len, flags, timeout);
+        } else {
+            return native_recv_array(sock, dst.array(), dst.arrayOffset() + pos, len, flags, timeout);
+        }
+    }
+
+    /**
+     * Writes a sequence of bytes to this socket from the given buffer.
+     * Direct buffers are sent in place without any copying.
+     * On a {@link #SOCK_SEQPACKET} socket the bytes are sent as one message.
+     *
+     * @param src The buffer from which bytes are to be retrieved.
+     * @return The number of bytes written, possibly 0 in non-blocking mode.
+     * @throws IOException on error
+     */
+    public int write(final ByteBuffer src) throws IOException {
+        return write(src, blocking ? 0 : USInputStream.MSG_DONTWAIT);
+    }
+
+    int write(final ByteBuffer src, final int flags) throws IOException {
+        if (!connected) {
+            throw new NotConnectedException();
+        }
+        if (null != channel) {
+            return channel.write(src);
+        }
+        if (null != os) {
+            os.flushBuffer();
+        }
+        if (parkOnReadiness && 0 == flags) {
+            // park until the whole buffer is written, as a blocking send would
+            final int len = src.remaining();
+            while (src.hasRemaining()) {
+                if (0 == write(src, USInputStream.MSG_DONTWAIT)) {
+                    ReadinessPoller.await(sock, UnixSelector.OP_WRITE, 0);
+                }
+            }
+            return len;
+        }
+        final int pos = src.position();
+        final int len = src.remaining();
+        if (0 == len) {
+            return 0;
+        }
+        final int count;
+        if (src.isDirect()) {
+            count = native_send_direct(sock, src, pos, len, flags);
+        } else if (src.hasArray()) {
+            count = native_send_array(sock, src.array(), src.arrayOffset() + pos, len, flags);
+        } else {
+            final byte[] b = new byte[len];
+            src.duplicate().get(b);
+            count = native_send_array(sock, b, 0, len, flags);
+        }
+        if (0 >= count) {
+            return 0;
+        }
+        src.position(pos + count);
+        return count;
+    }
+
+    /**
+     * Reads a sequence of bytes from this socket into the given buffers with a
+     * single system call.
+     * The buffers are filled in order, each one before the next.
+     *
+     * @param dsts The buffers into which bytes are to be transferred.
+     * @param off The index of the first buffer to use.
+     * @param len The number of buffers to use.
+     * @return The number of bytes read, 0 if no data is available in non-blocking
+     *         mode, or -1 if the socket has reached end-of-stream.
+     * @throws SocketTimeoutException if the read timeout expires
+     * @throws IOException on error
+     */
+    public long read(final ByteBuffer[] dsts, final int off, final int len) throws IOException {
+        return read(dsts, off, len, blocking ? 0 : USInputStream.MSG_DONTWAIT);
+    }
+
+    /**
+     * Reads a sequence of bytes from this socket into the given buffers with a
+     * single system call.
+     *
+     * @param dsts The buffers into which bytes are to be transferred.
+     * @return The number of bytes read, 0 if no data is available in non-blocking
+     *         mode, or -1 if the socket has reached end-of-stream.
+     * @throws SocketTimeoutException if the read timeout expires
+     * @throws IOException on error
+     * @see #read(ByteBuffer[], int, int)
+     */
+    public long read(final ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    long read(final ByteBuffer[] dsts, final int off, final int len, final int flags) throws IOException {
+        if (!connected) {
+            throw new NotConnectedException();
+        }
+        checkBounds(dsts, off, len);
+        if (null != channel) {
+            checkChannelTimeout();
+            return channel.read(dsts, off, len);
+        }
+        if (null != is && 0 < is.available()) {
+            // bytes already read ahead by the input stream come first
+            long n = 0;
+            for (int i = 0; i < len; i++) {
+                n += is.drain(dsts[off + i]);
+            }
+            return n;
+        }
+        final Object[] bufs = new Object[len];
+        final int[] offs = new int[len];
+        final int[] lens = new int[len];
+        long want = 0;
+        int heap = 0;
+        for (int i = 0; i < len; i++) {
+            final ByteBuffer dst = dsts[off + i];
+            if (dst.isReadOnly()) {
+                throw new ReadOnlyBufferException();
+            }
+            lens[i] = dst.remaining();
+            if (dst.isDirect()) {
+                bufs[i] = dst;
+                offs[i] = dst.position();
+            } else {
+                bufs[i] = dst.array();
+                offs[i] = dst.arrayOffset() + dst.position();
+                heap = (int) Math.min(Integer.MAX_VALUE, (long) heap + lens[i]);
+            }
+            want += lens[i];
+        }
+        if (0 == want) {
+            return 0;
+        }
+        final int count = native_recvv(sock, bufs, offs, lens, len, heap, flags, timeout);
+        // see USInputStream.read(byte[], int, int)
+        if (0 == count) {
+            return -1;
+        } else if (-1 == count) {
+            return 0;
+        }
+        advance(dsts, off, len, count);
+        return count;
+    }
+
+    /**
+     * Writes a sequence of bytes to this socket from the given buffers with as
+     * few system calls as possible.
+     * Short writes are resumed, so in blocking mode all remaining bytes of the
+     * buffers are written.
+     *
+     * @param srcs The buffers from which bytes are to be retrieved.
+     * @param off The index of the first buffer to use.
+     * @param len The number of buffers to use.
+     * @return The number of bytes written, possibly 0 in non-blocking mode.
+     * @throws IOException on error
+     */
+    public long write(final ByteBuffer[] srcs, final int off, final int len) throws IOException {
+        return write(srcs, off, len, blocking ? 0 : USInputStream.MSG_DONTWAIT);
+    }
+
+    /**
+     * Writes a sequence of bytes to this socket from the given buffers with as
+     * few system calls as possible.
+     *
+     * @param srcs The buffers from which bytes are to be retrieved.
+     * @return The number of bytes written, possibly 0 in non-blocking mode.
+     * @throws IOException on error
+     * @see #write(ByteBuffer[], int, int)
+     */
+    public long write(final ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    long write(final ByteBuffer[] srcs, final int off, final int len, final int flags) throws IOException {
+        if (!connected) {
+            throw new NotConnectedException();
+        }
+        if (null != channel) {
+            return channel.write(srcs, off, len);
+        }
+        if (null != os) {
+            os.flushBuffer();
+        }
+        checkBounds(srcs, off, len);
+        final Object[] bufs = new Object[len];
+        final int[] offs = new int[len];
+        final int[] lens = new int[len];
+        int heap = 0;
+        for (int i = 0; i < len; i++) {
+            final ByteBuffer src = srcs[off + i];
+            lens[i] = src.remaining();
+            if (src.isDirect()) {
+                bufs[i] = src;
+                offs[i] = src.position();
+            } else if (src.hasArray()) {
+                bufs[i] = src.array();
+                offs[i] = src.arrayOffset() + src.position();
+            } else {
+                final byte[] b = new byte[lens[i]];
+                src.duplicate().get(b);
+                bufs[i] = b;
+            }
+            if (!src.isDirect()) {
+                heap = (int) Math.min(Integer.MAX_VALUE, (long) heap + lens[i]);
+            }
+        }
+        final long count = native_sendv(sock, bufs, offs, lens, len, heap, flags);
+        if (0 >= count) {
+            return 0;
+        }
+        advance(srcs, off, len, count);
+        return count;
+    }
+
+    private void checkChannelTimeout() {
+        if (0 < timeout && blocking) {
+            // SocketChannel has no read timeout
+            throw Backend.unsupported();
+        }
+    }
+
+    private static void advance(final ByteBuffer[] bufs, final int off, final int len, long count) {
+        for (int i = off; i < off + len && 0 < count; i++) {
+            final int n = (int) Math.min(count, bufs[i].remaining());
+            bufs[i].position(bufs[i].position() + n);
+            count -= n;
+        }
+    }
+
+    static void checkBounds(final ByteBuffer[] bufs, final int off, final int len) {
+        if (0 > off || 0 > len || off > bufs.length - len) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    /**
+     * Send data together with open file descriptors (SCM_RIGHTS).
+     * The receiving process gets duplicates of the descriptors, which refer to
+     * the same open files, so e.g. a memfd can be mapped by both processes.
+     *
+     * @param src The data to send, which must not be empty.
+     * @param fds The file descriptors to pass, at most 253.
+     * @return The number of bytes written, possibly 0 in non-blocking mode.
+     * @throws NullPointerException if one of the descriptors is null
+     * @throws IOException on error
+     */
+    public int sendFileDescriptors(final ByteBuffer src, final FileDescriptor... fds) throws IOException {
+        if (!connected) {
+            throw new NotConnectedException();
+        }
+        ensureNative();
+        for (final FileDescriptor fd : fds) {
+            if (null == fd) {
+                throw new NullPointerException("fds contains null");
+            }
+        }
+        if (null != os) {
+            os.flushBuffer();
+        }
+        final int pos = src.position();
+        final int len = src.remaining();
+        final int count;
+        if (src.isDirect()) {
+            count = native_send_fds(sock, src, pos, len, fds, blocking ? 0 : USInputStream.MSG_DONTWAIT);
+        } else {
+            final byte[] b;
+            final int off;
+            if (src.hasArray()) {
+                b = src.array();
+                off = src.arrayOffset() + pos;
+            } else {
+                b = new byte[len];
+                src.duplicate().get(b);
+                off = 0;
+            }
+            count = native_send_fds(sock, b, off, len, fds, blocking ? 0 : USInputStream.MSG_DONTWAIT);
+        }
+        if (0 >= count) {
+            return 0;
+        }
+        src.position(pos + count);
+        return count;
+    }
+
+    /**
+     * Receive data together with file descriptors (SCM_RIGHTS).
+     * The received descriptors are stored at the beginning of the given array,
+     * the remaining elements are set to null. Descriptors which do not fit
+     * into the array are closed. The descriptors are created with the
+     * close-on-exec flag set and must be closed by the caller, e.g. by using
+     * {@link #openFileChannel(FileDescriptor, boolean)}.
+     *
+     * @param dst The buffer into which bytes are to be transferred.
+     * @param fds The array to store the received file descriptors in.
+     * @return The number of bytes read, 0 if no data is available in non-blocking
+     *         mode, or -1 if the socket has reached end-of-stream.
+     * @throws SocketTimeoutException if the read timeout expires
+     * @throws IOException on error
+     */
+    public int receiveFileDescriptors(final ByteBuffer dst, final FileDescriptor[] fds) throws IOException {
+        if (!connected) {
+            throw new NotConnectedException();
+        }
+        ensureNative();
+        if (dst.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+        final int pos = dst.position();
+        final int len = dst.remaining();
+        final int flags = blocking ? 0 : USInputStream.MSG_DONTWAIT;
+        final int count;
+        if (dst.isDirect()) {
+            count = native_recv_fds(sock, dst, pos, len, fds, flags, timeout);
+        } else {
+            count = native_recv_fds(sock, dst.array(), dst.arrayOffset() + pos, len, fds, flags, timeout);
+        }
+        // see USInputStream.read(byte[], int, int)
+        if (0 == count) {
+            return -1;
+        } else if (-1 == count) {
+            return 0;
+        }
+        dst.position(pos + count);
+        return count;
+    }
+
+    /**
+     * Get a file channel for a received file descriptor.
+     * The channel takes ownership of the descriptor, closing the channel closes
+     * the file.
+     * A writable channel is also readable, so it can be used for a shared
+     * read-write mapping. It is obtained by opening the descriptor again
+     * through /proc/self/fd, the given descriptor is closed.
+     *
+     * @param fd The file descriptor, e.g. received by {@link #receiveFileDescriptors(ByteBuffer, FileDescriptor[])}.
+     * @param writable true for a read-write, false for a read-only channel.
+     * @return the file channel
+     * @throws IOException on error
+     */
+    public static FileChannel openFileChannel(final FileDescriptor fd, final boolean writable) throws IOException {
+        if (!writable) {
+            return new FileInputStream(fd).getChannel();
+        }
+        // owns fd until the reopened file exists
+        final FileInputStream orig = new FileInputStream(fd);
+        try {
+            return new RandomAccessFile("/proc/self/fd/" + native_fd_number(fd), "rw").getChannel();
+        } finally {
+            orig.close();
+        }
+    }
+
+    /**
+     * Create a pair of connected stream sockets (socketpair).
+     * The sockets have no address. One of them can be handed to a child
+     * process with {@link #spawn(UnixSocket, String...)}, which gives a
+     * full-duplex channel to the child that also supports credentials and
+     * file descriptor passing.
+     *
+     * @return the two connected sockets
+     * @throws IOException on error
+     */
+    public static UnixSocket[] pair() throws IOException {
+        return pair(SOCK_STREAM);
+    }
+
+    /**
+     * Create a pair of connected sockets of the given type (socketpair).
+     *
+     * @param type The socket type, {@link #SOCK_STREAM} or {@link #SOCK_SEQPACKET}
+     * @return the two connected sockets
+     * @throws IOException on error
+     * @see #pair()
+     */
+    public static UnixSocket[] pair(final int type) throws IOException {
+        if (!Backend.NATIVE) {
+            throw Backend.unsupported();
+        }
+        final int[] fds = new int[2];
+        native_socketpair(type, fds);
+        return new UnixSocket[] { new UnixSocket(fds[0], null, type, false),
+                new UnixSocket(fds[1], null, type, false) };
+    }
+
+    /**
+     * Start a child process which gets the given socket as file descriptor 3.
+     * The command is searched in the PATH. Standard input, output and error
+     * and the environment are inherited from the JVM, all other descriptors,
+     * including those opened without close-on-exec, are closed in the child.
+     * The socket is closed in this process, without shutting it down,
+     * once the child has been started, so the child holds the only reference
+     * to it.
+     *
+     * <pre>
+     * final UnixSocket[] pair = UnixSocket.pair();
+     * final Process child = UnixSocket.spawn(pair[1], "helper", "--socket-fd=3");
+     * // talk to the child over pair[0]
+     * </pre>
+     *
+     * @param socket the socket to hand to the child, usually one end of {@link #pair()}
+     * @param command the program and its arguments
+     * @return the child process; its streams are empty as they are inherited
+     * @throws IOException on error
+     */
+    public static Process spawn(final UnixSocket socket, final String... command) throws IOException {
+        if (0 == command.length) {
+            throw new IllegalArgumentException("No command given");
+        }
+        if (!socket.connected) {
+            throw new NotConnectedException();
+        }
+        socket.ensureNative();
+        socket.os.flushBuffer();
+        if (socket.parkOnReadiness) {
+            // before the descriptor is closed and its number can be reused
+            ReadinessPoller.cancel(socket.sock);
+        }
+        final Process child = new UnixChildProcess(command, socket.sock);
+        // the descriptor has already been closed, a shutdown would affect the child
+        socket.sock = 0;
+        socket.close();
+        return child;
+    }
+
+    /**
+     * Relay data between two connected sockets in both directions, e.g. in a
+     * local proxy between a client and an upstream connection.
+     * The data is moved with splice() through a kernel pipe and never copied
+     * into Java. The call blocks until one side reaches end-of-stream, whose
+     * pending data is then delivered and the writing side of the other socket
+     * shut down, or until a peer has gone. Data already taken from the other
+     * side is delivered before returning. Both sockets stay open and have to
+     * be closed by the caller. Data already buffered by the streams is
+     * forwarded first.
+     *
+     * @param a the first socket
+     * @param b the second socket
+     * @return the number of bytes relayed, at index 0 from a to b and at index
+     *         1 from b to a
+     * @throws IOException on error
+     */
+    public static long[] relay(final UnixSocket a, final UnixSocket b) throws IOException {
+        if (!a.connected || !b.connected) {
+            throw new NotConnectedException();
+        }
+        a.ensureNative();
+        b.ensureNative();
+        a.os.flushBuffer();
+        b.os.flushBuffer();
+        final long[] counts = new long[2];
+        counts[0] = a.forwardReadAhead(b);
+        counts[1] = b.forwardReadAhead(a);
+        native_relay(a.sock, b.sock, counts);
+        return counts;
+    }
+
+    private long forwardReadAhead(final UnixSocket to) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(8192);
+        long total = 0;
+        int n;
+        while (0 < (n = is.drain(buf))) {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                if (0 == to.write(buf)) {
+                    // non-blocking and full, do not spin
+                    ReadinessPoller.await(to.sock, UnixSelector.OP_WRITE, 0);
+                }
+            }
+            buf.clear();
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Send bytes from a file, like {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+     * The data is sent with sendfile() straight from the page cache, without
+     * copying it into Java. The position of the file channel is not changed.
+     * If the descriptor of the channel is not accessible, the data is copied
+     * through a direct buffer instead.
+     *
+     * @param src The file to send.
+     * @param position The position in the file to start at.
+     * @param count The maximum number of bytes to send.
+     * @return The number of bytes sent, less than count if the end of the file
+     *         is reached, or in non-blocking mode if the socket buffer is full.
+     * @throws IOException on error
+     */
+    public long transferFrom(final FileChannel src, final long position, final long count) throws IOException {
+        if (!connected) {
+            throw new NotConnectedException();
+        }
+        if (0 > position || 0 > count) {
+            throw new IllegalArgumentException();
+        }
+        if (null != channel) {
+            return src.transferTo(position, count, channel);
+        }
+        if (null != os) {
+            os.flushBuffer();
+        }
+        final int fd = native_channel_fd(src);
+        if (-1 != fd) {
+            return native_sendfile(sock, fd, position, count, blocking);
+        }
+        final ByteBuffer buf = ByteBuffer.allocateDirect((int) Math.min(count, 65536));
+        long total = 0;
+        while (total < count) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), count - total));
+            if (0 >= src.read(buf, position + total)) {
+                break;
+            }
+            buf.flip();
+            final int n = write(buf);
+            total += n;
+            if (buf.hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Receive bytes into a file, like {@link FileChannel#transferFrom(java.nio.channels.ReadableByteChannel, long, long)}.
+     * The data is moved with splice() through a kernel pipe, without copying
+     * it into Java. The position of the file channel is not changed. If the
+     * descriptor of the channel is not accessible, the data is copied through
+     * a direct buffer instead.
+     *
+     * @param dst The file to write to, which must be writable.
+     * @param position The position in the file to start at.
+     * @param count The maximum number of bytes to receive.
+     * @return The number of bytes received, less than count if end-of-stream is
+     *         reached, or in non-blocking mode if no more data is available, or
+     *         -1 if end-of-stream is reached before any data. On the java.nio
+     *         backend end-of-stream is reported as 0.
+     * @throws SocketTimeoutException if the read timeout expires
+     * @throws IOException on error
+     */
+    public long transferTo(final FileChannel dst, final long position, final long count) throws IOException {
+        if (!connected) {
+            throw new NotConnectedException();
+        }
+        if (0 > position || 0 > count) {
+            throw new IllegalArgumentException();
+        }
+        if (null != channel) {
+            checkChannelTimeout();
+            return dst.transferFrom(channel, position, count);
+        }
+        final ByteBuffer buf = ByteBuffer.allocateDirect((int) Math.min(count, 65536));
+        long total = 0;
+        // bytes already buffered by the input stream come first
+        while (total < count) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), count - total));
+            if (0 == is.drain(buf)) {
+                break;
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                dst.write(buf, position + total + buf.position());
+            }
+            total += buf.limit();
+        }
+        if (total == count) {
+            return total;
+        }
+        final int fd = native_channel_fd(dst);
+        if (-1 != fd) {
+            final long n;
+            try {
+                n = native_splice_to_file(sock, fd, position + total, count - total, blocking, timeout);
+            } catch (final SocketTimeoutException e) {
+                // the buffered bytes have been written
+                if (0 == total) {
+                    throw e;
+                }
+                return total;
+            }
+            return -1 == n ? (0 == total ? -1 : total) : total + n;
+        }
+        while (total < count) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), count - total));
+            final int n;
+            try {
+                n = read(buf);
+            } catch (final SocketTimeoutException e) {
+                if (0 == total) {
+                    throw e;
+                }
+                break;
+            }
+            if (-1 == n) {
+                return 0 == total ? -1 : total;
+            } else if (0 == n) {
+                break;
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                dst.write(buf, position + total + buf.position());
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Check without blocking that the connection is still open and that no
+     * unread data is pending, e.g. before reusing a pooled socket.
+     *
+     * @return true if the socket can be reused
+     * @throws IOException on error
+     */
+    boolean isIdle() throws IOException {
+        if (!connected || closed) {
+            return false;
+        }
+        if (null != channel) {
+            // a channel cannot peek, so only the local state is checked
+            return channel.isOpen() && !inputShutdown && !outputShutdown;
+        }
+        if (is.isClosed() || os.isClosed() || 0 < is.available()) {
+            return false;
+        }
+        // 0 is end-of-stream, -1 means no data is pending
+        return -1 == native_recv_array(sock, new byte[1], 0, 1, USInputStream.MSG_PEEK | USInputStream.MSG_DONTWAIT,
+                0);
+    }
+
+    static int fdNumber(final FileDescriptor fd) {
+        return native_fd_number(fd);
+    }
+
     /**
      * Send a single byte of data with credentials.
      * (Works on BSDs)
@@ -192,6 +1135,7 @@ public class UnixSocket implements Closeable {
         if (!connected) {
             throw new NotConnectedException();
         }
+        ensureNative();
         native_send_creds(sock, data);
     }
 
@@ -210,6 +1154,7 @@ public class UnixSocket implements Closeable {
         if (!connected) {
             throw new NotConnectedException();
         }
+        ensureNative();
         final int[] creds = new int[] { -1, -1, -1 };
         final byte data = native_recv_creds(sock, creds);
         pid = creds[0];
@@ -239,8 +1184,9 @@ public class UnixSocket implements Closeable {
      * @return the UID or -1 if it is not available
      */
     public int getPeerUID() {
-        if (-1 == uid) {
-            uid = native_getUID(sock);
+        if (-1 == uid && null == channel) {
+            final PeerCredentials c = peerCredentials();
+            uid = null == c ? -1 : c.getUid();
         }
         return uid;
     }
@@ -254,8 +1200,9 @@ public class UnixSocket implements Closeable {
      * @return the GID or -1 if it is not available
      */
     public int getPeerGID() {
-        if (-1 == gid) {
-            gid = native_getGID(sock);
+        if (-1 == gid && null == channel) {
+            final PeerCredentials c = peerCredentials();
+            gid = null == c ? -1 : c.getGid();
         }
         return gid;
     }
@@ -269,12 +1216,43 @@ public class UnixSocket implements Closeable {
      * @return the PID or -1 if it is not available
      */
     public int getPeerPID() {
-        if (-1 == pid) {
-            pid = native_getPID(sock);
+        if (-1 == pid && null == channel) {
+            final PeerCredentials c = peerCredentials();
+            pid = null == c ? -1 : c.getPid();
         }
         return pid;
     }
 
+    /**
+     * Return the credentials of the remote process, including its supplementary
+     * groups and a pidfd where supported. They are fetched once, when the
+     * connection is first asked, and cached for the life of the socket.
+     *
+     * @return the credentials
+     * @throws IOException on error
+     */
+    public synchronized PeerCredentials getPeerCredentials() throws IOException {
+        if (!connected) {
+            throw new NotConnectedException();
+        }
+        ensureNative();
+        if (null == credentials) {
+            final int[] ids = new int[3];
+            final FileDescriptor[] pidfd = new FileDescriptor[1];
+            final int[] groups = native_peer_credentials(sock, ids, pidfd);
+            credentials = new PeerCredentials(ids[0], ids[1], ids[2], groups, pidfd[0]);
+        }
+        return credentials;
+    }
+
+    private PeerCredentials peerCredentials() {
+        try {
+            return getPeerCredentials();
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
     /**
      * Set the credential passing status.
      * (Only does anything on linux, for other OS, you need
@@ -284,10 +1262,112 @@ public class UnixSocket implements Closeable {
      * @throws IOException on error
      */
     public void setPassCred(final boolean enable) throws IOException {
+        ensureNative();
         native_set_pass_cred(sock, enable);
         passcred = enable;
     }
 
+    /**
+     * Set the size of the kernel send buffer (SO_SNDBUF).
+     *
+     * @param size the requested size in bytes
+     * @throws IOException on error
+     */
+    public void setSendBufferSize(final int size) throws IOException {
+        setOption(OPT_SNDBUF, size);
+    }
+
+    /**
+     * Get the size of the kernel send buffer (SO_SNDBUF).
+     * The kernel doubles the requested size to allow for bookkeeping overhead,
+     * this returns the actual size.
+     *
+     * @return the size in bytes
+     * @throws IOException on error
+     */
+    public int getSendBufferSize() throws IOException {
+        return getOption(OPT_SNDBUF);
+    }
+
+    /**
+     * Set the size of the kernel receive buffer (SO_RCVBUF).
+     *
+     * @param size the requested size in bytes
+     * @throws IOException on error
+     */
+    public void setReceiveBufferSize(final int size) throws IOException {
+        setOption(OPT_RCVBUF, size);
+    }
+
+    /**
+     * Get the size of the kernel receive buffer (SO_RCVBUF).
+     * The kernel doubles the requested size to allow for bookkeeping overhead,
+     * this returns the actual size.
+     *
+     * @return the size in bytes
+     * @throws IOException on error
+     */
+    public int getReceiveBufferSize() throws IOException {
+        return getOption(OPT_RCVBUF);
+    }
+
+    /**
+     * Set the peek offset (SO_PEEK_OFF).
+     * If enabled, reads with MSG_PEEK start at the offset, which is advanced by
+     * the peeked bytes, so data can be peeked incrementally.
+     *
+     * @param offset the offset in bytes, or -1 to disable
+     * @throws IOException on error
+     */
+    public void setPeekOffset(final int offset) throws IOException {
+        setOption(OPT_PEEK_OFF, offset);
+    }
+
+    /**
+     * Get the peek offset (SO_PEEK_OFF).
+     *
+     * @return the offset in bytes, or -1 if disabled
+     * @throws IOException on error
+     */
+    public int getPeekOffset() throws IOException {
+        return getOption(OPT_PEEK_OFF);
+    }
+
+    private void setOption(final int opt, final int value) throws IOException {
+        if (!connected) {
+            throw new NotConnectedException();
+        }
+        if (null == channel) {
+            native_setsockopt(sock, opt, value);
+        } else if (OPT_SNDBUF == opt) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, value);
+        } else if (OPT_RCVBUF == opt) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, value);
+        } else {
+            throw Backend.unsupported();
+        }
+    }
+
+    private int getOption(final int opt) throws IOException {
+        if (!connected) {
+            throw new NotConnectedException();
+        }
+        if (null == channel) {
+            return native_getsockopt(sock, opt);
+        } else if (OPT_SNDBUF == opt) {
+            return channel.getOption(StandardSocketOptions.SO_SNDBUF);
+        } else if (OPT_RCVBUF == opt) {
+            return channel.getOption(StandardSocketOptions.SO_RCVBUF);
+        }
+        throw Backend.unsupported();
+    }
+
+    void ensureNative() {
+        if (null != channel) {
+            throw Backend.unsupported();
+        }
+    }
+
     /**
      * Get the blocking mode.
      *
@@ -300,6 +1380,8 @@ public class UnixSocket implements Closeable {
 
     /**
      * Set the blocking mode.
+     * This applies to reads from the InputStream and to the ByteBuffer based
+     * methods.
      *
      * @param enable Set to false for non-blocking reads.
      */
@@ -308,6 +1390,13 @@ public class UnixSocket implements Closeable {
         if (null != is) {
             is.setBlocking(enable);
         }
+        if (null != channel) {
+            try {
+                channel.configureBlocking(enable);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
     }
 
     /**
@@ -334,7 +1423,7 @@ public class UnixSocket implements Closeable {
      * @return true if the input stream has been shutdown
      */
     public boolean isInputShutdown() {
-        return is.isClosed();
+        return null != channel ? inputShutdown : is.isClosed();
     }
 
     /**
@@ -343,7 +1432,7 @@ public class UnixSocket implements Closeable {
      * @return true if the output stream has been shutdown
      */
     public boolean isOutputShutdown() {
-        return os.isClosed();
+        return null != channel ? outputShutdown : os.isClosed();
     }
 
     /**
@@ -351,6 +1440,15 @@ public class UnixSocket implements Closeable {
      * Subsequent reads on the associated InputStream will fail.
      */
     public void shutdownInput() {
+        if (null != channel) {
+            inputShutdown = true;
+            try {
+                channel.shutdownInput();
+            } catch (final IOException e) {
+                // already disconnected
+            }
+            return;
+        }
         is.closed = true;
     }
 
@@ -359,15 +1457,133 @@ public class UnixSocket implements Closeable {
      * Subsequent writes to the associated OutputStream will fail.
      */
     public void shutdownOutput() {
+        if (null != channel) {
+            outputShutdown = true;
+            try {
+                channel.shutdownOutput();
+            } catch (final IOException e) {
+                // already disconnected
+            }
+            return;
+        }
         os.closed = true;
     }
 
     /**
-     * Set timeout of read requests.
+     * Park blocking reads and writes instead of blocking in native code.
+     * With this enabled, a blocking read or write which cannot complete
+     * immediately parks the calling thread until the socket is ready. The
+     * socket is watched by a shared poller thread, so many mostly idle
+     * connections can be served by virtual threads without pinning their
+     * carriers. This applies to the streams and to the single buffer
+     * {@link #read(ByteBuffer)} and {@link #write(ByteBuffer)} methods.
+     * Sockets on the java.nio backend already park virtual threads, for them
+     * this has no effect.
      *
-     * @param timeout the timeout
+     * @param enable true to park on readiness, false to block in the system call
+     */
+    public void setParkOnReadiness(final boolean enable) {
+        parkOnReadiness = enable;
+    }
+
+    /**
+     * Get whether blocking reads and writes park on readiness.
+     *
+     * @return true if blocking calls park the calling thread
+     * @see #setParkOnReadiness(boolean)
+     */
+    public boolean isParkOnReadiness() {
+        return parkOnReadiness;
+    }
+
+    /**
+     * Set timeout of blocking read requests.
+     * A read which does not receive any data within the timeout raises a
+     * {@link SocketTimeoutException}.
+     *
+     * @param timeout the timeout in milliseconds, 0 for no timeout
      */
     public void setSoTimeout(final int timeout) {
-        is.setSoTimeout(timeout);
+        this.timeout = timeout;
+        if (null != is) {
+            is.setSoTimeout(timeout);
+        }
+    }
+
+    /**
+     * Set the size of the read-ahead buffer of the input stream.
+     *
+     * @param size the buffer size in bytes, 0 to disable read-ahead
+     * @see USInputStream#setReadAhead(int)
+     */
+    public void setReadAhead(final int size) {
+        this.readAhead = size;
+        if (null != is) {
+            is.setReadAhead(size);
+        }
+    }
+
+    /**
+     * Get the size of the read-ahead buffer of the input stream.
+     *
+     * @return the buffer size in bytes, 0 if read-ahead is disabled
+     */
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * Set the size of the write buffer of the output stream.
+     *
+     * @param size the buffer size in bytes, 0 to send every write immediately
+     * @throws IOException if flushing the current buffer fails
+     * @see USOutputStream#setWriteBuffer(int)
+     */
+    public void setWriteBuffer(final int size) throws IOException {
+        this.writeBuffer = size;
+        if (null != os) {
+            os.setWriteBuffer(size);
+        }
+    }
+
+    /**
+     * Get the size of the write buffer of the output stream.
+     *
+     * @return the buffer size in bytes, 0 if writes are not buffered
+     */
+    public int getWriteBuffer() {
+        return writeBuffer;
+    }
+
+    /**
+     * Set the maximum time bytes stay in the write buffer of the output stream.
+     *
+     * @param millis the delay in milliseconds, 0 for no timed flush
+     * @see USOutputStream#setFlushDelay(int)
+     */
+    public void setFlushDelay(final int millis) {
+        this.flushDelay = millis;
+        if (null != os) {
+            os.setFlushDelay(millis);
+        }
+    }
+
+    /**
+     * Get the maximum time bytes stay in the write buffer of the output stream.
+     *
+     * @return the delay in milliseconds, 0 if there is no timed flush
+     */
+    public int getFlushDelay() {
+        return flushDelay;
+    }
+
+    /**
+     * Get timeout of blocking read requests.
+     *
+     * @return the timeout in milliseconds, 0 for no timeout
+     * @see #setSoTimeout(int)
+     */
+    public int getSoTimeout() {
+        return timeout;
     }
 }
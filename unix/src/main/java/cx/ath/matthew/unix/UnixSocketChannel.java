@@ -0,0 +1,172 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package cx.ath.matthew.unix;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.spi.AbstractInterruptibleChannel;
+
+/**
+ * A byte channel for a connected unix socket.
+ *
+ * The channel uses the file descriptor of the underlying {@link UnixSocket} and
+ * may be switched to non-blocking mode, in which reads and writes return
+ * immediately if the socket is not ready.
+ */
+public class UnixSocketChannel extends AbstractInterruptibleChannel
+        implements ByteChannel, GatheringByteChannel, ScatteringByteChannel {
+    private final UnixSocket socket;
+
+    /**
+     * Create a channel for the given connected socket.
+     *
+     * @param socket the unix socket
+     */
+    UnixSocketChannel(final UnixSocket socket) {
+        this.socket = socket;
+    }
+
+    /**
+     * Open a channel connected to the given address.
+     *
+     * @param address The Unix Socket address to connect to
+     * @return a new, connected channel
+     * @throws IOException on connect error
+     */
+    public static UnixSocketChannel open(final UnixSocketAddress address) throws IOException {
+        return new UnixSocketChannel(new UnixSocket(address));
+    }
+
+    /**
+     * Get the socket used by this channel.
+     *
+     * @return the unix socket
+     */
+    public UnixSocket socket() {
+        return socket;
+    }
+
+    /**
+     * Adjust the blocking mode of this channel.
+     *
+     * @param block true for blocking mode, false for non-blocking mode
+     * @return this channel
+     * @throws IOException on error
+     */
+    public UnixSocketChannel configureBlocking(final boolean block) throws IOException {
+        ensureOpen();
+        socket.setBlocking(block);
+        return this;
+    }
+
+    /**
+     * Check the blocking mode of this channel.
+     *
+     * @return true if this channel is in blocking mode
+     */
+    public boolean isBlocking() {
+        return socket.getBlocking();
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        ensureOpen();
+        boolean completed = false;
+        try {
+            begin();
+            final int count = socket.read(dst);
+            completed = true;
+            return count;
+        } finally {
+            end(completed);
+        }
+    }
+
+    @Override
+    public long read(final ByteBuffer[] dsts, final int offset, final int length) throws IOException {
+        ensureOpen();
+        boolean completed = false;
+        try {
+            begin();
+            final long count = socket.read(dsts, offset, length);
+            completed = true;
+            return count;
+        } finally {
+            end(completed);
+        }
+    }
+
+    @Override
+    public long read(final ByteBuffer[] dsts) throws IOException {
+        return read(dsts, 0, dsts.length);
+    }
+
+    @Override
+    public int write(final ByteBuffer src) throws IOException {
+        ensureOpen();
+        boolean completed = false;
+        try {
+            begin();
+            final int count = socket.write(src);
+            completed = true;
+            return count;
+        } finally {
+            end(completed);
+        }
+    }
+
+    @Override
+    public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+        ensureOpen();
+        boolean completed = false;
+        try {
+            begin();
+            final long count = socket.write(srcs, offset, length);
+            completed = true;
+            return count;
+        } finally {
+            end(completed);
+        }
+    }
+
+    @Override
+    public long write(final ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        socket.close();
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,623 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+
+package cx.ath.matthew.unix;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Carries many independent, bidirectional logical streams over one connected
+ * {@link UnixSocket}.
+ *
+ * Either side can open a stream with {@link #open()}; streams opened by the
+ * peer are returned by {@link #accept()}. Each stream has its own
+ * {@link InputStream} and {@link OutputStream}. Data is sent in frames of at
+ * most 16 KiB, so concurrent streams interleave. Flow control is per stream:
+ * a sender may only have as many unread bytes in flight as the receiver has
+ * granted credit for, and the receiver grants new credit as the application
+ * reads. A stream whose reader is slow therefore only stalls its own writer,
+ * while the other streams continue.
+ *
+ * Frames are read by a single daemon thread, which never writes to the
+ * socket, so the two sides cannot block each other.
+ *
+ * <pre>
+ * frame = type (1 byte), stream id (4 bytes), length (4 bytes), payload
+ * </pre>
+ */
+public class UnixSocketMux implements Closeable {
+    /**
+     * The default number of bytes a peer may send on a stream before it has to
+     * wait for credit.
+     */
+    public static final int DEFAULT_WINDOW = 256 * 1024;
+
+    private static final int MAX_FRAME = 16 * 1024;
+    private static final int HEADER = 9;
+
+    private static final byte OPEN = 1;
+    private static final byte DATA = 2;
+    // the length field carries the number of bytes granted
+    private static final byte CREDIT = 3;
+    // the sender will not write to the stream any more
+    private static final byte FIN = 4;
+    // the sender will not read from the stream any more
+    private static final byte RESET = 5;
+
+    /**
+     * A logical stream of a {@link UnixSocketMux}.
+     */
+    public class Stream implements Closeable {
+        private final int id;
+        private final ArrayDeque<byte[]> received = new ArrayDeque<byte[]>();
+        private final InputStream in = new StreamInputStream();
+        private final OutputStream out = new StreamOutputStream();
+        private int readOffset = 0;
+        private int buffered = 0;
+        private int unacked = 0;
+        private int credit;
+        private boolean remoteFin = false;
+        private boolean localFin = false;
+        private boolean inputClosed = false;
+        private boolean reset = false;
+
+        Stream(final int id) {
+            this.id = id;
+            this.credit = window;
+        }
+
+        /**
+         * Get the id of this stream, unique within the connection.
+         *
+         * @return the stream id
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Returns an InputStream for reading from this stream.
+         *
+         * @return the input stream, which reports end-of-stream once the peer
+         *         has closed its output
+         */
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        /**
+         * Returns an OutputStream for writing to this stream. Data is sent
+         * immediately, flushing is not necessary. Closing it signals
+         * end-of-stream to the peer, while this side can still read.
+         *
+         * @return the output stream
+         */
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        /**
+         * Close both directions of this stream. Unread data is discarded and
+         * the peer is told to stop sending.
+         *
+         * @throws IOException on error
+         */
+        @Override
+        public void close() throws IOException {
+            boolean sendReset;
+            synchronized (this) {
+                sendReset = !inputClosed && !remoteFin && !reset;
+                inputClosed = true;
+                received.clear();
+                buffered = 0;
+                notifyAll();
+            }
+            try {
+                out.close();
+                if (sendReset) {
+                    writeFrame(RESET, id, 0, null, 0, 0);
+                }
+            } finally {
+                synchronized (this) {
+                    reset = true;
+                }
+                remove(this);
+            }
+        }
+
+        synchronized void onData(final byte[] data) throws IOException {
+            if (inputClosed || reset) {
+                // dropped, the peer has been told to stop
+                return;
+            }
+            if (remoteFin || buffered + data.length > window) {
+                throw new UnixIOException(0, "Stream " + id + ": peer exceeded its credit");
+            }
+            received.add(data);
+            buffered += data.length;
+            notifyAll();
+        }
+
+        synchronized void onCredit(final int n) {
+            credit += n;
+            notifyAll();
+        }
+
+        synchronized void onFin() {
+            remoteFin = true;
+            notifyAll();
+        }
+
+        synchronized void onReset() {
+            reset = true;
+            notifyAll();
+        }
+
+        synchronized void onClosed() {
+            notifyAll();
+        }
+
+        private synchronized boolean isDone() {
+            return reset || (localFin && (remoteFin || inputClosed));
+        }
+
+        private int read(final byte[] b, final int off, final int len) throws IOException {
+            int n = 0;
+            int grant = 0;
+            synchronized (this) {
+                while (received.isEmpty()) {
+                    if (inputClosed) {
+                        throw new IOException("Stream closed");
+                    }
+                    if (remoteFin) {
+                        return -1;
+                    }
+                    if (null != failure) {
+                        throw new IOException("Connection lost", failure);
+                    }
+                    if (closed) {
+                        throw new NotConnectedException();
+                    }
+                    await(this);
+                }
+                while (n < len && !received.isEmpty()) {
+                    final byte[] head = received.peek();
+                    final int c = Math.min(len - n, head.length - readOffset);
+                    System.arraycopy(head, readOffset, b, off + n, c);
+                    n += c;
+                    readOffset += c;
+                    if (readOffset == head.length) {
+                        received.poll();
+                        readOffset = 0;
+                    }
+                }
+                buffered -= n;
+                unacked += n;
+                // grant credit in batches to save frames
+                if (unacked >= window / 2 && !remoteFin) {
+                    grant = unacked;
+                    unacked = 0;
+                }
+            }
+            if (0 < grant) {
+                writeFrame(CREDIT, id, grant, null, 0, 0);
+            }
+            return n;
+        }
+
+        private int available() {
+            synchronized (this) {
+                return buffered;
+            }
+        }
+
+        private void write(final byte[] b, final int off, final int len) throws IOException {
+            int done = 0;
+            while (done < len) {
+                final int n;
+                synchronized (this) {
+                    while (0 == credit && !reset && !localFin && null == failure && !closed) {
+                        await(this);
+                    }
+                    checkWritable();
+                    n = Math.min(Math.min(credit, MAX_FRAME), len - done);
+                    credit -= n;
+                }
+                writeFrame(DATA, id, n, b, off + done, n);
+                done += n;
+            }
+        }
+
+        private void checkWritable() throws IOException {
+            if (localFin) {
+                throw new IOException("Stream closed");
+            }
+            if (reset) {
+                throw new IOException("Stream reset by peer");
+            }
+            if (null != failure) {
+                throw new IOException("Connection lost", failure);
+            }
+            if (closed) {
+                throw new NotConnectedException();
+            }
+        }
+
+        private void finish() throws IOException {
+            synchronized (this) {
+                if (localFin) {
+                    return;
+                }
+                localFin = true;
+                notifyAll();
+                if (reset || closed || null != failure) {
+                    return;
+                }
+            }
+            writeFrame(FIN, id, 0, null, 0, 0);
+            if (isDone()) {
+                remove(this);
+            }
+        }
+
+        private class StreamInputStream extends InputStream {
+            private final byte[] one = new byte[1];
+
+            @Override
+            public int read() throws IOException {
+                synchronized (one) {
+                    return -1 == read(one, 0, 1) ? -1 : 0xFF & one[0];
+                }
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                if (0 > off || 0 > len || off > b.length - len) {
+                    throw new IndexOutOfBoundsException();
+                }
+                if (0 == len) {
+                    return 0;
+                }
+                return Stream.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                return Stream.this.available();
+            }
+
+            @Override
+            public void close() throws IOException {
+                Stream.this.close();
+            }
+        }
+
+        private class StreamOutputStream extends OutputStream {
+            @Override
+            public void write(final int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                if (0 > off || 0 > len || off > b.length - len) {
+                    throw new IndexOutOfBoundsException();
+                }
+                Stream.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                finish();
+            }
+        }
+    }
+
+    private final UnixSocket socket;
+    private final int window;
+    private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+    private final ArrayDeque<Stream> accepted = new ArrayDeque<Stream>();
+    private final Object writeLock = new Object();
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER);
+    private final Thread reader;
+    private int nextId;
+    private volatile boolean closed = false;
+    private volatile IOException failure = null;
+
+    /**
+     * Create a multiplexer with the default window.
+     *
+     * @param socket a connected, blocking socket, which is owned by the multiplexer
+     * @param client true on one side of the connection, false on the other,
+     *            so stream ids opened by both sides do not collide
+     */
+    public UnixSocketMux(final UnixSocket socket, final boolean client) {
+        this(socket, client, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Create a multiplexer.
+     *
+     * @param socket a connected, blocking socket, which is owned by the multiplexer
+     * @param client true on one side of the connection, false on the other,
+     *            so stream ids opened by both sides do not collide
+     * @param window the number of bytes the peer may send on a stream before it
+     *            has to wait for this side to read them; both sides must use
+     *            the same value
+     */
+    public UnixSocketMux(final UnixSocket socket, final boolean client, final int window) {
+        if (!socket.getBlocking()) {
+            throw new IllegalArgumentException("The socket must be in blocking mode");
+        }
+        if (window < MAX_FRAME) {
+            throw new IllegalArgumentException("window must be at least " + MAX_FRAME);
+        }
+        this.socket = socket;
+        this.window = window;
+        this.nextId = client ? 1 : 2;
+        this.reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readFrames();
+            }
+        }, "UnixSocketMux-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Open a new stream to the peer, which receives it from {@link #accept()}.
+     *
+     * @return the stream
+     * @throws IOException on error
+     */
+    public Stream open() throws IOException {
+        final Stream stream;
+        synchronized (streams) {
+            ensureOpen();
+            stream = new Stream(nextId);
+            nextId += 2;
+            streams.put(stream.id, stream);
+        }
+        writeFrame(OPEN, stream.id, 0, null, 0, 0);
+        return stream;
+    }
+
+    /**
+     * Wait for the peer to open a stream.
+     *
+     * @return the stream, or null if the connection has been closed
+     * @throws IOException if the connection failed
+     */
+    public Stream accept() throws IOException {
+        synchronized (streams) {
+            while (accepted.isEmpty()) {
+                if (null != failure) {
+                    throw new IOException("Connection lost", failure);
+                }
+                if (closed) {
+                    return null;
+                }
+                await(streams);
+            }
+            return accepted.poll();
+        }
+    }
+
+    /**
+     * Get the number of open streams.
+     *
+     * @return the number of streams not closed by both sides
+     */
+    public int getStreamCount() {
+        synchronized (streams) {
+            return streams.size();
+        }
+    }
+
+    /**
+     * Check the status of the multiplexer.
+     *
+     * @return true if closed, or if the connection has been lost
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close all streams and the socket.
+     *
+     * @throws IOException on error
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed && !reader.isAlive()) {
+            return;
+        }
+        closed = true;
+        wakeAll();
+        if (Thread.currentThread() == reader) {
+            return;
+        }
+        // the reader closes the socket once it has stopped using the
+        // descriptor, closing it here could make it read from a reused one
+        socket.shutdown();
+        try {
+            reader.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void remove(final Stream stream) {
+        synchronized (streams) {
+            streams.remove(stream.id);
+        }
+    }
+
+    private void writeFrame(final byte type, final int id, final int length, final byte[] b, final int off,
+            final int len) throws IOException {
+        synchronized (writeLock) {
+            ensureOpen();
+            header.clear();
+            header.put(type).putInt(id).putInt(length).flip();
+            final ByteBuffer payload = null == b ? ByteBuffer.allocate(0) : ByteBuffer.wrap(b, off, len);
+            final ByteBuffer[] srcs = new ByteBuffer[] { header, payload };
+            try {
+                while (payload.hasRemaining() || header.hasRemaining()) {
+                    socket.write(srcs);
+                }
+            } catch (final IOException e) {
+                fail(e);
+                throw e;
+            }
+        }
+    }
+
+    private void readFrames() {
+        try {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            for (;;) {
+                final byte type;
+                try {
+                    type = in.readByte();
+                } catch (final EOFException e) {
+                    break;
+                }
+                final int id = in.readInt();
+                final int length = in.readInt();
+                if (0 > length || (DATA == type && MAX_FRAME < length)) {
+                    throw new UnixIOException(0, "Invalid frame length " + length);
+                }
+                final Stream stream;
+                synchronized (streams) {
+                    if (OPEN == type) {
+                        if (streams.containsKey(id) || (1 & id) == (1 & nextId)) {
+                            throw new UnixIOException(0, "Invalid stream id " + id);
+                        }
+                        final Stream s = new Stream(id);
+                        streams.put(id, s);
+                        accepted.add(s);
+                        streams.notifyAll();
+                        continue;
+                    }
+                    stream = streams.get(id);
+                }
+                switch (type) {
+                case DATA:
+                    final byte[] data = new byte[length];
+                    in.readFully(data);
+                    if (null != stream) {
+                        stream.onData(data);
+                    }
+                    break;
+                case CREDIT:
+                    if (null != stream) {
+                        stream.onCredit(length);
+                    }
+                    break;
+                case FIN:
+                    if (null != stream) {
+                        stream.onFin();
+                        if (stream.isDone()) {
+                            remove(stream);
+                        }
+                    }
+                    break;
+                case RESET:
+                    if (null != stream) {
+                        stream.onReset();
+                        remove(stream);
+                    }
+                    break;
+                default:
+                    throw new UnixIOException(0, "Invalid frame type " + type);
+                }
+            }
+            closed = true;
+        } catch (final IOException e) {
+            if (!closed) {
+                failure = e;
+            }
+            closed = true;
+        } finally {
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                // already closed
+            }
+            wakeAll();
+        }
+    }
+
+    private void fail(final IOException e) {
+        if (!closed) {
+            failure = e;
+            closed = true;
+        }
+        wakeAll();
+    }
+
+    private void wakeAll() {
+        final Stream[] all;
+        synchronized (streams) {
+            all = streams.values().toArray(new Stream[0]);
+            streams.notifyAll();
+        }
+        for (final Stream stream : all) {
+            stream.onClosed();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (null != failure) {
+            throw new IOException("Connection lost", failure);
+        }
+        if (closed) {
+            throw new NotConnectedException();
+        }
+    }
+
+    private static void await(final Object lock) throws InterruptedIOException {
+        try {
+            lock.wait();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+
+package cx.ath.matthew.unix;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of connected client sockets, keyed by address.
+ *
+ * Instead of connecting for every request, a client leases a socket with
+ * {@link #lease(UnixSocketAddress)} and hands it back with
+ * {@link #release(UnixSocket)} once the response has been read completely. A
+ * socket whose connection state is unknown, e.g. after an error, is closed
+ * with {@link #invalidate(UnixSocket)} instead.
+ *
+ * Idle sockets are reused most recently released first, and checked with a
+ * non-blocking peek before they are leased: a socket whose peer has closed the
+ * connection, or which has unread data, is closed and replaced. Sockets idle
+ * for longer than the idle timeout are closed by {@link #evictIdle()}, which
+ * is also run on every lease and release.
+ */
+public class UnixSocketPool implements Closeable {
+    private static class Idle {
+        final UnixSocket socket;
+        final long since;
+
+        Idle(final UnixSocket socket, final long since) {
+            this.socket = socket;
+            this.since = since;
+        }
+    }
+
+    private static class Entry {
+        // most recently released first
+        final ArrayDeque<Idle> idle = new ArrayDeque<Idle>();
+        int total = 0;
+    }
+
+    private final int maxIdle;
+    private final int maxTotal;
+    private final long idleTimeout;
+    private final Map<UnixSocketAddress, Entry> entries = new HashMap<UnixSocketAddress, Entry>();
+    private final Map<UnixSocket, UnixSocketAddress> leased = new IdentityHashMap<UnixSocket, UnixSocketAddress>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private long leaseTimeout = 0;
+    private boolean closed = false;
+
+    /**
+     * Create a pool.
+     *
+     * @param maxIdle the maximum number of idle sockets kept per address
+     * @param maxTotal the maximum number of leased and idle sockets per address
+     * @param idleTimeout the time after which an idle socket is closed, 0 to keep
+     *            idle sockets until the pool is closed
+     * @param unit the unit of the idle timeout
+     */
+    public UnixSocketPool(final int maxIdle, final int maxTotal, final long idleTimeout, final TimeUnit unit) {
+        if (0 > maxIdle || 0 >= maxTotal || maxIdle > maxTotal) {
+            throw new IllegalArgumentException("maxTotal must be positive and at least maxIdle");
+        }
+        this.maxIdle = maxIdle;
+        this.maxTotal = maxTotal;
+        this.idleTimeout = unit.toNanos(idleTimeout);
+    }
+
+    /**
+     * Set how long {@link #lease(UnixSocketAddress)} waits for a socket to be
+     * released if the maximum number of sockets for an address is reached.
+     *
+     * @param timeout the timeout, 0 to wait forever
+     * @param unit the unit of the timeout
+     */
+    public synchronized void setLeaseTimeout(final long timeout, final TimeUnit unit) {
+        leaseTimeout = unit.toMillis(timeout);
+    }
+
+    /**
+     * Lease a connected socket, reusing an idle one if possible.
+     *
+     * @param address the address to connect to
+     * @return the socket, which has to be passed to {@link #release(UnixSocket)}
+     *         or {@link #invalidate(UnixSocket)}
+     * @throws SocketTimeoutException if the lease timeout expires
+     * @throws IOException on connect error
+     */
+    public UnixSocket lease(final UnixSocketAddress address) throws IOException {
+        final List<UnixSocket> close = new ArrayList<UnixSocket>();
+        try {
+            synchronized (this) {
+                final long deadline = System.currentTimeMillis() + leaseTimeout;
+                for (;;) {
+                    ensureOpen();
+                    evictIdle(close);
+                    final Entry entry = entry(address);
+                    Idle idle;
+                    while (null != (idle = entry.idle.pollFirst())) {
+                        if (isIdle(idle.socket)) {
+                            hits.incrementAndGet();
+                            leased.put(idle.socket, address);
+                            return idle.socket;
+                        }
+                        stale.incrementAndGet();
+                        entry.total--;
+                        close.add(idle.socket);
+                    }
+                    if (entry.total < maxTotal) {
+                        // reserve the slot, the connect happens outside the lock
+                        entry.total++;
+                        break;
+                    }
+                    if (0 == leaseTimeout) {
+                        wait();
+                    } else {
+                        final long remaining = deadline - System.currentTimeMillis();
+                        if (0 >= remaining) {
+                            throw new SocketTimeoutException("Lease timed out");
+                        }
+                        wait(remaining);
+                    }
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            closeAll(close);
+        }
+        misses.incrementAndGet();
+        final UnixSocket socket;
+        try {
+            socket = new UnixSocket(address);
+        } catch (final IOException | RuntimeException e) {
+            synchronized (this) {
+                entry(address).total--;
+                notifyAll();
+            }
+            throw e;
+        }
+        synchronized (this) {
+            leased.put(socket, address);
+        }
+        return socket;
+    }
+
+    /**
+     * Return a leased socket to the pool. Data written to the socket is
+     * flushed. If the pool already holds the maximum number of idle sockets
+     * for the address, or is closed, the socket is closed instead.
+     *
+     * @param socket the leased socket
+     */
+    public void release(final UnixSocket socket) {
+        final List<UnixSocket> close = new ArrayList<UnixSocket>();
+        boolean reuse = false;
+        // a socket closed by the caller has no streams left
+        if (!socket.isClosed()) {
+            try {
+                socket.getOutputStream().flush();
+                reuse = true;
+            } catch (final IOException | RuntimeException e) {
+                // not reusable, but it must still leave the leased sockets
+            }
+        }
+        synchronized (this) {
+            final UnixSocketAddress address = leased.remove(socket);
+            if (null == address) {
+                throw new IllegalArgumentException("The socket is not leased from this pool");
+            }
+            final Entry entry = entry(address);
+            if (reuse && !closed && entry.idle.size() < maxIdle) {
+                entry.idle.addFirst(new Idle(socket, System.nanoTime()));
+            } else {
+                entry.total--;
+                close.add(socket);
+            }
+            evictIdle(close);
+            notifyAll();
+        }
+        closeAll(close);
+    }
+
+    /**
+     * Close a leased socket instead of returning it to the pool, e.g. after an
+     * error left the connection in an unknown state.
+     *
+     * @param socket the leased socket
+     */
+    public void invalidate(final UnixSocket socket) {
+        synchronized (this) {
+            final UnixSocketAddress address = leased.remove(socket);
+            if (null == address) {
+                throw new IllegalArgumentException("The socket is not leased from this pool");
+            }
+            entry(address).total--;
+            notifyAll();
+        }
+        close(socket);
+    }
+
+    /**
+     * Close sockets which have been idle for longer than the idle timeout.
+     * This can be called periodically to release connections of a pool which
+     * is not in use.
+     *
+     * @return the number of closed sockets
+     */
+    public int evictIdle() {
+        final List<UnixSocket> close = new ArrayList<UnixSocket>();
+        synchronized (this) {
+            evictIdle(close);
+            if (!close.isEmpty()) {
+                notifyAll();
+            }
+        }
+        closeAll(close);
+        return close.size();
+    }
+
+    private void evictIdle(final List<UnixSocket> close) {
+        if (0 == idleTimeout) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            Idle idle;
+            // the oldest sockets are at the end
+            while (null != (idle = entry.idle.peekLast()) && now - idle.since > idleTimeout) {
+                entry.idle.pollLast();
+                entry.total--;
+                evicted.incrementAndGet();
+                close.add(idle.socket);
+            }
+            if (0 == entry.total) {
+                it.remove();
+            }
+        }
+    }
+
+    private Entry entry(final UnixSocketAddress address) {
+        Entry entry = entries.get(address);
+        if (null == entry) {
+            entry = new Entry();
+            entries.put(address, entry);
+        }
+        return entry;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The pool is closed");
+        }
+    }
+
+    private static boolean isIdle(final UnixSocket socket) {
+        try {
+            return socket.isIdle();
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    private static void closeAll(final List<UnixSocket> sockets) {
+        for (final UnixSocket socket : sockets) {
+            close(socket);
+        }
+    }
+
+    private static void close(final UnixSocket socket) {
+        try {
+            socket.close();
+        } catch (final IOException e) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Get the number of leases served by an idle socket.
+     *
+     * @return the number of pool hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of leases which had to connect a new socket.
+     *
+     * @return the number of pool misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of idle sockets which failed the liveness check.
+     *
+     * @return the number of stale sockets
+     */
+    public long getStale() {
+        return stale.get();
+    }
+
+    /**
+     * Get the number of idle sockets closed by the idle timeout.
+     *
+     * @return the number of evicted sockets
+     */
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * Get the number of sockets currently leased.
+     *
+     * @return the number of leased sockets
+     */
+    public synchronized int getLeased() {
+        return leased.size();
+    }
+
+    /**
+     * Get the number of idle sockets in the pool.
+     *
+     * @return the number of idle sockets
+     */
+    public synchronized int getIdle() {
+        int n = 0;
+        for (final Entry entry : entries.values()) {
+            n += entry.idle.size();
+        }
+        return n;
+    }
+
+    /**
+     * Check the status of the pool.
+     *
+     * @return true if closed.
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close all idle sockets. Leased sockets are closed when they are
+     * released.
+     */
+    @Override
+    public void close() {
+        final List<UnixSocket> close = new ArrayList<UnixSocket>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (final Entry entry : entries.values()) {
+                for (final Idle idle : entry.idle) {
+                    entry.total--;
+                    close.add(idle.socket);
+                }
+                entry.idle.clear();
+            }
+            notifyAll();
+        }
+        closeAll(close);
+    }
+}
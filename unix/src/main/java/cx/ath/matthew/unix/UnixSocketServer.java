@@ -0,0 +1,407 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+package cx.ath.matthew.unix;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accepts connections on a {@link UnixServerSocket} and runs a handler for
+ * each of them on an executor.
+ *
+ * The number of connections handled at the same time is limited; while the
+ * limit is reached no further connections are accepted and new clients wait
+ * in the listen backlog. Use {@link #newThreadPool(int)} for a bounded pool of
+ * platform threads or {@link #newVirtualThreadExecutor()} for a virtual thread
+ * per connection on JDK 21 and later. Accepted sockets park on readiness by
+ * default (see {@link UnixSocket#setParkOnReadiness(boolean)}), so idle
+ * connections do not pin the carrier threads of virtual threads.
+ */
+public class UnixSocketServer implements Closeable {
+    /**
+     * Handles one accepted connection.
+     */
+    public interface ConnectionHandler {
+        /**
+         * Handle the connection. The socket is closed by the server when this
+         * method returns.
+         *
+         * @param socket the accepted socket
+         * @throws IOException on error, counted as a failed connection
+         */
+        void handle(UnixSocket socket) throws IOException;
+    }
+
+    /**
+     * Is told about each finished connection, e.g. to record per-connection
+     * metrics.
+     */
+    public interface ConnectionListener {
+        /**
+         * Called after the handler has returned and the socket has been
+         * closed, on the thread which ran the handler.
+         *
+         * @param socket the closed socket
+         * @param nanos the time spent in the handler, in nanoseconds
+         * @param failure the exception thrown by the handler, or null if it
+         *            returned normally
+         */
+        void connectionClosed(UnixSocket socket, long nanos, Exception failure);
+    }
+
+    private final UnixServerSocket server;
+    private final ConnectionHandler handler;
+    private final ExecutorService executor;
+    private final int maxConnections;
+    private final Semaphore permits;
+    private final Set<UnixSocket> connections = Collections.synchronizedSet(new HashSet<UnixSocket>());
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong connectionNanos = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+    private boolean parkOnReadiness = true;
+    private volatile ConnectionListener listener = null;
+    private Thread acceptor = null;
+    private volatile boolean shutdown = false;
+
+    /**
+     * Create a server. It does not accept connections until {@link #start()} is
+     * called.
+     *
+     * @param server the bound server socket, in blocking mode
+     * @param handler the handler run for each connection
+     * @param executor the executor running the handlers
+     * @param maxConnections the maximum number of connections handled at once
+     */
+    public UnixSocketServer(final UnixServerSocket server, final ConnectionHandler handler,
+            final ExecutorService executor, final int maxConnections) {
+        if (0 >= maxConnections) {
+            throw new IllegalArgumentException("maxConnections must be positive");
+        }
+        this.server = server;
+        this.handler = handler;
+        this.executor = executor;
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections);
+    }
+
+    /**
+     * Create an executor with a fixed number of daemon platform threads.
+     *
+     * @param threads the number of threads, usually the maximum number of
+     *            connections
+     * @return the executor
+     */
+    public static ExecutorService newThreadPool(final int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "UnixSocketServer-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Check if virtual threads are available in this JVM.
+     *
+     * @return true on JDK 21 and later
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (final NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Create an executor which starts a new virtual thread for each connection.
+     *
+     * @return the executor
+     * @throws UnsupportedOperationException if virtual threads are not available
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            final Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (final ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads require JDK 21 or later", e);
+        }
+    }
+
+    /**
+     * Set whether accepted sockets park on readiness. Enabled by default.
+     *
+     * @param enable false to let the handlers block in native code
+     * @see UnixSocket#setParkOnReadiness(boolean)
+     */
+    public void setParkOnReadiness(final boolean enable) {
+        parkOnReadiness = enable;
+    }
+
+    /**
+     * Set the listener told about each finished connection.
+     *
+     * @param listener the listener, or null for none
+     */
+    public void setConnectionListener(final ConnectionListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Start accepting connections on a new thread.
+     *
+     * @throws IllegalStateException if the server has already been started
+     */
+    public synchronized void start() {
+        if (null != acceptor || shutdown) {
+            throw new IllegalStateException("Server already started");
+        }
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "UnixSocketServer-accept " + server.getAddress());
+        acceptor.start();
+    }
+
+    private void acceptLoop() {
+        while (!shutdown) {
+            try {
+                permits.acquire();
+            } catch (final InterruptedException e) {
+                break;
+            }
+            final UnixSocket socket;
+            try {
+                socket = server.accept();
+            } catch (final IOException e) {
+                permits.release();
+                if (shutdown || server.isClosed()) {
+                    break;
+                }
+                continue;
+            }
+            if (null == socket) {
+                permits.release();
+                continue;
+            }
+            accepted.incrementAndGet();
+            socket.setParkOnReadiness(parkOnReadiness);
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                failed.incrementAndGet();
+                close(socket);
+                permits.release();
+            }
+        }
+    }
+
+    private void serve(final UnixSocket socket) {
+        final long start = System.nanoTime();
+        Exception failure = null;
+        connections.add(socket);
+        active.incrementAndGet();
+        try {
+            handler.handle(socket);
+            completed.incrementAndGet();
+        } catch (final IOException | RuntimeException e) {
+            failure = e;
+            failed.incrementAndGet();
+        } finally {
+            close(socket);
+            connections.remove(socket);
+            active.decrementAndGet();
+            final long nanos = System.nanoTime() - start;
+            connectionNanos.addAndGet(nanos);
+            permits.release();
+            final ConnectionListener l = listener;
+            if (null != l) {
+                try {
+                    l.connectionClosed(socket, nanos, failure);
+                } catch (final RuntimeException e) {
+                    // the connection is finished either way
+                }
+            }
+        }
+    }
+
+    private static void close(final UnixSocket socket) {
+        try {
+            socket.close();
+        } catch (final IOException e) {
+            // nothing left to clean up
+        }
+    }
+
+    /**
+     * Stop accepting connections and wait for the active connections to finish.
+     * Connections still active after the timeout are shut down, so their
+     * handlers see end-of-stream or a broken connection, and the executor is
+     * shut down.
+     *
+     * @param timeout the time to wait for active connections
+     * @param unit the unit of the timeout
+     * @return true if all connections finished within the timeout
+     * @throws IOException if closing the server socket fails
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(final long timeout, final TimeUnit unit) throws IOException, InterruptedException {
+        final Thread t;
+        synchronized (this) {
+            shutdown = true;
+            t = acceptor;
+        }
+        if (!server.isClosed()) {
+            server.close();
+        }
+        if (null != t) {
+            t.interrupt();
+            t.join();
+        }
+        final boolean done = permits.tryAcquire(maxConnections, timeout, unit);
+        if (done) {
+            permits.release(maxConnections);
+        } else {
+            final UnixSocket[] remaining;
+            synchronized (connections) {
+                remaining = connections.toArray(new UnixSocket[connections.size()]);
+            }
+            for (final UnixSocket s : remaining) {
+                // serve() closes the socket once the handler has returned,
+                // closing it here could let the handler use a reused descriptor
+                try {
+                    s.shutdown();
+                } catch (final IOException e) {
+                    // already disconnected
+                }
+            }
+        }
+        executor.shutdown();
+        return done;
+    }
+
+    /**
+     * Shut down without waiting for active connections.
+     *
+     * @throws IOException if closing the server socket fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            shutdown(0, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Check if the server has been shut down.
+     *
+     * @return true after {@link #shutdown(long, TimeUnit)} or {@link #close()}
+     */
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Get the maximum number of connections handled at once.
+     *
+     * @return the connection limit
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Get the number of accepted connections.
+     *
+     * @return the number of connections accepted since start
+     */
+    public long getAcceptedCount() {
+        return accepted.get();
+    }
+
+    /**
+     * Get the number of connections currently handled.
+     *
+     * @return the number of active connections
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * Get the number of connections whose handler returned normally.
+     *
+     * @return the number of completed connections
+     */
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * Get the number of connections whose handler threw an exception, or which
+     * were rejected by the executor.
+     *
+     * @return the number of failed connections
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Get the total time spent in handlers.
+     *
+     * @param unit the unit of the result
+     * @return the sum of the durations of all finished connections
+     */
+    public long getTotalConnectionTime(final TimeUnit unit) {
+        return unit.convert(connectionNanos.get(), TimeUnit.NANOSECONDS);
+    }
+}
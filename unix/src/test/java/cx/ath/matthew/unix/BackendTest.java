@@ -0,0 +1,63 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+
+package cx.ath.matthew.unix;
+
+import java.io.IOException;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link Backend} without libunix-java.
+ */
+public class BackendTest {
+
+    /**
+     * Test that {@link UnixSelector} reports a missing libunix-java as unsupported.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSelectorUnsupported() throws IOException {
+        Assume.assumeFalse(Backend.NATIVE);
+        new UnixSelector();
+    }
+
+    /**
+     * Test that {@link UnixDatagramSocket} reports a missing libunix-java as unsupported.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testDatagramUnsupported() throws IOException {
+        Assume.assumeFalse(Backend.NATIVE);
+        new UnixDatagramSocket();
+    }
+
+    /**
+     * Test that {@link UnixSocket#pair()} reports a missing libunix-java as unsupported.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testPairUnsupported() throws IOException {
+        Assume.assumeFalse(Backend.NATIVE);
+        UnixSocket.pair();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+
+package cx.ath.matthew.unix;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Test cases for {@link UnixAsyncGroup}, with io_uring where the kernel supports it and with the epoll fallback.
+ */
+@RunWith(Parameterized.class)
+public class UnixAsyncGroupTest {
+
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> backends() {
+        return Arrays.asList(new Object[][] { { "auto" }, { "epoll" } });
+    }
+
+    private final String backend;
+    private UnixAsyncGroup group;
+    private UnixServerSocket server;
+    private UnixSocketAddress address;
+
+    public UnixAsyncGroupTest(final String backend) {
+        this.backend = backend;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(Backend.NATIVE);
+        group = open(2);
+        address = new UnixSocketAddress("unix-test-" + System.nanoTime(), true);
+        server = new UnixServerSocket(address);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (null != group) {
+            group.close();
+        }
+        if (null != server) {
+            server.close();
+        }
+    }
+
+    private UnixAsyncGroup open(final int threads) throws IOException {
+        final String old = System.getProperty(UnixAsyncGroup.PROPERTY);
+        System.setProperty(UnixAsyncGroup.PROPERTY, backend);
+        try {
+            return UnixAsyncGroup.open(threads);
+        } finally {
+            if (null == old) {
+                System.clearProperty(UnixAsyncGroup.PROPERTY);
+            } else {
+                System.setProperty(UnixAsyncGroup.PROPERTY, old);
+            }
+        }
+    }
+
+    private static <T> T get(final CompletableFuture<T> f) throws Exception {
+        return f.get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Test accept, connect, read and write with heap and registered buffers, and end-of-stream.
+     */
+    @Test
+    public void testReadWrite() throws Exception {
+        if ("epoll".equals(backend)) {
+            Assert.assertFalse(group.isIoUring());
+        }
+        final CompletableFuture<UnixSocket> af = group.accept(server);
+        final UnixSocket client = get(group.connect(address));
+        final UnixSocket accepted = get(af);
+        try {
+            final ByteBuffer reg = ByteBuffer.allocateDirect(4096);
+            group.registerBuffers(reg);
+            final CompletableFuture<Integer> rf = group.read(accepted, reg);
+            Assert.assertEquals(5, (int) get(group.write(client, ByteBuffer.wrap("hello".getBytes()))));
+            Assert.assertEquals(5, (int) get(rf));
+            Assert.assertEquals(5, reg.position());
+
+            final ByteBuffer heap = ByteBuffer.allocate(10);
+            final CompletableFuture<Integer> hf = group.read(client, heap);
+            reg.flip();
+            Assert.assertEquals(5, (int) get(group.write(accepted, reg)));
+            Assert.assertEquals(5, (int) get(hf));
+            Assert.assertEquals("hello", new String(heap.array(), 0, heap.position()));
+
+            client.close();
+            Assert.assertEquals(-1, (int) get(group.read(accepted, ByteBuffer.allocate(5))));
+        } finally {
+            client.close();
+            accepted.close();
+        }
+    }
+
+    /**
+     * Test that completions can submit operations to other pollers, in both directions at once.
+     */
+    @Test
+    public void testPingPong() throws Exception {
+        final UnixAsyncGroup other = open(1);
+        final UnixSocket client = new UnixSocket(address);
+        final UnixSocket accepted = server.accept();
+        try {
+            final int rounds = 500;
+            final AtomicInteger count = new AtomicInteger();
+            final CompletableFuture<Integer> done = new CompletableFuture<>();
+            // each side answers on the other group from the completion of its read
+            pong(group, other, accepted, rounds, count, done);
+            pong(other, group, client, rounds, count, done);
+            group.write(client, ByteBuffer.wrap(new byte[1]));
+            Assert.assertEquals(rounds, (int) get(done));
+        } finally {
+            other.close();
+            client.close();
+            accepted.close();
+        }
+    }
+
+    private static void pong(final UnixAsyncGroup in, final UnixAsyncGroup out, final UnixSocket socket,
+            final int rounds, final AtomicInteger count, final CompletableFuture<Integer> done) {
+        in.read(socket, ByteBuffer.allocate(1)).whenComplete((n, e) -> {
+            if (null != e) {
+                done.completeExceptionally(e);
+                return;
+            }
+            final int c = count.incrementAndGet();
+            if (c >= rounds) {
+                done.complete(c);
+                return;
+            }
+            out.write(socket, ByteBuffer.wrap(new byte[1])).whenComplete((w, f) -> {
+                if (null != f) {
+                    done.completeExceptionally(f);
+                }
+            });
+            pong(in, out, socket, rounds, count, done);
+        });
+    }
+
+    /**
+     * Test that closing the group fails pending operations and rejects new ones.
+     */
+    @Test
+    public void testClose() throws Exception {
+        final CompletableFuture<UnixSocket> pending = group.accept(server);
+        group.close();
+        try {
+            get(pending);
+            Assert.fail("not failed");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof AsynchronousCloseException);
+        }
+        Assert.assertTrue(group.connect(address).isCompletedExceptionally());
+    }
+
+    /**
+     * Test that a failed connect completes exceptionally.
+     */
+    @Test(expected = ExecutionException.class)
+    public void testConnectError() throws Exception {
+        get(group.connect(new UnixSocketAddress("unix-test-missing-" + System.nanoTime(), true)));
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+
+package cx.ath.matthew.unix;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link UnixDatagramSocket} and {@link UnixSocket#SOCK_SEQPACKET} sockets.
+ */
+public class UnixDatagramSocketTest {
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Backend.NATIVE);
+    }
+
+    private static UnixSocketAddress address() {
+        return new UnixSocketAddress("unix-test-" + System.nanoTime(), true);
+    }
+
+    /**
+     * Test that datagrams keep their boundaries and that the sender address is reported.
+     */
+    @Test
+    public void testSendReceive() throws IOException {
+        try (final UnixDatagramSocket server = new UnixDatagramSocket(address());
+                final UnixDatagramSocket client = new UnixDatagramSocket(address())) {
+            Assert.assertEquals(3, client.send(ByteBuffer.wrap("one".getBytes()), server.getAddress()));
+            Assert.assertEquals(6, client.send(ByteBuffer.wrap("twotwo".getBytes()), server.getAddress()));
+
+            final ByteBuffer b = ByteBuffer.allocate(100);
+            final UnixSocketAddress from = server.receive(b);
+            Assert.assertEquals(client.getAddress().getPath(), from.getPath());
+            Assert.assertEquals(3, b.position());
+
+            // the rest of a datagram which does not fit is discarded
+            final ByteBuffer d = ByteBuffer.allocateDirect(4);
+            server.receive(d);
+            Assert.assertEquals(4, d.position());
+        }
+    }
+
+    /**
+     * Test non-blocking mode and the read timeout of {@link UnixDatagramSocket#receive(ByteBuffer)}.
+     */
+    @Test
+    public void testReceiveNothing() throws IOException {
+        try (final UnixDatagramSocket server = new UnixDatagramSocket(address())) {
+            final ByteBuffer b = ByteBuffer.allocate(16);
+            server.setBlocking(false);
+            Assert.assertNull(server.receive(b));
+            server.setBlocking(true);
+            server.setSoTimeout(50);
+            try {
+                server.receive(b);
+                Assert.fail("no timeout");
+            } catch (final SocketTimeoutException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Test that {@link UnixSocket#SOCK_SEQPACKET} sockets keep message boundaries.
+     */
+    @Test
+    public void testSeqpacket() throws IOException {
+        final UnixSocketAddress address = address();
+        try (final UnixServerSocket server = new UnixServerSocket(address, UnixSocket.SOCK_SEQPACKET)) {
+            final UnixSocket client = new UnixSocket(address, UnixSocket.SOCK_SEQPACKET);
+            final UnixSocket accepted = server.accept();
+            try {
+                Assert.assertEquals(UnixSocket.SOCK_SEQPACKET, accepted.getType());
+                client.write(ByteBuffer.wrap("abc".getBytes()));
+                client.write(ByteBuffer.wrap("defgh".getBytes()));
+                final ByteBuffer r = ByteBuffer.allocate(100);
+                Assert.assertEquals(3, accepted.read(r));
+                Assert.assertEquals(5, accepted.read(r));
+                Assert.assertEquals("abcdefgh", new String(r.array(), 0, r.position()));
+            } finally {
+                client.close();
+                accepted.close();
+            }
+        }
+    }
+
+    /**
+     * Test the batched {@link UnixDatagramSocket#send(UnixMessage[], int, int, UnixSocketAddress)} and
+     * {@link UnixDatagramSocket#receive(UnixMessage[], int, int)} functions with heap and direct buffers.
+     */
+    @Test
+    public void testBatch() throws IOException {
+        try (final UnixDatagramSocket server = new UnixDatagramSocket(address());
+                final UnixDatagramSocket client = new UnixDatagramSocket()) {
+            server.setPassCred(true);
+            final UnixMessage[] out = new UnixMessage[10];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = new UnixMessage(0 == i % 2 ? ByteBuffer.wrap(("msg" + i).getBytes())
+                        : ByteBuffer.allocateDirect(4 + i));
+            }
+            Assert.assertEquals(out.length, client.send(out, 0, out.length, server.getAddress()));
+            Assert.assertEquals(4, out[0].getLength());
+            Assert.assertEquals(13, out[9].getLength());
+
+            final UnixMessage[] in = new UnixMessage[16];
+            for (int i = 0; i < in.length; i++) {
+                in[i] = new UnixMessage(0 == i % 2 ? ByteBuffer.allocate(6) : ByteBuffer.allocateDirect(64));
+            }
+            int n = 0;
+            while (n < out.length) {
+                n += server.receive(in, n, in.length - n);
+            }
+            Assert.assertEquals(out.length, n);
+            for (int i = 0; i < n; i++) {
+                Assert.assertEquals(out[i].getLength(), in[i].getLength());
+                Assert.assertFalse(in[i].isTruncated());
+                Assert.assertTrue(0 < in[i].getPID());
+            }
+            Assert.assertEquals("msg0", new String(in[0].getBuffer().array(), 0, in[0].getLength()));
+
+            server.setBlocking(false);
+            Assert.assertEquals(0, server.receive(in, 0, in.length));
+        }
+    }
+
+    /**
+     * Test that a datagram larger than the buffer is reported as truncated.
+     */
+    @Test
+    public void testBatchTruncated() throws IOException {
+        try (final UnixDatagramSocket server = new UnixDatagramSocket(address());
+                final UnixDatagramSocket client = new UnixDatagramSocket()) {
+            client.send(ByteBuffer.wrap("truncated".getBytes()), server.getAddress());
+            final UnixMessage[] in = { new UnixMessage(ByteBuffer.allocate(4)) };
+            Assert.assertEquals(1, server.receive(in, 0, 1));
+            Assert.assertTrue(in[0].isTruncated());
+            Assert.assertEquals("trun", new String(in[0].getBuffer().array(), 0, 4));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+
+package cx.ath.matthew.unix;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link UnixServerSocket}.
+ */
+public class UnixServerSocketTest {
+
+    private UnixServerSocket server;
+    private UnixSocketAddress address;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(Backend.NATIVE);
+        address = new UnixSocketAddress("unix-test-" + System.nanoTime(), true);
+        server = new UnixServerSocket(address);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (null != server) {
+            server.close();
+        }
+    }
+
+    /**
+     * Test that closing an adopted socket leaves the copy of the service manager listening.
+     */
+    @Test
+    public void testCloseAdopted() throws IOException {
+        final UnixServerSocket adopted = UnixServerSocket.adopt(UnixServerSocket.native_dup(server.getFd()));
+        Assert.assertNotNull(adopted);
+        Assert.assertEquals(address, adopted.getAddress());
+        adopted.close();
+
+        final UnixSocket client = new UnixSocket(address);
+        try {
+            final UnixSocket accepted = server.accept();
+            client.getOutputStream().write(42);
+            Assert.assertEquals(42, accepted.getInputStream().read());
+            accepted.close();
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Test that only listening sockets are adopted.
+     */
+    @Test
+    public void testAdoptNotListening() throws IOException {
+        final UnixSocket[] pair = UnixSocket.pair();
+        try {
+            Assert.assertNull(UnixServerSocket.adopt(pair[0].getFd()));
+        } finally {
+            pair[0].close();
+            pair[1].close();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+
+package cx.ath.matthew.unix;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link UnixShmSocket}.
+ */
+public class UnixShmSocketTest {
+
+    // layout of the shared memory, see unix-java.c
+    private static final int HEADER = 384;
+    private static final int RING_HEADER = 128;
+    private static final int TAIL = 64;
+
+    private UnixShmSocket client;
+    private UnixShmSocket server;
+
+    /**
+     * Set up a shared memory connection with the smallest capacity over a socket pair.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue(Backend.NATIVE);
+        final UnixSocket[] pair = UnixSocket.pair();
+        final CompletableFuture<UnixShmSocket> accepted = CompletableFuture.supplyAsync(() -> {
+            try {
+                return UnixShmSocket.accept(pair[1]);
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        client = UnixShmSocket.connect(pair[0], 4096);
+        server = accepted.get(5, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (null != client) {
+            client.close();
+        }
+        if (null != server) {
+            server.close();
+        }
+    }
+
+    /**
+     * Test that data much larger than the rings arrives intact, with stream and buffer writes.
+     */
+    @Test
+    public void testTransfer() throws Exception {
+        Assert.assertEquals(4096, server.getCapacity());
+        final byte[] data = new byte[1 << 20];
+        new Random(1).nextBytes(data);
+        final CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            try {
+                final OutputStream out = client.getOutputStream();
+                out.write(data, 0, data.length / 2);
+                final ByteBuffer src = ByteBuffer.allocateDirect(data.length / 2);
+                src.put(data, data.length / 2, data.length / 2).flip();
+                while (src.hasRemaining()) {
+                    client.write(src);
+                }
+                client.close();
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        final byte[] got = new byte[data.length];
+        final InputStream in = server.getInputStream();
+        int pos = 0;
+        int n;
+        while (0 < (n = in.read(got, pos, Math.min(7777, got.length - pos)))) {
+            pos += n;
+        }
+        writer.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(data.length, pos);
+        Assert.assertArrayEquals(data, got);
+        Assert.assertEquals(-1, in.read());
+    }
+
+    /**
+     * Test that a non-blocking read without data returns 0.
+     */
+    @Test
+    public void testNonBlocking() throws IOException {
+        server.setBlocking(false);
+        Assert.assertEquals(0, server.read(ByteBuffer.allocate(16)));
+        client.getOutputStream().write(0xAB);
+        final ByteBuffer dst = ByteBuffer.allocate(16);
+        Assert.assertEquals(1, server.read(dst));
+        Assert.assertEquals((byte) 0xAB, dst.get(0));
+    }
+
+    private static ByteBuffer map(final UnixShmSocket s) throws ReflectiveOperationException {
+        final Field f = UnixShmSocket.class.getDeclaredField("map");
+        f.setAccessible(true);
+        return ((ByteBuffer) f.get(s)).duplicate().order(ByteOrder.nativeOrder());
+    }
+
+    private static int side(final UnixShmSocket s) throws ReflectiveOperationException {
+        final Field f = UnixShmSocket.class.getDeclaredField("side");
+        f.setAccessible(true);
+        return f.getInt(s);
+    }
+
+    /**
+     * Test that a read fails and closes the connection if the peer claims more data than the ring holds.
+     */
+    @Test
+    public void testCorruptTail() throws Exception {
+        // the server reads the ring the client writes
+        final int ring = HEADER + side(client) * (RING_HEADER + 4096);
+        final ByteBuffer map = map(client);
+        map.putLong(ring + TAIL, map.getLong(ring) + 4096 + 1);
+        try {
+            server.read(ByteBuffer.allocate(16));
+            Assert.fail("corrupt ring not detected");
+        } catch (final UnixIOException e) {
+            Assert.assertEquals(71, e.getErrorNumber());
+        }
+        Assert.assertTrue(server.isClosed());
+        // the client sees the server as closed
+        Assert.assertEquals(-1, client.getInputStream().read());
+    }
+
+    /**
+     * Test that a write fails and closes the connection if the peer moves its read index past the data.
+     */
+    @Test
+    public void testCorruptHead() throws Exception {
+        final int ring = HEADER + side(client) * (RING_HEADER + 4096);
+        final ByteBuffer map = map(client);
+        map.putLong(ring, map.getLong(ring + TAIL) + 1);
+        try {
+            client.write(ByteBuffer.allocate(16));
+            Assert.fail("corrupt ring not detected");
+        } catch (final UnixIOException e) {
+            Assert.assertEquals(71, e.getErrorNumber());
+        }
+        Assert.assertTrue(client.isClosed());
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+
+package cx.ath.matthew.unix;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link UnixSocketMux}.
+ */
+public class UnixSocketMuxTest {
+
+    private static final int WINDOW = 32 * 1024;
+
+    private UnixSocketMux client;
+    private UnixSocketMux server;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(Backend.NATIVE);
+        final UnixSocket[] pair = UnixSocket.pair();
+        client = new UnixSocketMux(pair[0], true, WINDOW);
+        server = new UnixSocketMux(pair[1], false, WINDOW);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (null != client) {
+            client.close();
+        }
+        if (null != server) {
+            server.close();
+        }
+    }
+
+    private static byte[] random(final int len, final int seed) {
+        final byte[] b = new byte[len];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    private static byte[] readAll(final InputStream in, final int len) throws IOException {
+        final byte[] b = new byte[len];
+        int pos = 0;
+        int n;
+        while (pos < len && 0 < (n = in.read(b, pos, Math.min(7000, len - pos)))) {
+            pos += n;
+        }
+        Assert.assertEquals(len, pos);
+        Assert.assertEquals(-1, in.read());
+        return b;
+    }
+
+    private static CompletableFuture<Void> writeAsync(final UnixSocketMux.Stream s, final byte[] data) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                final OutputStream out = s.getOutputStream();
+                out.write(data);
+                out.close();
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * Test that several streams, each larger than the window, arrive intact in both directions.
+     */
+    @Test(timeout = 20000)
+    public void testStreams() throws Exception {
+        final List<byte[]> sent = new ArrayList<>();
+        final List<UnixSocketMux.Stream> opened = new ArrayList<>();
+        final List<CompletableFuture<Void>> writers = new ArrayList<>();
+        final List<CompletableFuture<byte[]>> replies = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final byte[] data = random(200000 + i, i);
+            final UnixSocketMux.Stream s = client.open();
+            sent.add(data);
+            opened.add(s);
+            writers.add(writeAsync(s, data));
+            replies.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return readAll(s.getInputStream(), data.length);
+                } catch (final IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        for (int i = 0; i < 4; i++) {
+            final UnixSocketMux.Stream s = server.accept();
+            final int index = opened.indexOf(findById(opened, s.getId()));
+            final byte[] data = sent.get(index);
+            // echo back on the same stream while reading
+            final CompletableFuture<Void> echo = writeAsync(s, data);
+            Assert.assertArrayEquals(data, readAll(s.getInputStream(), data.length));
+            echo.get(10, TimeUnit.SECONDS);
+            s.close();
+        }
+        for (int i = 0; i < 4; i++) {
+            writers.get(i).get(10, TimeUnit.SECONDS);
+            Assert.assertArrayEquals(sent.get(i), replies.get(i).get(10, TimeUnit.SECONDS));
+            opened.get(i).close();
+        }
+    }
+
+    private static UnixSocketMux.Stream findById(final List<UnixSocketMux.Stream> streams, final int id) {
+        for (final UnixSocketMux.Stream s : streams) {
+            if (id == s.getId()) {
+                return s;
+            }
+        }
+        throw new AssertionError("unknown stream " + id);
+    }
+
+    /**
+     * Test that a stream nobody reads only stalls its own writer.
+     */
+    @Test(timeout = 10000)
+    public void testFlowControl() throws Exception {
+        final UnixSocketMux.Stream slow = client.open();
+        final CompletableFuture<Void> stalled = writeAsync(slow, new byte[4 * WINDOW]);
+        final UnixSocketMux.Stream fast = client.open();
+        final byte[] data = random(1 << 20, 1);
+        final CompletableFuture<Void> writer = writeAsync(fast, data);
+
+        final UnixSocketMux.Stream slowPeer = server.accept();
+        final UnixSocketMux.Stream fastPeer = server.accept();
+        Assert.assertEquals(slow.getId(), slowPeer.getId());
+        Assert.assertArrayEquals(data, readAll(fastPeer.getInputStream(), data.length));
+        writer.get();
+        Assert.assertFalse(stalled.isDone());
+        Assert.assertTrue(slowPeer.getInputStream().available() <= WINDOW);
+
+        // reading the slow stream releases its writer
+        readAll(slowPeer.getInputStream(), 4 * WINDOW);
+        stalled.get();
+    }
+
+    /**
+     * Test that the peer sees a closed multiplexer as end of the accepted streams.
+     */
+    @Test
+    public void testClose() throws Exception {
+        client.close();
+        Assert.assertTrue(client.isClosed());
+        Assert.assertNull(server.accept());
+        Assert.assertTrue(server.isClosed());
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+
+package cx.ath.matthew.unix;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link UnixSocketPool}.
+ */
+public class UnixSocketPoolTest {
+
+    private UnixServerSocket server;
+    private UnixSocketAddress address;
+    private UnixSocketPool pool;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(Backend.NATIVE);
+        address = new UnixSocketAddress("unix-test-" + System.nanoTime(), true);
+        // connections complete in the backlog, nothing needs to accept them
+        server = new UnixServerSocket(address);
+        pool = new UnixSocketPool(1, 1, 1, TimeUnit.MINUTES);
+        pool.setLeaseTimeout(100, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (null != pool) {
+            pool.close();
+        }
+        if (null != server) {
+            server.close();
+        }
+    }
+
+    /**
+     * Test that a released socket is leased again.
+     */
+    @Test
+    public void testReuse() throws IOException {
+        final UnixSocket s = pool.lease(address);
+        pool.release(s);
+        Assert.assertEquals(1, pool.getIdle());
+        Assert.assertSame(s, pool.lease(address));
+        Assert.assertEquals(1, pool.getHits());
+        Assert.assertEquals(1, pool.getMisses());
+    }
+
+    /**
+     * Test that releasing a socket closed by the caller frees its place in the pool.
+     */
+    @Test
+    public void testReleaseClosed() throws IOException {
+        final UnixSocket s = pool.lease(address);
+        s.close();
+        pool.release(s);
+        Assert.assertEquals(0, pool.getLeased());
+        Assert.assertEquals(0, pool.getIdle());
+        // maxTotal is 1, so this times out if the closed socket is still counted
+        final UnixSocket t = pool.lease(address);
+        Assert.assertNotSame(s, t);
+        Assert.assertTrue(t.isConnected());
+    }
+
+    /**
+     * Test that releasing a socket twice is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testReleaseTwice() throws IOException {
+        final UnixSocket s = pool.lease(address);
+        pool.release(s);
+        pool.release(s);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+
+package cx.ath.matthew.unix;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link UnixSocketServer}.
+ */
+public class UnixSocketServerTest {
+
+    private UnixSocketAddress address;
+    private UnixSocketServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(Backend.NATIVE);
+        address = new UnixSocketAddress("unix-test-" + System.nanoTime(), true);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (null != server) {
+            server.close();
+        }
+    }
+
+    /**
+     * Test that the listener is told about each connection.
+     */
+    @Test(timeout = 10000)
+    public void testConnectionListener() throws Exception {
+        final CountDownLatch closed = new CountDownLatch(1);
+        final long[] nanos = new long[1];
+        server = new UnixSocketServer(new UnixServerSocket(address), new UnixSocketServer.ConnectionHandler() {
+            @Override
+            public void handle(final UnixSocket socket) throws IOException {
+                socket.getOutputStream().write(socket.getInputStream().read());
+            }
+        }, UnixSocketServer.newThreadPool(1), 1);
+        server.setConnectionListener(new UnixSocketServer.ConnectionListener() {
+            @Override
+            public void connectionClosed(final UnixSocket socket, final long n, final Exception failure) {
+                Assert.assertNull(failure);
+                nanos[0] = n;
+                closed.countDown();
+            }
+        });
+        server.start();
+
+        final UnixSocket client = new UnixSocket(address);
+        try {
+            client.getOutputStream().write(7);
+            Assert.assertEquals(7, client.getInputStream().read());
+        } finally {
+            client.close();
+        }
+        closed.await();
+        Assert.assertTrue(0 < nanos[0]);
+        Assert.assertEquals(1, server.getCompletedCount());
+    }
+
+    /**
+     * Test that a shutdown timeout wakes handlers blocked in a read, and their sockets are closed after they return.
+     */
+    @Test(timeout = 10000)
+    public void testShutdownTimeout() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        final AtomicInteger result = new AtomicInteger(0);
+        final AtomicBoolean connected = new AtomicBoolean(false);
+        server = new UnixSocketServer(new UnixServerSocket(address), new UnixSocketServer.ConnectionHandler() {
+            @Override
+            public void handle(final UnixSocket socket) throws IOException {
+                reading.countDown();
+                result.set(socket.getInputStream().read());
+                // still connected until the handler returns
+                connected.set(socket.isConnected());
+            }
+        }, UnixSocketServer.newThreadPool(1), 1);
+        server.setConnectionListener(new UnixSocketServer.ConnectionListener() {
+            @Override
+            public void connectionClosed(final UnixSocket socket, final long nanos, final Exception failure) {
+                closed.countDown();
+            }
+        });
+        server.start();
+
+        final UnixSocket client = new UnixSocket(address);
+        try {
+            reading.await();
+            Assert.assertFalse(server.shutdown(100, TimeUnit.MILLISECONDS));
+            closed.await();
+            Assert.assertEquals(-1, result.get());
+            Assert.assertTrue(connected.get());
+            Assert.assertEquals(-1, client.getInputStream().read());
+        } finally {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,608 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+
+
+package cx.ath.matthew.unix;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test cases for {@link UnixSocket}.
+ */
+public class UnixSocketTest {
+
+    private UnixServerSocket server;
+    private UnixSocket client;
+    private UnixSocket accepted;
+
+    /**
+     * Connect a client to a server on a fresh abstract address.
+     */
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(Backend.NATIVE);
+        final UnixSocketAddress address = new UnixSocketAddress("unix-test-" + System.nanoTime(), true);
+        server = new UnixServerSocket(address);
+        client = new UnixSocket(address);
+        accepted = server.accept();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (null != accepted) {
+            accepted.close();
+        }
+        if (null != client) {
+            client.close();
+        }
+        if (null != server) {
+            server.close();
+        }
+    }
+
+    private static byte[] pattern(final int len) {
+        final byte[] b = new byte[len];
+        for (int i = 0; i < len; i++) {
+            b[i] = (byte) (i * 31);
+        }
+        return b;
+    }
+
+    private static void readFully(final UnixSocket s, final ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            Assert.assertTrue("unexpected end-of-stream", 0 <= s.read(dst));
+        }
+    }
+
+    /**
+     * Test the {@link UnixSocket#write(ByteBuffer)} and {@link UnixSocket#read(ByteBuffer)} functions using direct
+     * buffers.
+     */
+    @Test
+    public void testDirectBuffers() throws IOException {
+        final byte[] data = pattern(4096);
+        final ByteBuffer src = ByteBuffer.allocateDirect(data.length);
+        src.put(data).flip();
+        Assert.assertEquals(data.length, client.write(src));
+        Assert.assertFalse(src.hasRemaining());
+
+        final ByteBuffer dst = ByteBuffer.allocateDirect(data.length);
+        readFully(accepted, dst);
+        dst.flip();
+        final byte[] got = new byte[data.length];
+        dst.get(got);
+        Assert.assertArrayEquals(data, got);
+    }
+
+    /**
+     * Test the {@link UnixSocket#write(ByteBuffer)} and {@link UnixSocket#read(ByteBuffer)} functions using heap
+     * buffers with a non-zero position.
+     */
+    @Test
+    public void testHeapBuffers() throws IOException {
+        final byte[] data = pattern(1000);
+        final ByteBuffer src = ByteBuffer.allocate(data.length + 10);
+        src.position(10);
+        src.put(data).flip().position(10);
+        Assert.assertEquals(data.length, client.write(src));
+
+        final ByteBuffer dst = ByteBuffer.allocate(data.length + 3);
+        dst.position(3);
+        readFully(accepted, dst);
+        final byte[] got = new byte[data.length];
+        System.arraycopy(dst.array(), 3, got, 0, data.length);
+        Assert.assertArrayEquals(data, got);
+    }
+
+    /**
+     * Test that a seqpacket message larger than the native copy buffer is sent and received as one message.
+     */
+    @Test
+    public void testLargeSeqpacketMessage() throws IOException {
+        final UnixSocket[] pair = UnixSocket.pair(UnixSocket.SOCK_SEQPACKET);
+        try {
+            pair[0].setSendBufferSize(4 * 1024 * 1024);
+            final byte[] data = pattern(1536 * 1024);
+            Assert.assertEquals(data.length, pair[0].write(ByteBuffer.wrap(data)));
+            pair[0].write(ByteBuffer.wrap(new byte[] { 1 }));
+
+            final ByteBuffer dst = ByteBuffer.allocate(2 * data.length);
+            Assert.assertEquals(data.length, pair[1].read(dst));
+            Assert.assertArrayEquals(data, Arrays.copyOf(dst.array(), data.length));
+            dst.clear();
+            Assert.assertEquals(1, pair[1].read(dst));
+        } finally {
+            pair[0].close();
+            pair[1].close();
+        }
+    }
+
+    /**
+     * Test that {@link UnixSocket#read(ByteBuffer)} returns -1 at end-of-stream.
+     */
+    @Test
+    public void testReadEndOfStream() throws IOException {
+        client.close();
+        client = null;
+        Assert.assertEquals(-1, accepted.read(ByteBuffer.allocate(16)));
+    }
+
+    /**
+     * Test the {@link UnixSocket#sendFileDescriptors(ByteBuffer, FileDescriptor...)} and
+     * {@link UnixSocket#receiveFileDescriptors(ByteBuffer, FileDescriptor[])} functions.
+     */
+    @Test
+    public void testPassFileDescriptor() throws IOException {
+        final File file = File.createTempFile("unix-test", null);
+        try {
+            try (final FileOutputStream out = new FileOutputStream(file)) {
+                out.write(pattern(100));
+                Assert.assertEquals(3, client.sendFileDescriptors(ByteBuffer.wrap("fd!".getBytes()), out.getFD()));
+            }
+            final FileDescriptor[] fds = new FileDescriptor[2];
+            final ByteBuffer dst = ByteBuffer.allocate(16);
+            Assert.assertEquals(3, accepted.receiveFileDescriptors(dst, fds));
+            Assert.assertTrue(fds[0].valid());
+            Assert.assertNull(fds[1]);
+            try (final FileChannel channel = UnixSocket.openFileChannel(fds[0], true)) {
+                Assert.assertEquals(100, channel.size());
+                final ByteBuffer b = ByteBuffer.allocate(100);
+                channel.read(b, 0);
+                Assert.assertArrayEquals(pattern(100), b.array());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test that {@link UnixSocket#sendFileDescriptors(ByteBuffer, FileDescriptor...)} rejects null descriptors.
+     */
+    @Test(expected = NullPointerException.class)
+    public void testPassNullFileDescriptor() throws IOException {
+        client.sendFileDescriptors(ByteBuffer.wrap("x".getBytes()), FileDescriptor.in, null);
+    }
+
+    /**
+     * Test that a write larger than the socket buffer and a read with a timeout work with
+     * {@link UnixSocket#setParkOnReadiness(boolean)} enabled.
+     */
+    @Test
+    public void testParkOnReadiness() throws Exception {
+        client.setParkOnReadiness(true);
+        accepted.setParkOnReadiness(true);
+        final byte[] data = pattern(1 << 20);
+        final Thread writer = new Thread(() -> {
+            try {
+                client.getOutputStream().write(data);
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+        final ByteBuffer dst = ByteBuffer.allocate(data.length);
+        readFully(accepted, dst);
+        writer.join();
+        Assert.assertArrayEquals(data, dst.array());
+
+        accepted.setSoTimeout(50);
+        try {
+            accepted.getInputStream().read();
+            Assert.fail("no timeout");
+        } catch (final SocketTimeoutException e) {
+            // expected
+        }
+    }
+
+    private void checkSingleBytes(final int readAhead) throws IOException {
+        ((USInputStream) accepted.getInputStream()).setReadAhead(readAhead);
+        client.getOutputStream().write(new byte[] { 0, 1, 127, (byte) 128, (byte) 0xFF });
+        client.close();
+        client = null;
+        final InputStream in = accepted.getInputStream();
+        Assert.assertEquals(0, in.read(new byte[4], 0, 0));
+        Assert.assertEquals(0, in.read());
+        Assert.assertEquals(1, in.read());
+        Assert.assertEquals(127, in.read());
+        Assert.assertEquals(128, in.read());
+        Assert.assertEquals(255, in.read());
+        Assert.assertEquals(-1, in.read());
+    }
+
+    /**
+     * Test that {@link USInputStream#read()} returns bytes as 0 to 255.
+     */
+    @Test
+    public void testReadSingleBytes() throws IOException {
+        checkSingleBytes(0);
+    }
+
+    /**
+     * Test that {@link USInputStream#read()} returns bytes as 0 to 255 from the read-ahead buffer.
+     */
+    @Test
+    public void testReadSingleBytesReadAhead() throws IOException {
+        checkSingleBytes(64);
+    }
+
+    /**
+     * Test that {@link USOutputStream#write(int)} sends bytes 0 to 255 unchanged through a write buffer.
+     */
+    @Test
+    public void testWriteSingleBytes() throws IOException {
+        final USOutputStream os = (USOutputStream) client.getOutputStream();
+        os.setWriteBuffer(64);
+        final DataOutputStream out = new DataOutputStream(os);
+        for (int i = 0; i < 256; i++) {
+            out.writeByte(i);
+        }
+        out.flush();
+        final ByteBuffer dst = ByteBuffer.allocate(256);
+        readFully(accepted, dst);
+        for (int i = 0; i < 256; i++) {
+            Assert.assertEquals(i, dst.get(i) & 0xFF);
+        }
+    }
+
+    /**
+     * Test that a peer which does not read does not delay the timed flushes of other sockets.
+     */
+    @Test(timeout = 10000)
+    public void testTimedFlushNotStalled() throws Exception {
+        final UnixSocket[] stalled = UnixSocket.pair();
+        try {
+            stalled[0].setSendBufferSize(4096);
+            while (0 < stalled[0].write(ByteBuffer.allocate(4096), USInputStream.MSG_DONTWAIT)) {
+                // fill the socket buffers, stalled[1] never reads
+            }
+            final USOutputStream blocked = (USOutputStream) stalled[0].getOutputStream();
+            blocked.setWriteBuffer(64);
+            blocked.setFlushDelay(5);
+            blocked.write(1);
+            Thread.sleep(50);
+
+            final USOutputStream os = (USOutputStream) client.getOutputStream();
+            os.setWriteBuffer(64);
+            os.setFlushDelay(5);
+            os.write(2);
+            accepted.setSoTimeout(2000);
+            Assert.assertEquals(2, accepted.getInputStream().read());
+        } finally {
+            stalled[0].close();
+            stalled[1].close();
+        }
+    }
+
+    /**
+     * Test that {@link UnixSocket#relay(UnixSocket, UnixSocket)} delivers data already taken from one side to a
+     * slow reader when the other side reaches end-of-stream.
+     */
+    @Test(timeout = 20000)
+    public void testRelayDeliversPendingOnEof() throws Exception {
+        // client <-> r1 ~relay~ r2 <-> upstream
+        final UnixSocket[] c = UnixSocket.pair();
+        final UnixSocket[] u = UnixSocket.pair();
+        final UnixSocket[] x = UnixSocket.pair();
+        final UnixSocket client = c[0];
+        final UnixSocket r1 = c[1];
+        final UnixSocket r2 = u[0];
+        final UnixSocket upstream = u[1];
+        try {
+            r1.setSendBufferSize(4096);
+            final int total = 1024 * 1024;
+            final long[][] counts = new long[1][];
+            final Thread relay = new Thread(() -> {
+                try {
+                    counts[0] = UnixSocket.relay(r1, r2);
+                } catch (final IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            relay.start();
+            final Thread writer = new Thread(() -> {
+                try {
+                    upstream.getOutputStream().write(pattern(total));
+                } catch (final IOException e) {
+                    // the upstream is closed at the end of the test
+                }
+            });
+            writer.start();
+            // the client does not read, data backs up in the relay
+            Thread.sleep(200);
+
+            // half-close the client: a relay shuts down the writing side of its target at end-of-stream
+            x[0].close();
+            UnixSocket.relay(x[1], client);
+
+            // the relay is blocked delivering to the client, which now reads slowly
+            final long[] received = new long[1];
+            final Thread reader = new Thread(() -> {
+                try {
+                    final InputStream in = client.getInputStream();
+                    final byte[] b = new byte[4096];
+                    int n;
+                    while (0 < (n = in.read(b))) {
+                        received[0] += n;
+                        if (received[0] < 64 * 1024) {
+                            Thread.sleep(1);
+                        }
+                    }
+                } catch (final IOException | InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            reader.start();
+            relay.join();
+            r1.close();
+            reader.join();
+            Assert.assertEquals(counts[0][1], received[0]);
+
+            // everything upstream sent either reached the client or is still queued
+            r2.setSoTimeout(2000);
+            final ByteBuffer rest = ByteBuffer.allocate((int) (total - received[0]));
+            readFully(r2, rest);
+            writer.join();
+        } finally {
+            client.close();
+            r1.close();
+            r2.close();
+            upstream.close();
+            x[1].close();
+        }
+    }
+
+    /**
+     * Test that {@link UnixSocket#getPeerCredentials()} describes the new peer after reconnecting.
+     */
+    @Test
+    public void testPeerCredentialsAfterReconnect() throws IOException {
+        final PeerCredentials first = client.getPeerCredentials();
+        Assert.assertEquals(ProcessHandle.current().pid(), client.getPeerPID());
+
+        client.connect(server.getAddress());
+        final UnixSocket other = server.accept();
+        try {
+            final PeerCredentials second = client.getPeerCredentials();
+            Assert.assertNotSame(first, second);
+            Assert.assertEquals(ProcessHandle.current().pid(), second.getPid());
+            Assert.assertEquals(second.getPid(), client.getPeerPID());
+            if (null != second.getPidFd()) {
+                // the pidfd of the first connection has been closed with it
+                Assert.assertTrue(second.getPidFd().valid());
+            }
+        } finally {
+            other.close();
+        }
+    }
+
+    private static String name(final int len) {
+        final char[] c = new char[len];
+        Arrays.fill(c, 'a');
+        return new String(c);
+    }
+
+    /**
+     * Test that the longest abstract address is accepted and a longer one is rejected.
+     */
+    @Test
+    public void testAbstractAddressLength() throws IOException {
+        // sun_path holds 108 bytes, the leading 0 byte and the terminator leave 106
+        new UnixServerSocket(new UnixSocketAddress(name(106), true)).close();
+        try {
+            new UnixServerSocket(new UnixSocketAddress(name(107), true)).close();
+            Assert.fail("address too long");
+        } catch (final UnixIOException e) {
+            // expected
+        }
+    }
+
+    private static File tempFile(final byte[] data) throws IOException {
+        final File file = File.createTempFile("unix-test", null);
+        file.deleteOnExit();
+        try (final FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+
+    /**
+     * Test the {@link UnixSocket#transferFrom(FileChannel, long, long)} function.
+     */
+    @Test
+    public void testTransferFrom() throws Exception {
+        final byte[] data = pattern(200000);
+        final File file = tempFile(data);
+        try (final FileChannel src = new RandomAccessFile(file, "r").getChannel()) {
+            final Thread writer = new Thread(() -> {
+                try {
+                    long done = 0;
+                    while (done < data.length - 100) {
+                        done += client.transferFrom(src, 100 + done, data.length - 100 - done);
+                    }
+                } catch (final IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            writer.start();
+            final ByteBuffer dst = ByteBuffer.allocate(data.length - 100);
+            readFully(accepted, dst);
+            writer.join();
+            Assert.assertArrayEquals(Arrays.copyOfRange(data, 100, data.length), dst.array());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test that {@link UnixSocket#transferFrom(FileChannel, long, long)} does not block in non-blocking mode.
+     */
+    @Test(timeout = 10000)
+    public void testTransferFromNonBlocking() throws IOException {
+        final byte[] data = pattern(16 << 20);
+        final File file = tempFile(data);
+        try (final FileChannel src = new RandomAccessFile(file, "r").getChannel()) {
+            client.setBlocking(false);
+            // nobody reads, so the send buffer fills up
+            final long n = client.transferFrom(src, 0, data.length);
+            Assert.assertTrue(0 < n && n < data.length);
+            Assert.assertEquals(0, client.transferFrom(src, n, data.length - n));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test the {@link UnixSocket#transferTo(FileChannel, long, long)} function, including a timeout after part of
+     * the data has been received.
+     */
+    @Test
+    public void testTransferTo() throws IOException {
+        final byte[] data = pattern(5000);
+        final File file = tempFile(new byte[0]);
+        try (final FileChannel dst = new RandomAccessFile(file, "rw").getChannel()) {
+            client.write(ByteBuffer.wrap(data));
+            accepted.setSoTimeout(100);
+            Assert.assertEquals(data.length, accepted.transferTo(dst, 10, 2 * data.length));
+            final ByteBuffer b = ByteBuffer.allocate(data.length);
+            dst.read(b, 10);
+            Assert.assertArrayEquals(data, b.array());
+            try {
+                accepted.transferTo(dst, 0, 10);
+                Assert.fail("no timeout");
+            } catch (final SocketTimeoutException e) {
+                // expected
+            }
+            client.close();
+            client = null;
+            Assert.assertEquals(-1, accepted.transferTo(dst, 0, 10));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static String readAll(final UnixSocket s) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        final InputStream in = s.getInputStream();
+        int c;
+        while (-1 != (c = in.read())) {
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Test {@link UnixSocket#pair()} and a child started with {@link UnixSocket#spawn(UnixSocket, String...)}
+     * talking over it.
+     */
+    @Test
+    public void testSpawn() throws Exception {
+        final UnixSocket[] pair = UnixSocket.pair();
+        try {
+            final Process child = UnixSocket.spawn(pair[1], "sh", "-c", "read line <&3; echo \"got $line\" >&3");
+            Assert.assertTrue(pair[1].isClosed());
+            pair[0].getOutputStream().write("hello\n".getBytes());
+            Assert.assertEquals("got hello\n", readAll(pair[0]));
+            Assert.assertEquals(0, child.waitFor());
+        } finally {
+            pair[0].close();
+        }
+    }
+
+    /**
+     * Test that a spawned child gets the socket as descriptor 3, but not descriptors opened without close-on-exec.
+     */
+    @Test
+    public void testSpawnClosesDescriptors() throws Exception {
+        final File file = tempFile(new byte[0]);
+        final UnixSocket[] pair = UnixSocket.pair();
+        // opened without close-on-exec by the JDK
+        try (final FileInputStream leak = new FileInputStream(file)) {
+            final int fd = UnixSocket.fdNumber(leak.getFD());
+            final Process child = UnixSocket.spawn(pair[1], "sh", "-c",
+                    "test -S /proc/$$/fd/3 && test ! -e /proc/$$/fd/" + fd);
+            Assert.assertEquals(0, child.waitFor());
+        } finally {
+            pair[0].close();
+            file.delete();
+        }
+    }
+
+    /**
+     * Test that a thread parked reading a socket fails when the socket is handed to a child.
+     */
+    @Test(timeout = 10000)
+    public void testSpawnWakesParkedReader() throws Exception {
+        final UnixSocket[] pair = UnixSocket.pair();
+        try {
+            pair[1].setParkOnReadiness(true);
+            final IOException[] error = new IOException[1];
+            final Thread reader = new Thread(() -> {
+                try {
+                    pair[1].getInputStream().read();
+                } catch (final IOException e) {
+                    error[0] = e;
+                }
+            });
+            reader.start();
+            while (Thread.State.WAITING != reader.getState()) {
+                Thread.sleep(1);
+            }
+            UnixSocket.spawn(pair[1], "true").waitFor();
+            reader.join();
+            Assert.assertTrue(error[0] instanceof NotConnectedException);
+        } finally {
+            pair[0].close();
+        }
+    }
+
+    /**
+     * Test that a command which cannot be started is reported.
+     */
+    @Test(expected = IOException.class)
+    public void testSpawnMissingCommand() throws IOException {
+        final UnixSocket[] pair = UnixSocket.pair();
+        try {
+            UnixSocket.spawn(pair[1], "/nonexistent/unix-test-command");
+        } finally {
+            pair[0].close();
+            pair[1].close();
+        }
+    }
+}